@@ -13,6 +13,8 @@ extern "C" {
 #define abra_NativeAssembler_CYCLE_KMER_LENGTH_THRESHOLD 43L
 #undef abra_NativeAssembler_MIN_CANDIDATE_BASE_QUALITY
 #define abra_NativeAssembler_MIN_CANDIDATE_BASE_QUALITY 10L
+#undef abra_NativeAssembler_INITIAL_READ_BUFFER_SIZE
+#define abra_NativeAssembler_INITIAL_READ_BUFFER_SIZE 1048576L
 /*
  * Class:     abra_NativeAssembler
  * Method:    assemble
@@ -21,6 +23,62 @@ extern "C" {
 JNIEXPORT jstring JNICALL Java_abra_NativeAssembler_assemble
   (JNIEnv *, jobject, jstring, jstring, jstring, jint, jint, jint, jint, jint, jint, jint, jdouble, jint, jint);
 
+/*
+ * Class:     abra_NativeAssembler
+ * Method:    assembleReads
+ * Signature: (Ljava/nio/ByteBuffer;ILjava/lang/String;Ljava/lang/String;IIIIIIIDIIJ)[B
+ */
+JNIEXPORT jbyteArray JNICALL Java_abra_NativeAssembler_assembleReads
+  (JNIEnv *, jobject, jobject, jint, jstring, jstring, jint, jint, jint, jint, jint, jint, jint, jdouble, jint, jint, jlong);
+
+/*
+ * Class:     abra_NativeAssembler
+ * Method:    buildGraph
+ * Signature: (Ljava/nio/ByteBuffer;IIIIIJ)J
+ */
+JNIEXPORT jlong JNICALL Java_abra_NativeAssembler_buildGraph
+  (JNIEnv *, jobject, jobject, jint, jint, jint, jint, jint, jlong);
+
+/*
+ * Class:     abra_NativeAssembler
+ * Method:    assembleGraph
+ * Signature: (JLjava/lang/String;Ljava/lang/String;IIIIIDII)[B
+ */
+JNIEXPORT jbyteArray JNICALL Java_abra_NativeAssembler_assembleGraph
+  (JNIEnv *, jobject, jlong, jstring, jstring, jint, jint, jint, jint, jint, jdouble, jint, jint);
+
+/*
+ * Class:     abra_NativeAssembler
+ * Method:    releaseGraph
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_abra_NativeAssembler_releaseGraph
+  (JNIEnv *, jobject, jlong);
+
+/*
+ * Class:     abra_NativeAssembler
+ * Method:    newKmerCache
+ * Signature: (J)J
+ */
+JNIEXPORT jlong JNICALL Java_abra_NativeAssembler_newKmerCache
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     abra_NativeAssembler
+ * Method:    getKmerCacheStats
+ * Signature: (J)[J
+ */
+JNIEXPORT jlongArray JNICALL Java_abra_NativeAssembler_getKmerCacheStats
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     abra_NativeAssembler
+ * Method:    releaseKmerCache
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_abra_NativeAssembler_releaseKmerCache
+  (JNIEnv *, jclass, jlong);
+
 #ifdef __cplusplus
 }
 #endif
@@ -15,6 +15,30 @@ extern "C" {
 JNIEXPORT jstring JNICALL Java_abra_NativeSemiGlobalAligner_align
   (JNIEnv *, jobject, jstring, jstring, jint, jint, jint, jint);
 
+/*
+ * Class:     abra_NativeSemiGlobalAligner
+ * Method:    score
+ * Signature: (Ljava/lang/String;Ljava/lang/String;IIII)[I
+ */
+JNIEXPORT jintArray JNICALL Java_abra_NativeSemiGlobalAligner_score
+  (JNIEnv *, jobject, jstring, jstring, jint, jint, jint, jint);
+
+/*
+ * Class:     abra_NativeSemiGlobalAligner
+ * Method:    scoreBatch
+ * Signature: (Ljava/lang/String;[Ljava/lang/String;IIII)[I
+ */
+JNIEXPORT jintArray JNICALL Java_abra_NativeSemiGlobalAligner_scoreBatch
+  (JNIEnv *, jobject, jstring, jobjectArray, jint, jint, jint, jint);
+
+/*
+ * Class:     abra_NativeSemiGlobalAligner
+ * Method:    alignBatch
+ * Signature: (Ljava/lang/String;[Ljava/lang/String;IIII)[I
+ */
+JNIEXPORT jintArray JNICALL Java_abra_NativeSemiGlobalAligner_alignBatch
+  (JNIEnv *, jobject, jstring, jobjectArray, jint, jint, jint, jint);
+
 #ifdef __cplusplus
 }
 #endif
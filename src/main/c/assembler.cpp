@@ -3,11 +3,13 @@
 #include <string.h>
 #include <math.h>
 #include <time.h>
+#include <pthread.h>
 #include <queue>
 #include <iostream>
 #include <stack>
 #include <list>
 #include <vector>
+#include <string>
 #include <sparsehash/sparse_hash_map>
 #include <sparsehash/sparse_hash_set>
 #include <sparsehash/dense_hash_map>
@@ -36,13 +38,18 @@ using google::dense_hash_set;
 #define TOO_MANY_CONTIGS -2
 #define STOPPED_ON_REPEAT -3
 #define TOO_MANY_NODES -4
+#define INVALID_INPUT -5
 
 #define MAX_FREQUENCY 32766
 #define MAX_QUAL_SUM 255
 
-// TODO: This is used to bound qual sum arrays.  Use a memory pool instead for this.
+// Upper bound on kmer size
 #define MAX_KMER_LEN 201
 
+// Kmers are packed 2 bits per base, 32 bases per word
+#define BASES_PER_WORD 32
+#define MAX_KMER_WORDS ((MAX_KMER_LEN + BASES_PER_WORD - 1) / BASES_PER_WORD)
+
 // TODO: Allocate dynamically
 #define MAX_SAMPLES 16
 
@@ -56,6 +63,7 @@ using google::dense_hash_set;
 __thread int read_length;
 __thread int min_contig_length;
 __thread int kmer_size;
+__thread int kmer_words;
 __thread int min_node_freq;
 __thread int min_base_quality;
 __thread double min_edge_ratio;
@@ -109,23 +117,42 @@ uint64_t MurmurHash64A ( const void * key, int len, uint64_t seed )
 }
 
 
-struct eqstr
+// Graph key.  Hash is computed over the kmer bases, so table layout (and thus traversal order)
+// does not depend upon the packed representation.
+struct kmer_key {
+	uint64_t hash;
+	uint64_t words[];
+};
+
+__thread struct kmer_key* deleted_kmer_key;
+
+struct eqkmer
 {
-  bool operator()(const char* s1, const char* s2) const
+  bool operator()(const struct kmer_key* k1, const struct kmer_key* k2) const
   {
-    return (s1 == s2) || (s1 && s2 && strncmp(s1, s2, kmer_size) == 0);
+    if (k1 == k2) {
+      return true;
+    }
+
+    // Empty and deleted keys only match themselves
+    if (k1 == NULL || k2 == NULL || k1 == deleted_kmer_key || k2 == deleted_kmer_key) {
+      return false;
+    }
+
+    return k1->hash == k2->hash && memcmp(k1->words, k2->words, kmer_words * sizeof(uint64_t)) == 0;
   }
 };
 
-struct my_hash
+struct kmer_hash
 {
-	uint64_t operator()(const char* kmer) const
+	uint64_t operator()(const struct kmer_key* key) const
 	{
-		return MurmurHash64A(kmer, kmer_size, 97);
-		//return chunk;
+		return key->hash;
 	}
 };
 
+typedef dense_hash_map<const struct kmer_key*, struct node*, kmer_hash, eqkmer> kmer_map;
+
 struct eqint
 {
   bool operator()(int i1, int i2) const
@@ -136,13 +163,22 @@ struct eqint
 
 struct struct_pool {
 	struct node_pool* node_pool;
-	struct read_pool* read_pool;
+	struct arena* arena;
+};
+
+#define ARENA_BLOCK_SIZE 1048576
+
+// Bump allocator for edges, keys and per node arrays.  Freed in one shot after assembly.
+struct arena {
+	vector<char*>* blocks;
+	char* curr;
+	size_t remaining;
+	// Released edges available for reuse
+	struct linked_node* free_links;
 };
 
 #define NODES_PER_BLOCK 10000
 #define MAX_NODE_BLOCKS 500000
-#define READS_PER_BLOCK 10000
-#define MAX_READ_BLOCKS 100000
 
 struct node_pool {
 	struct node** nodes;
@@ -150,23 +186,18 @@ struct node_pool {
 	int node_idx;
 };
 
-struct read_pool {
-	char** reads;
-	int block_idx;
-	int read_idx;
-};
-
 struct node {
 
-	//TODO: Collapse from 8 to 2 bits.  Only store as key.
 	char* kmer;
+	const struct kmer_key* key;
 	char* seq;
 	char kmer_seq[2];
 	//TODO: Convert to stl?
 	struct linked_node* toNodes;
 	struct linked_node* fromNodes;
 	char* contributingRead;
-	unsigned char qual_sums[MAX_KMER_LEN];
+	// kmer_size entries allocated from the arena
+	unsigned char* qual_sums;
 	unsigned short sample_frequency[MAX_SAMPLES];
 	int id;
 	unsigned short frequency;
@@ -175,6 +206,9 @@ struct node {
 	char is_condensed;
 	char is_filtered;
 	char is_root;
+	// Number of nodes and min frequency along the path collapsed into a condensed node
+	int condensed_count;
+	unsigned short condensed_min_freq;
 };
 
 struct linked_node {
@@ -182,12 +216,49 @@ struct linked_node {
 	struct linked_node* next;
 };
 
-int compare(const char* s1, const char* s2) {
-	return (s1 == s2) || (s1 && s2 && strcmp(s1, s2) == 0);
+// Reads are not null terminated.  They are all padded to read_length.
+int compare_read(const char* s1, const char* s2) {
+	return (s1 == s2) || (s1 && s2 && memcmp(s1, s2, read_length) == 0);
 }
 
-int compare_kmer(const char* s1, const char* s2) {
-	return (s1 == s2) || (s1 && s2 && strncmp(s1, s2, kmer_size) == 0);
+void* arena_alloc(struct arena* arena, size_t size) {
+	// Keep allocations 8 byte aligned
+	size = (size + 7) & ~((size_t) 7);
+
+	if (size > arena->remaining) {
+		size_t block_size = size > ARENA_BLOCK_SIZE ? size : ARENA_BLOCK_SIZE;
+		arena->curr = (char*) malloc(block_size);
+		if (arena->curr == NULL) {
+			fprintf(stderr,"Unable to allocate arena block\n");
+			exit(-1);
+		}
+		arena->blocks->push_back(arena->curr);
+		arena->remaining = block_size;
+	}
+
+	void* ptr = arena->curr;
+	arena->curr += size;
+	arena->remaining -= size;
+
+	return ptr;
+}
+
+struct linked_node* allocate_link(struct_pool* pool) {
+	struct arena* arena = pool->arena;
+	struct linked_node* link = arena->free_links;
+
+	if (link != NULL) {
+		arena->free_links = link->next;
+	} else {
+		link = (struct linked_node*) arena_alloc(arena, sizeof(struct linked_node));
+	}
+
+	return link;
+}
+
+void release_link(struct linked_node* link, struct_pool* pool) {
+	link->next = pool->arena->free_links;
+	pool->arena->free_links = link;
 }
 
 struct struct_pool* init_pool() {
@@ -200,30 +271,12 @@ struct struct_pool* init_pool() {
 	pool->node_pool->block_idx = 0;
 	pool->node_pool->node_idx = 0;
 
-	pool->read_pool = (struct read_pool*) calloc(1, sizeof(read_pool));
-	pool->read_pool->reads = (char**) calloc(MAX_READ_BLOCKS, sizeof(char*));
-	pool->read_pool->reads[0] = (char*) calloc(READS_PER_BLOCK, sizeof(char) * (read_length+1));
-	pool->read_pool->block_idx = 0;
-	pool->read_pool->read_idx = 0;
+	pool->arena = (struct arena*) calloc(1, sizeof(arena));
+	pool->arena->blocks = new vector<char*>();
 
 	return pool;
 }
 
-char* allocate_read(struct_pool* pool) {
-	if (pool->read_pool->block_idx > MAX_READ_BLOCKS) {
-		fprintf(stderr,"READ BLOCK INDEX TOO BIG!!!!\n");
-		exit(-1);
-	}
-
-	if (pool->read_pool->read_idx >= READS_PER_BLOCK) {
-		pool->read_pool->block_idx++;
-		pool->read_pool->read_idx = 0;
-		pool->read_pool->reads[pool->read_pool->block_idx] = (char*) calloc(READS_PER_BLOCK, sizeof(char) * (read_length+1));
-	}
-
-	return &pool->read_pool->reads[pool->read_pool->block_idx][pool->read_pool->read_idx++ * (read_length+1)];
-}
-
 struct node* allocate_node(struct_pool* pool) {
 	if (pool->node_pool->block_idx >= MAX_NODE_BLOCKS) {
 		fprintf(stderr,"NODE BLOCK INDEX TOO BIG!!!!\n");
@@ -243,7 +296,7 @@ unsigned char phred33(char ch) {
 	return ch - '!';
 }
 
-struct node* new_node(char sample_id, char* seq, char* contributingRead, struct_pool* pool, int strand, char* quals) {
+struct node* new_node(char sample_id, char* seq, const struct kmer_key* key, char* contributingRead, struct_pool* pool, int strand, char* quals) {
 
 //	node* my_node = (node*) malloc(sizeof(node));
 	node* my_node = allocate_node(pool);
@@ -252,6 +305,14 @@ struct node* new_node(char sample_id, char* seq, char* contributingRead, struct_
 
 //	memset(my_node, 0, sizeof(node));
 	my_node->kmer = seq;
+
+	// Copy search key into arena for use as the map key
+	size_t key_size = sizeof(struct kmer_key) + kmer_words * sizeof(uint64_t);
+	struct kmer_key* node_key = (struct kmer_key*) arena_alloc(pool->arena, key_size);
+	memcpy(node_key, key, key_size);
+	my_node->key = node_key;
+
+	my_node->qual_sums = (unsigned char*) arena_alloc(pool->arena, kmer_size);
 //	strcpy(my_node->contributingRead, contributingRead);
 	my_node->contributingRead = contributingRead;
 	my_node->frequency = 1;
@@ -272,8 +333,9 @@ char* get_kmer(int idx, char* sequence) {
 int is_node_in_list(struct node* node, struct linked_node* list) {
 	struct linked_node* ptr = list;
 
+	// Nodes are unique per kmer
 	while (ptr != NULL) {
-		if (compare_kmer(ptr->node->kmer, node->kmer)) {
+		if (ptr->node == node) {
 			return 1;
 		}
 		ptr = ptr->next;
@@ -282,16 +344,16 @@ int is_node_in_list(struct node* node, struct linked_node* list) {
 	return 0;
 }
 
-void link_nodes(struct node* from_node, struct node* to_node) {
+void link_nodes(struct node* from_node, struct node* to_node, struct_pool* pool) {
 	if (!is_node_in_list(to_node, from_node->toNodes)) {
-		struct linked_node* to_link = (linked_node*) malloc(sizeof(linked_node));
+		struct linked_node* to_link = allocate_link(pool);
 		to_link->node = to_node;
 		to_link->next = from_node->toNodes;
 		from_node->toNodes = to_link;
 	}
 
 	if (!is_node_in_list(from_node, to_node->fromNodes)) {
-		struct linked_node* from_link = (linked_node*) malloc(sizeof(linked_node));
+		struct linked_node* from_link = allocate_link(pool);
 		from_link->node = from_node;
 		from_link->next = to_node->fromNodes;
 		to_node->fromNodes = from_link;
@@ -308,7 +370,7 @@ void increment_node_freq(char sample_id, struct node* node, char* read_seq, int
 	}
 
 	if (!(node->hasMultipleUniqueReads) &&
-		(!compare(node->contributingRead, read_seq) || node->contributing_strand != (char) strand)) {
+		(!compare_read(node->contributingRead, read_seq) || node->contributing_strand != (char) strand)) {
 		node->hasMultipleUniqueReads = 1;
 	}
 
@@ -322,56 +384,111 @@ void increment_node_freq(char sample_id, struct node* node, char* read_seq, int
 	}
 }
 
-int include_kmer(char* sequence, char*qual, int idx) {
+// 2 bit base encoding.  -1 for bases that cannot be packed (N and other ambiguity codes).
+inline int base_code(char base) {
+	switch (base) {
+		case 'A': return 0;
+		case 'C': return 1;
+		case 'G': return 2;
+		case 'T': return 3;
+		default: return -1;
+	}
+}
 
-	int include = 1;
+// Shift key one base towards the start of the kmer, dropping the first base
+inline void shift_key(struct kmer_key* key) {
+	for (int w=0; w<kmer_words-1; w++) {
+		key->words[w] = (key->words[w] >> 2) | (key->words[w+1] << 62);
+	}
+	key->words[kmer_words-1] >>= 2;
+}
 
-	for (int i=idx; i<idx+kmer_size; i++) {
-		// Discard kmers with ambiguous bases
-		if (sequence[i] == 'N') {
-			include = 0;
-			break;
+inline void set_key_base(struct kmer_key* key, int idx, int code) {
+	key->words[idx / BASES_PER_WORD] |= ((uint64_t) code) << (2 * (idx % BASES_PER_WORD));
+}
+
+// Words per kmer key: hash followed by the packed bases
+inline int key_stride() {
+	return 1 + kmer_words;
+}
+
+// Computes the key of each kmer in the read.  keys holds key_stride() words per kmer start.
+// Kmers containing ambiguous or low quality bases are excluded.
+void compute_kmer_keys(const char* sequence, const char* qual, uint64_t* keys, char* included) {
+
+	// Packed key for the kmer ending at the current base, rolled along the read
+	uint64_t key_buf[1 + MAX_KMER_WORDS];
+	memset(key_buf, 0, sizeof(key_buf));
+	struct kmer_key* key = (struct kmer_key*) key_buf;
+	int stride = key_stride();
+
+	int last_excluded = -1;
+
+	for (int j=0; j<read_length; j++) {
+
+		int code = base_code(sequence[j]);
+
+		if (code < 0 || phred33(qual[j]) < MIN_BASE_QUALITY) {
+			last_excluded = j;
+			code = 0;
 		}
 
-		// Discard kmers with low base qualities
+		if (j >= kmer_size) {
+			shift_key(key);
+			set_key_base(key, kmer_size-1, code);
+		} else {
+			set_key_base(key, j, code);
+		}
 
-//		if (qual[i] - '!' < min_base_quality) {
-		if (phred33(qual[i]) < MIN_BASE_QUALITY) {
-			include = 0;
-			break;
+		// Kmer start
+		int i = j - kmer_size + 1;
+
+		if (i < 0) {
+			continue;
 		}
-	}
 
-	return include;
+		if (last_excluded < i) {
+			key->hash = MurmurHash64A(&sequence[i], kmer_size, 97);
+			memcpy(&keys[i * stride], key_buf, stride * sizeof(uint64_t));
+			included[i] = 1;
+		} else {
+			included[i] = 0;
+		}
+	}
 }
 
-void add_to_graph(char sample_id, char* sequence, dense_hash_map<const char*, struct node*, my_hash, eqstr>* nodes, struct_pool* pool, char* qual, int strand) {
+void add_to_graph(char sample_id, char* sequence, kmer_map* nodes, struct_pool* pool, char* qual, int strand,
+		const uint64_t* keys, const char* included) {
 
 	struct node* prev = 0;
+	int stride = key_stride();
 
 	for (int i=0; i<=read_length-kmer_size; i++) {
 
-		if (include_kmer(sequence, qual, i)) {
+		if (included[i]) {
+			const struct kmer_key* key = (const struct kmer_key*) &keys[i * stride];
 			char* kmer = get_kmer(i, sequence);
 			char* kmer_qual = get_kmer(i, qual);
 
-			struct node* curr = (*nodes)[kmer];
+			struct node* curr = NULL;
+			kmer_map::const_iterator it = nodes->find(key);
 
-			if (curr == NULL) {
-				curr = new_node(sample_id, kmer, sequence, pool, strand, kmer_qual);
+			if (it == nodes->end()) {
+				curr = new_node(sample_id, kmer, key, sequence, pool, strand, kmer_qual);
 
 				if (curr == NULL) {
-					fprintf(stderr,"Null node for kmer: %s\n", kmer);
+					fprintf(stderr,"Null node for kmer: %.*s\n", kmer_size, kmer);
 					exit(-1);
 				}
 
-				(*nodes)[kmer] = curr;
+				(*nodes)[curr->key] = curr;
 			} else {
+				curr = it->second;
 				increment_node_freq(sample_id, curr, sequence, strand, kmer_qual);
 			}
 
 			if (prev != NULL) {
-				link_nodes(prev, curr);
+				link_nodes(prev, curr, pool);
 			}
 
 			prev = curr;
@@ -381,14 +498,202 @@ void add_to_graph(char sample_id, char* sequence, dense_hash_map<const char*, st
 	}
 }
 
-void build_graph2(const char* input, dense_hash_map<const char*, struct node*, my_hash, eqstr>* nodes, struct_pool* pool) {
-	int input_len = strlen(input);
+// Kmer keys of a single read record for one kmer size
+struct kmer_profile {
+	uint64_t id;
+	int kmer_size;
+	int read_length;
+	// Bases followed by quals, used to verify matches
+	char* record;
+	uint64_t* keys;
+	char* included;
+	size_t bytes;
+	// Number of assemblies currently reading the keys
+	int users;
+	char is_evicted;
+	// Profiles sharing an id
+	struct kmer_profile* next_in_bucket;
+	// Insertion order for eviction
+	struct kmer_profile* next_in_queue;
+};
+
+// Kmer keys shared by the overlapping regions of a chromosome chunk, so that reads in region
+// overlaps are kmerized once per kmer size.  Regions are assembled concurrently, so access is
+// guarded by the lock.  The oldest profiles are evicted once max_bytes is exceeded and are
+// freed when no longer in use.
+struct kmer_cache {
+	pthread_mutex_t lock;
+	dense_hash_map<uint64_t, struct kmer_profile*>* profiles;
+	struct kmer_profile* oldest;
+	struct kmer_profile* newest;
+	size_t bytes;
+	size_t max_bytes;
+	long hits;
+	long misses;
+};
+
+// Ids 0 and 1 are reserved as the empty and deleted keys
+#define MIN_PROFILE_ID 2
+
+struct kmer_cache* new_kmer_cache(size_t max_bytes) {
+	struct kmer_cache* cache = (struct kmer_cache*) calloc(1, sizeof(struct kmer_cache));
+	pthread_mutex_init(&cache->lock, NULL);
+	cache->profiles = new dense_hash_map<uint64_t, struct kmer_profile*>();
+	cache->profiles->set_empty_key(0);
+	cache->profiles->set_deleted_key(1);
+	cache->max_bytes = max_bytes;
+	return cache;
+}
+
+void free_kmer_profile(struct kmer_profile* profile) {
+	free(profile->record);
+	free(profile->keys);
+	free(profile->included);
+	free(profile);
+}
+
+// Caller must hold the cache lock
+void evict_kmer_profile(struct kmer_cache* cache, struct kmer_profile* profile) {
+	dense_hash_map<uint64_t, struct kmer_profile*>::iterator it = cache->profiles->find(profile->id);
+
+	if (it->second == profile) {
+		if (profile->next_in_bucket == NULL) {
+			cache->profiles->erase(it);
+		} else {
+			it->second = profile->next_in_bucket;
+		}
+	} else {
+		struct kmer_profile* prev = it->second;
+		while (prev->next_in_bucket != profile) {
+			prev = prev->next_in_bucket;
+		}
+		prev->next_in_bucket = profile->next_in_bucket;
+	}
+
+	cache->bytes -= profile->bytes;
+
+	if (profile->users == 0) {
+		free_kmer_profile(profile);
+	} else {
+		profile->is_evicted = 1;
+	}
+}
+
+// Caller must hold the cache lock
+struct kmer_profile* find_kmer_profile(struct kmer_cache* cache, uint64_t id, const char* record) {
+	dense_hash_map<uint64_t, struct kmer_profile*>::const_iterator it = cache->profiles->find(id);
+
+	if (it != cache->profiles->end()) {
+		for (struct kmer_profile* profile = it->second; profile != NULL; profile = profile->next_in_bucket) {
+			if (profile->kmer_size == kmer_size && profile->read_length == read_length &&
+				memcmp(profile->record, record, read_length*2) == 0) {
+
+				return profile;
+			}
+		}
+	}
+
+	return NULL;
+}
+
+// Returns the kmer keys of the record (bases followed by quals) for the current kmer size,
+// computing and caching them if not present.  The profile must be released after use.
+struct kmer_profile* get_kmer_profile(struct kmer_cache* cache, const char* record) {
+	uint64_t id = MurmurHash64A(record, read_length*2, kmer_size);
+	if (id < MIN_PROFILE_ID) {
+		id += MIN_PROFILE_ID;
+	}
+
+	pthread_mutex_lock(&cache->lock);
+	struct kmer_profile* profile = find_kmer_profile(cache, id, record);
+	if (profile != NULL) {
+		profile->users++;
+		cache->hits++;
+	} else {
+		cache->misses++;
+	}
+	pthread_mutex_unlock(&cache->lock);
+
+	if (profile != NULL) {
+		return profile;
+	}
+
+	int num_kmers = read_length - kmer_size + 1;
+	profile = (struct kmer_profile*) calloc(1, sizeof(struct kmer_profile));
+	profile->id = id;
+	profile->kmer_size = kmer_size;
+	profile->read_length = read_length;
+	profile->record = (char*) malloc(read_length*2);
+	memcpy(profile->record, record, read_length*2);
+	profile->keys = (uint64_t*) malloc(num_kmers * key_stride() * sizeof(uint64_t));
+	profile->included = (char*) malloc(num_kmers);
+	profile->bytes = sizeof(struct kmer_profile) + read_length*2 + num_kmers * (key_stride() * sizeof(uint64_t) + 1);
+	profile->users = 1;
+
+	compute_kmer_keys(record, &record[read_length], profile->keys, profile->included);
+
+	pthread_mutex_lock(&cache->lock);
+
+	// Another region may have cached the same read in the meantime.  Either copy is valid.
+	dense_hash_map<uint64_t, struct kmer_profile*>::iterator it = cache->profiles->find(id);
+	profile->next_in_bucket = it != cache->profiles->end() ? it->second : NULL;
+	(*cache->profiles)[id] = profile;
+
+	if (cache->newest != NULL) {
+		cache->newest->next_in_queue = profile;
+	} else {
+		cache->oldest = profile;
+	}
+	cache->newest = profile;
+	cache->bytes += profile->bytes;
+
+	while (cache->bytes > cache->max_bytes && cache->oldest != profile) {
+		struct kmer_profile* oldest = cache->oldest;
+		cache->oldest = oldest->next_in_queue;
+		evict_kmer_profile(cache, oldest);
+	}
+
+	pthread_mutex_unlock(&cache->lock);
+
+	return profile;
+}
+
+void release_kmer_profile(struct kmer_cache* cache, struct kmer_profile* profile) {
+	pthread_mutex_lock(&cache->lock);
+	profile->users--;
+	if (profile->is_evicted && profile->users == 0) {
+		free_kmer_profile(profile);
+	}
+	pthread_mutex_unlock(&cache->lock);
+}
+
+// No assemblies may be using the cache
+void free_kmer_cache(struct kmer_cache* cache) {
+	struct kmer_profile* profile = cache->oldest;
+	while (profile != NULL) {
+		struct kmer_profile* next = profile->next_in_queue;
+		free_kmer_profile(profile);
+		profile = next;
+	}
+
+	delete cache->profiles;
+	pthread_mutex_destroy(&cache->lock);
+	free(cache);
+}
+
+// Input is num_records fixed length records of:
+// sample id, strand ('0' or '1'), bases and quals each padded to read_length
+// Kmer keys are read from and added to the cache if it is not null.
+void build_graph2(const char* input, int num_records, kmer_map* nodes, struct_pool* pool, struct kmer_cache* cache) {
 	int record_len = read_length*2 + 2;
-	int num_records = input_len / record_len;
 	int record = 0;
 	const char* ptr = input;
 	int num_reads = 0;
 
+	int num_kmers = read_length >= kmer_size ? read_length - kmer_size + 1 : 0;
+	vector<uint64_t> keys(num_kmers * key_stride() + 1);
+	vector<char> included(num_kmers + 1);
+
 	while ((record < num_records) && (nodes->size() < max_nodes)) {
 		ptr = &(input[record*record_len]);
 
@@ -402,20 +707,24 @@ void build_graph2(const char* input, dense_hash_map<const char*, struct node*, m
 			strand = 1;
 		} else {
 			fprintf(stderr,"Initial char in input invalid: %c\n", ptr[1]);
-			fprintf(stderr,"ERROR!  INVALID INPUT:\n===========================%s\n===========================\n", input);
+			fprintf(stderr,"ERROR!  INVALID INPUT:\n===========================%.*s\n===========================\n", num_records*record_len, input);
 			exit(-1);
 		}
 
-		// TODO: skip copying the input read.  Downstream code appears to depend
-		// upon null terminator.
-		char* read_ptr = allocate_read(pool);
-//		memset(read_ptr, 0, read_length+1);
-		memcpy(read_ptr, &(ptr[2]), read_length);
-
-//		char* read_ptr = (char*) &(ptr[1]);
-
+		// Nodes reference reads in place.  Input must remain valid until assembly completes.
+		char* read_ptr = (char*) &(ptr[2]);
 		char* qual_ptr = (char*) &(ptr[read_length+2]);
-		add_to_graph(sample_id, read_ptr, nodes, pool, qual_ptr, strand);
+
+		if (num_kmers == 0) {
+			// Read too short to contain a kmer
+		} else if (cache != NULL) {
+			struct kmer_profile* profile = get_kmer_profile(cache, read_ptr);
+			add_to_graph(sample_id, read_ptr, nodes, pool, qual_ptr, strand, profile->keys, profile->included);
+			release_kmer_profile(cache, profile);
+		} else {
+			compute_kmer_keys(read_ptr, qual_ptr, &keys[0], &included[0]);
+			add_to_graph(sample_id, read_ptr, nodes, pool, qual_ptr, strand, &keys[0], &included[0]);
+		}
 		record++;
 	}
 
@@ -457,13 +766,13 @@ void build_graph(const char* read_file, sparse_hash_map<const char*, struct node
 }
 */
 
-struct linked_node* remove_node_from_list(struct node* node, struct linked_node* list) {
+struct linked_node* remove_node_from_list(struct node* node, struct linked_node* list, struct_pool* pool) {
 	struct linked_node* node_ptr = list;
 	struct linked_node* prev_ptr = NULL;
 
 	char is_found = false;
 	while ((node_ptr != NULL) && (!is_found)) {
-		if (strncmp(node_ptr->node->kmer, node->kmer, kmer_size) == 0) {
+		if (node_ptr->node == node) {
 			if (prev_ptr == NULL) {
 				// Set head of list to next elem
 				list = list->next;
@@ -472,8 +781,7 @@ struct linked_node* remove_node_from_list(struct node* node, struct linked_node*
 				prev_ptr->next = node_ptr->next;
 			}
 
-			// Free linked_node
-			free(node_ptr);
+			release_link(node_ptr, pool);
 			is_found = true;
 		} else {
 			prev_ptr = node_ptr;
@@ -484,11 +792,11 @@ struct linked_node* remove_node_from_list(struct node* node, struct linked_node*
 	return list;
 }
 
-void cleanup(struct linked_node* linked_nodes) {
+void cleanup(struct linked_node* linked_nodes, struct_pool* pool) {
 	struct linked_node* ptr = linked_nodes;
 	while (ptr != NULL) {
 		struct linked_node* next = ptr->next;
-		free(ptr);
+		release_link(ptr, pool);
 		ptr = next;
 	}
 }
@@ -506,26 +814,26 @@ int is_base_quality_good(struct node* node) {
 	return is_good;
 }
 
-void remove_node_and_cleanup(const char* key, struct node* node, dense_hash_map<const char*, struct node*, my_hash, eqstr>* nodes) {
+void remove_node_and_cleanup(const struct kmer_key* key, struct node* node, kmer_map* nodes, struct_pool* pool) {
 	// Remove node from "from" lists
 	struct linked_node* to_node = node->toNodes;
 	while (to_node != NULL) {
-		to_node->node->fromNodes = remove_node_from_list(node, to_node->node->fromNodes);
+		to_node->node->fromNodes = remove_node_from_list(node, to_node->node->fromNodes, pool);
 		to_node = to_node->next;
 	}
 
 	// Remove node from "to" lists
 	struct linked_node* from_node = node->fromNodes;
 	while (from_node != NULL) {
-		from_node->node->toNodes = remove_node_from_list(node, from_node->node->toNodes);
+		from_node->node->toNodes = remove_node_from_list(node, from_node->node->toNodes, pool);
 		from_node = from_node->next;
 	}
 
 	// Remove node from map
 	nodes->erase(key);
-	cleanup(node->toNodes);
+	cleanup(node->toNodes, pool);
 	node->toNodes = NULL;
-	cleanup(node->fromNodes);
+	cleanup(node->fromNodes, pool);
 	node->fromNodes = NULL;
 }
 
@@ -546,14 +854,14 @@ char is_min_edge_ratio_reached(int per_sample_total_freq[], struct node* node) {
 	return exceeds_min_ratio;
 }
 
-void prune_low_frequency_edges(dense_hash_map<const char*, struct node*, my_hash, eqstr>* nodes) {
+void prune_low_frequency_edges(kmer_map* nodes, struct_pool* pool) {
 
 	long removed_edge_count = 0;
 
-	for (dense_hash_map<const char*, struct node*, my_hash, eqstr>::const_iterator it = nodes->begin();
+	for (kmer_map::const_iterator it = nodes->begin();
 				 it != nodes->end(); ++it) {
 
-		const char* key = it->first;
+		const struct kmer_key* key = it->first;
 		node* curr_node = it->second;
 
 		if (curr_node != NULL) {
@@ -599,8 +907,8 @@ void prune_low_frequency_edges(dense_hash_map<const char*, struct node*, my_hash
 			for (vector<node*>::const_iterator iter = to_nodes_to_remove.begin(); iter != to_nodes_to_remove.end(); ++iter ) {
 				// Remove edges in each direction
 				node* node_to_remove = *(iter);
-				node_to_remove->fromNodes = remove_node_from_list(curr_node, node_to_remove->fromNodes);
-				curr_node->toNodes = remove_node_from_list(node_to_remove, curr_node->toNodes);
+				node_to_remove->fromNodes = remove_node_from_list(curr_node, node_to_remove->fromNodes, pool);
+				curr_node->toNodes = remove_node_from_list(node_to_remove, curr_node->toNodes, pool);
 				removed_edge_count += 1;
 			}
 
@@ -644,8 +952,8 @@ void prune_low_frequency_edges(dense_hash_map<const char*, struct node*, my_hash
 			for (vector<node*>::const_iterator iter = from_nodes_to_remove.begin(); iter != from_nodes_to_remove.end(); ++iter ) {
 				// Remove edges in each direction
 				node* node_to_remove = *(iter);
-				node_to_remove->toNodes = remove_node_from_list(curr_node, node_to_remove->toNodes);
-				curr_node->fromNodes = remove_node_from_list(node_to_remove, curr_node->fromNodes);
+				node_to_remove->toNodes = remove_node_from_list(curr_node, node_to_remove->toNodes, pool);
+				curr_node->fromNodes = remove_node_from_list(node_to_remove, curr_node->fromNodes, pool);
 				removed_edge_count += 1;
 			}
 		}
@@ -655,17 +963,17 @@ void prune_low_frequency_edges(dense_hash_map<const char*, struct node*, my_hash
 }
 
 
-void prune_graph(dense_hash_map<const char*, struct node*, my_hash, eqstr>* nodes, char isUnalignedRegion) {
+void prune_graph(kmer_map* nodes, char isUnalignedRegion, struct_pool* pool) {
 
 	// First prune kmers that do not reach base quality sum threshold
-	for (dense_hash_map<const char*, struct node*, my_hash, eqstr>::const_iterator it = nodes->begin();
+	for (kmer_map::const_iterator it = nodes->begin();
 				 it != nodes->end(); ++it) {
 
-		const char* key = it->first;
+		const struct kmer_key* key = it->first;
 		struct node* node = it->second;
 
 		if (node != NULL && !is_base_quality_good(node)) {
-			remove_node_and_cleanup(key, node, nodes);
+			remove_node_and_cleanup(key, node, nodes, pool);
 		}
 	}
 
@@ -686,31 +994,31 @@ void prune_graph(dense_hash_map<const char*, struct node*, my_hash, eqstr>* node
 	*/
 
 	if (freq > 1) {
-		for (dense_hash_map<const char*, struct node*, my_hash, eqstr>::const_iterator it = nodes->begin();
+		for (kmer_map::const_iterator it = nodes->begin();
 					 it != nodes->end(); ++it) {
 
-			const char* key = it->first;
+			const struct kmer_key* key = it->first;
 			struct node* node = it->second;
 
 			if ((node != NULL) && ((node->frequency < freq) || (!(node->hasMultipleUniqueReads)))) {
-				remove_node_and_cleanup(key, node, nodes);
+				remove_node_and_cleanup(key, node, nodes, pool);
 			}
 		}
 	}
 
 //	fprintf(stderr,"Remaining nodes after pruning step 2: %d\n", nodes->size());
 
-	prune_low_frequency_edges(nodes);
+	prune_low_frequency_edges(nodes, pool);
 
 	// Final pass through cleaning up nodes that are unreachable
-	for (dense_hash_map<const char*, struct node*, my_hash, eqstr>::const_iterator it = nodes->begin();
+	for (kmer_map::const_iterator it = nodes->begin();
 				 it != nodes->end(); ++it) {
 
-		const char* key = it->first;
+		const struct kmer_key* key = it->first;
 		struct node* node = it->second;
 
 		if (node != NULL && node->toNodes == NULL && node->fromNodes == NULL) {
-			remove_node_and_cleanup(key, node, nodes);
+			remove_node_and_cleanup(key, node, nodes, pool);
 		}
 	}
 
@@ -759,7 +1067,7 @@ int is_root(struct node* node) {
 			// Identify nodes that point to themselves with no other incoming edges.
 			// This will be cleaned up during contig building.
 			struct linked_node* from = node->fromNodes;
-			if (from->next == NULL && (strncmp(node->kmer, from->node->kmer, kmer_size) == 0)) {
+			if (from->next == NULL && from->node == node) {
 				is_root = 1;
 			}
 		}
@@ -768,12 +1076,12 @@ int is_root(struct node* node) {
 	return is_root;
 }
 
-struct linked_node* identify_root_nodes(dense_hash_map<const char*, struct node*, my_hash, eqstr>* nodes) {
+struct linked_node* identify_root_nodes(kmer_map* nodes, struct_pool* pool) {
 
 	struct linked_node* root_nodes = NULL;
 	int count = 0;
 
-	for (dense_hash_map<const char*, struct node*, my_hash, eqstr>::const_iterator it = nodes->begin();
+	for (kmer_map::const_iterator it = nodes->begin();
 	         it != nodes->end(); ++it) {
 		struct node* node = it->second;
 
@@ -783,7 +1091,7 @@ struct linked_node* identify_root_nodes(dense_hash_map<const char*, struct node*
 
 		if (is_root(node)) {
 			struct linked_node* next = root_nodes;
-			root_nodes = (linked_node*) malloc(sizeof(linked_node));
+			root_nodes = allocate_link(pool);
 			root_nodes->node = node;
 			root_nodes->next = next;
 			node->is_root = 1;
@@ -809,9 +1117,19 @@ struct contig {
 	double score;
 //	int size;
 	int real_size;
+	int num_nodes;
+	int min_freq;
 	char is_repeat;
 };
 
+// Contig emitted by the assembler along with path statistics
+struct contig_output {
+	std::string seq;
+	double score;
+	int num_nodes;
+	int min_freq;
+};
+
 struct contig* new_contig() {
 	struct contig* curr_contig;
 	curr_contig = (contig*) calloc(1, sizeof(contig));
@@ -822,6 +1140,8 @@ struct contig* new_contig() {
 	curr_contig->visited_nodes = new dense_hash_set<int, std::tr1::hash<int>, eqint>();
 	curr_contig->visited_nodes->set_empty_key(0);
 	curr_contig->score = 0;
+	curr_contig->num_nodes = 0;
+	curr_contig->min_freq = MAX_FREQUENCY;
 	curr_contig->fragments = new vector<char*>();
 
 	return curr_contig;
@@ -841,6 +1161,8 @@ struct contig* copy_contig(struct contig* orig) {
 	copy->is_repeat = orig->is_repeat;
 	copy->visited_nodes = new dense_hash_set<int, std::tr1::hash<int>, eqint>(*orig->visited_nodes);
 	copy->score = orig->score;
+	copy->num_nodes = orig->num_nodes;
+	copy->min_freq = orig->min_freq;
 	return copy;
 }
 
@@ -855,34 +1177,26 @@ char is_node_visited(struct contig* contig, struct node* node) {
 	return it != contig->visited_nodes->end();
 }
 
-void output_contig(struct contig* contig, int& contig_count, const char* prefix, char* contigs) {
-
+void output_contig(struct contig* contig, int& contig_count, vector<contig_output>& contigs) {
 
-//	if (strlen(contigs) + strlen(contig->seq) > MAX_TOTAL_CONTIG_LEN) {
-//		fprintf(stderr,"contig string too long: %s\n", prefix);
-//		exit(-1);
-//	}
-
-//	if (strlen(contig->seq) >= min_contig_length) {
 	if (contig->real_size >= min_contig_length) {
 		if (!contig->is_repeat) {
 
-			char buf[MAX_CONTIG_SIZE*2+1];
-			buf[0] = '\0';
+			contig_output output;
+			output.score = contig->score;
+			output.num_nodes = contig->num_nodes;
+			output.min_freq = contig->min_freq;
 
 			for (vector<char*>::iterator it = contig->fragments->begin(); it != contig->fragments->end(); ++it) {
-				int to_cat = MAX_CONTIG_SIZE - strlen(buf);
+				int to_cat = MAX_CONTIG_SIZE - output.seq.length();
 				if (to_cat <= 0) {
 					break;
 				}
-				strncat(buf, *it, to_cat);
+				output.seq.append(*it, strnlen(*it, to_cat));
 			}
 
-			char id_line[1024];
-			sprintf(id_line, ">%s_%d_%f\n", prefix, contig_count++, contig->score);
-			strcat(contigs, id_line);
-			strcat(contigs, buf);
-			strcat(contigs, "\n");
+			contigs.push_back(output);
+			contig_count++;
 		}
 	}
 }
@@ -932,6 +1246,19 @@ void update_contig_scores(std::priority_queue<double, std::vector<double>, std::
 // Append curr node to contig
 void append_to_contig(struct contig* contig, vector<char*>& all_contig_fragments, char entire_kmer) {
 
+	struct node* node = contig->curr_node;
+	int freq = node->frequency;
+	if (node->is_condensed) {
+		contig->num_nodes += node->condensed_count;
+		freq = node->condensed_min_freq;
+	} else {
+		contig->num_nodes += 1;
+	}
+
+	if (freq < contig->min_freq) {
+		contig->min_freq = freq;
+	}
+
 	if (contig->curr_node->is_condensed) {
 		// Add condensed node sequence to fragment vector
 		contig->fragments->push_back(contig->curr_node->seq);
@@ -960,7 +1287,7 @@ int build_contigs(
 		int max_contigs,
 		char stop_on_repeat,
 		char shadow_mode,
-		char* contig_str,
+		vector<contig_output>& contig_outputs,
 		std::priority_queue<double, std::vector<double>, std::greater<double> > & contig_scores,
 		vector<char*> & all_contig_fragments) {
 
@@ -1090,7 +1417,7 @@ int build_contigs(
 			struct contig* contig = contigs_to_output.top();
 
 			if (is_contig_score_ok(contig_scores, contig->score)) {
-				output_contig(contig, contig_count, prefix, contig_str);
+				output_contig(contig, contig_count, contig_outputs);
 			}
 
 			contigs_to_output.pop();
@@ -1127,19 +1454,16 @@ int build_contigs(
 	return status;
 }
 
-void cleanup(dense_hash_map<const char*, struct node*, my_hash, eqstr>* nodes, struct struct_pool* pool, struct linked_node* root_nodes) {
-
-	// Free linked lists
-	for (dense_hash_map<const char*, struct node*, my_hash, eqstr>::const_iterator it = nodes->begin();
-	         it != nodes->end(); ++it) {
-		struct node* node = it->second;
+void cleanup(struct struct_pool* pool) {
 
-		if (node != NULL) {
-			cleanup(node->toNodes);
-			cleanup(node->fromNodes);
-		}
+	// Edges, keys and qual sums are all arena allocated
+	for (vector<char*>::iterator it = pool->arena->blocks->begin(); it != pool->arena->blocks->end(); ++it) {
+		free(*it);
 	}
 
+	delete pool->arena->blocks;
+	free(pool->arena);
+
 	for (int i=0; i<=pool->node_pool->block_idx; i++) {
 		free(pool->node_pool->nodes[i]);
 	}
@@ -1148,17 +1472,7 @@ void cleanup(dense_hash_map<const char*, struct node*, my_hash, eqstr>* nodes, s
 
 	free(pool->node_pool);
 
-	for (int i=0; i<=pool->read_pool->block_idx; i++) {
-		free(pool->read_pool->reads[i]);
-	}
-
-	free(pool->read_pool->reads);
-
-	free(pool->read_pool);
-
 	free(pool);
-
-	cleanup(root_nodes);
 }
 
 char has_one_incoming_edge(struct node* node) {
@@ -1209,8 +1523,8 @@ char* get_condensed_seq_buf() {
 }
 
 // NOTE: From nodes are invalid after this step!!!
-void condense_graph(dense_hash_map<const char*, struct node*, my_hash, eqstr>* nodes) {
-	for (dense_hash_map<const char*, struct node*, my_hash, eqstr>::const_iterator it = nodes->begin();
+void condense_graph(kmer_map* nodes, struct_pool* pool) {
+	for (kmer_map::const_iterator it = nodes->begin();
 	         it != nodes->end(); ++it) {
 		struct node* node = it->second;
 
@@ -1229,10 +1543,15 @@ void condense_graph(dense_hash_map<const char*, struct node*, my_hash, eqstr>* n
 				seq[idx++] = node->kmer[0];
 
 				int nodes_condensed = 1;
+				unsigned short min_freq = node->frequency;
 
 				while (next != NULL && has_one_incoming_edge(next) && nodes_condensed < MAX_CONTIG_SIZE) {
 					last = next->toNodes;
 
+					if (next->frequency < min_freq) {
+						min_freq = next->frequency;
+					}
+
 					if (next->toNodes != NULL) {
 						seq[idx++] = next->kmer[0];
 					} else {
@@ -1264,15 +1583,17 @@ void condense_graph(dense_hash_map<const char*, struct node*, my_hash, eqstr>* n
 				// Update node
 				node->seq = seq;
 				node->is_condensed = 1;
+				node->condensed_count = nodes_condensed;
+				node->condensed_min_freq = min_freq;
 
 				// Free original toNodes list
-				cleanup(node->toNodes);
+				cleanup(node->toNodes, pool);
 				// copy last toNodes to this node
 
 				if (last == NULL) {
 					node->toNodes = NULL;
 				} else {
-					struct linked_node* to_link = (linked_node*) malloc(sizeof(linked_node));
+					struct linked_node* to_link = allocate_link(pool);
 					node->toNodes = to_link;
 
 					while (last != NULL) {
@@ -1280,7 +1601,7 @@ void condense_graph(dense_hash_map<const char*, struct node*, my_hash, eqstr>* n
 						to_link->next = last->next;
 						last = last->next;
 						if (last != NULL) {
-							to_link->next = (linked_node*) malloc(sizeof(linked_node));
+							to_link->next = allocate_link(pool);
 							to_link = to_link->next;
 						}
 					}
@@ -1290,17 +1611,17 @@ void condense_graph(dense_hash_map<const char*, struct node*, my_hash, eqstr>* n
 	}
 }
 
-void dump_graph(dense_hash_map<const char*, struct node*, my_hash, eqstr>* nodes, const char* filename) {
+void dump_graph(kmer_map* nodes, const char* filename) {
 
 	fprintf(stderr, "Filename: %s\n", filename);
 	FILE* fp = fopen(filename, "w");
 
 	// Output edges
 	fprintf(fp, "digraph vdjer {\n//\tEdges\n");
-	for (dense_hash_map<const char*, struct node*, my_hash, eqstr>::const_iterator it = nodes->begin();
+	for (kmer_map::const_iterator it = nodes->begin();
 				 it != nodes->end(); ++it) {
 
-		const char* key = it->first;
+		const struct kmer_key* key = it->first;
 		node* curr_node = it->second;
 
 		if (!curr_node->is_filtered) {
@@ -1318,10 +1639,10 @@ void dump_graph(dense_hash_map<const char*, struct node*, my_hash, eqstr>* nodes
 
 	// Output vertices
 	fprintf(fp, "//\tVertices\n");
-	for (dense_hash_map<const char*, struct node*, my_hash, eqstr>::const_iterator it = nodes->begin();
+	for (kmer_map::const_iterator it = nodes->begin();
 				 it != nodes->end(); ++it) {
 
-		const char* key = it->first;
+		const struct kmer_key* key = it->first;
 		node* curr_node = it->second;
 
 		// Skip orphans
@@ -1359,25 +1680,21 @@ void dump_graph(dense_hash_map<const char*, struct node*, my_hash, eqstr>* nodes
 }
 
 
-char* assemble(const char* input,
-			  const char* output,
-			  const char* prefix,
-			  int truncate_on_repeat,
-			  int max_contigs,
-			  int max_paths_from_root,
-			  int input_read_length,
-			  int input_kmer_size) {
-
-
-	// output input params to file here.
-//	FILE *fp = fopen(prefix, "w+");
-//
-//	fprintf(fp, "%s\n%d\n%d", input, input_read_length, input_kmer_size);
-//
-//	fclose(fp);
-
-	read_length = input_read_length;
+// Unpruned de Bruijn graph for a single kmer size.  Retained graphs allow reassembly with
+// different pruning parameters without re-reading the input.
+struct graph {
+	struct struct_pool* pool;
+	kmer_map* nodes;
+	struct kmer_key* deleted_key;
+	// Copies share keys, qual sums and the deleted key with the graph they were copied from
+	char is_copy;
+	char too_many_nodes;
+	int read_length;
+	int kmer_size;
+};
 
+void set_graph_globals(struct graph* graph) {
+	read_length = graph->read_length;
 	min_contig_length = read_length + 1;
 
 	//TODO: Parameterize mcl - shorter for unaligned region?
@@ -1389,24 +1706,139 @@ char* assemble(const char* input,
 	}
 */
 
-	kmer_size = input_kmer_size;
+	kmer_size = graph->kmer_size;
+	kmer_words = (kmer_size + BASES_PER_WORD - 1) / BASES_PER_WORD;
+	deleted_kmer_key = graph->deleted_key;
+}
 
-	struct struct_pool* pool = init_pool();
-	dense_hash_map<const char*, struct node*, my_hash, eqstr>* nodes = new dense_hash_map<const char*, struct node*, my_hash, eqstr>();
+kmer_map* new_kmer_map(struct kmer_key* deleted_key) {
+	kmer_map* nodes = new kmer_map();
 	nodes->set_empty_key(NULL);
-	char* deleted_key = (char*) calloc(kmer_size, sizeof(char));
 	nodes->set_deleted_key(deleted_key);
+	return nodes;
+}
+
+// Nodes reference reads in place.  Input must remain valid until the graph is freed.
+// cache may be null.
+struct graph* build_graph(const char* input, int num_records, int input_read_length, int input_kmer_size, struct kmer_cache* cache) {
+
+	// output input params to file here.
+//	FILE *fp = fopen(prefix, "w+");
+//
+//	fprintf(fp, "%s\n%d\n%d", input, input_read_length, input_kmer_size);
+//
+//	fclose(fp);
+
+	struct graph* graph = (struct graph*) calloc(1, sizeof(struct graph));
+	graph->read_length = input_read_length;
+	graph->kmer_size = input_kmer_size;
+	int words = (input_kmer_size + BASES_PER_WORD - 1) / BASES_PER_WORD;
+	graph->deleted_key = (struct kmer_key*) calloc(1, sizeof(struct kmer_key) + words * sizeof(uint64_t));
+	set_graph_globals(graph);
+
+	graph->pool = init_pool();
+	graph->nodes = new_kmer_map(graph->deleted_key);
+
+	build_graph2(input, num_records, graph->nodes, graph->pool, cache);
+
+	graph->too_many_nodes = graph->nodes->size() >= max_nodes;
+
+	return graph;
+}
+
+// Copies nodes and edges into a new pool.  Nodes are inserted in their original order
+// so that map layout, and thus contig order, matches the source graph.
+struct graph* copy_graph(struct graph* orig) {
+	set_graph_globals(orig);
+
+	struct graph* graph = (struct graph*) calloc(1, sizeof(struct graph));
+	memcpy(graph, orig, sizeof(struct graph));
+	graph->is_copy = 1;
+	graph->pool = init_pool();
+	graph->nodes = new_kmer_map(orig->deleted_key);
+
+	struct node_pool* orig_nodes = orig->pool->node_pool;
+	int num_nodes = orig_nodes->block_idx * NODES_PER_BLOCK + orig_nodes->node_idx;
+
+	if (num_nodes == 0) {
+		return graph;
+	}
+
+	int first_id = orig_nodes->nodes[0][0].id;
+
+	// First pass copies nodes, second pass maps edges onto the copies
+	for (int i=0; i<num_nodes; i++) {
+		struct node* orig_node = &orig_nodes->nodes[i / NODES_PER_BLOCK][i % NODES_PER_BLOCK];
+		struct node* node = allocate_node(graph->pool);
+		memcpy(node, orig_node, sizeof(struct node));
+		node->toNodes = NULL;
+		node->fromNodes = NULL;
+		(*graph->nodes)[node->key] = node;
+	}
+
+	struct node_pool* copy_nodes = graph->pool->node_pool;
+	for (int i=0; i<num_nodes; i++) {
+		struct node* orig_node = &orig_nodes->nodes[i / NODES_PER_BLOCK][i % NODES_PER_BLOCK];
+		struct node* node = &copy_nodes->nodes[i / NODES_PER_BLOCK][i % NODES_PER_BLOCK];
+
+		struct linked_node** lists[2] = { &node->toNodes, &node->fromNodes };
+		struct linked_node* orig_lists[2] = { orig_node->toNodes, orig_node->fromNodes };
+
+		for (int l=0; l<2; l++) {
+			struct linked_node** tail = lists[l];
+			for (struct linked_node* orig_link = orig_lists[l]; orig_link != NULL; orig_link = orig_link->next) {
+				int idx = orig_link->node->id - first_id;
+				struct linked_node* link = allocate_link(graph->pool);
+				link->node = &copy_nodes->nodes[idx / NODES_PER_BLOCK][idx % NODES_PER_BLOCK];
+				link->next = NULL;
+				*tail = link;
+				tail = &link->next;
+			}
+		}
+	}
+
+	return graph;
+}
+
+void free_graph(struct graph* graph) {
+	delete graph->nodes;
+	cleanup(graph->pool);
+
+	if (!graph->is_copy) {
+		free(graph->deleted_key);
+	}
+
+	if (deleted_kmer_key == graph->deleted_key) {
+		deleted_kmer_key = NULL;
+	}
+
+	free(graph);
+}
+
+// Prunes the graph and assembles contigs into contig_outputs.  The graph is modified and must be
+// freed afterwards.  Returns OK, STOPPED_ON_REPEAT or an error status.
+// Contigs are only populated when OK is returned.
+int assemble_graph(struct graph* graph,
+			  const char* output,
+			  const char* prefix,
+			  int truncate_on_repeat,
+			  int max_contigs,
+			  int max_paths_from_root,
+			  vector<contig_output>& contig_outputs) {
+
+	set_graph_globals(graph);
+
+	kmer_map* nodes = graph->nodes;
+	struct struct_pool* pool = graph->pool;
 
 	long startTime = time(NULL);
 	if (debug) {
 		fprintf(stderr,"Assembling: -> %s\n", output);
 	}
 
-	build_graph2(input, nodes, pool);
-
 	int status = -1;
 
-	if (nodes->size() >= max_nodes) {
+	if (graph->too_many_nodes) {
 		status = TOO_MANY_NODES;
 
 		if (debug) {
@@ -1416,15 +1848,15 @@ char* assemble(const char* input,
 
 	//TODO: Set this explicitly
 	char isUnalignedRegion = !truncate_on_repeat;
-	prune_graph(nodes, isUnalignedRegion);
+	prune_graph(nodes, isUnalignedRegion, pool);
 
 	struct linked_node* root_nodes = NULL;
 
 	if (status != TOO_MANY_NODES) {
-		root_nodes = identify_root_nodes(nodes);
+		root_nodes = identify_root_nodes(nodes, pool);
 	}
 
-	condense_graph(nodes);
+	condense_graph(nodes, pool);
 
 //	char graph_dump[1024];
 //	sprintf(graph_dump, "%s.dot", prefix);
@@ -1433,20 +1865,16 @@ char* assemble(const char* input,
 	int contig_count = 0;
 	char truncate_output = 0;
 
-	char* contig_str = (char*) calloc(MAX_TOTAL_CONTIG_LEN, sizeof(char));
-//	memset(contig_str, 0, MAX_TOTAL_CONTIG_LEN);
 
 	std::priority_queue<double, std::vector<double>, std::greater<double> > contig_scores;
 	vector<char*> all_contig_fragments;
 
-	struct linked_node* orig_root_nodes = root_nodes;
-
 	while (root_nodes != NULL) {
 
 		int shadow_count = 0;
 
 		status = build_contigs(root_nodes->node, contig_count, prefix, max_paths_from_root, max_contigs,
-				truncate_on_repeat, false, contig_str, contig_scores, all_contig_fragments);
+				truncate_on_repeat, false, contig_outputs, contig_scores, all_contig_fragments);
 
 		switch(status) {
 			case TOO_MANY_CONTIGS:
@@ -1476,12 +1904,6 @@ char* assemble(const char* input,
 		root_nodes = root_nodes->next;
 	}
 
-	cleanup(nodes, pool, orig_root_nodes);
-
-	delete nodes;
-
-	free(deleted_key);
-
 	// Cleanup condensed seq buffer
 	for (int i=0; i<condensed_seq_page_cnt; i++) {
 		free(condensed_seq_pages[i]);
@@ -1492,24 +1914,98 @@ char* assemble(const char* input,
 
 	long stopTime = time(NULL);
 
-	if (kmer_size != input_kmer_size) {
-		fprintf(stderr,"What!!?? %d : %d\n", kmer_size, input_kmer_size);
-	}
-	assert(kmer_size == input_kmer_size);
 	if (debug) {
 		fprintf(stderr,"Done assembling(%ld): %s, %d\n", (stopTime-startTime), output, contig_count);
 	}
 
 	if (status == OK || status == TOO_MANY_PATHS_FROM_ROOT) {
-		return contig_str;
-	} else if (status == STOPPED_ON_REPEAT) {
-		strcpy(contig_str, "<REPEAT>");
-		return contig_str;
+		return OK;
 	} else {
-		fprintf(stderr, "status: %d\n", status);
-		strcpy(contig_str, "<ERROR>");
-		return contig_str;
+		if (status != STOPPED_ON_REPEAT) {
+			fprintf(stderr, "status: %d\n", status);
+		}
+		contig_outputs.clear();
+		return status;
+	}
+}
+
+// Assembles contigs into contig_outputs.  Returns OK, STOPPED_ON_REPEAT or an error status.
+// Contigs are only populated when OK is returned.
+int assemble(const char* input,
+			  int num_records,
+			  const char* output,
+			  const char* prefix,
+			  int truncate_on_repeat,
+			  int max_contigs,
+			  int max_paths_from_root,
+			  int input_read_length,
+			  int input_kmer_size,
+			  struct kmer_cache* cache,
+			  vector<contig_output>& contig_outputs) {
+
+	struct graph* graph = build_graph(input, num_records, input_read_length, input_kmer_size, cache);
+	int status = assemble_graph(graph, output, prefix, truncate_on_repeat, max_contigs, max_paths_from_root, contig_outputs);
+	free_graph(graph);
+
+	return status;
+}
+
+// Formats contigs as fasta or <REPEAT> / <ERROR>.  Caller is responsible for freeing the result.
+char* format_contigs(int status, const char* prefix, vector<contig_output>& contig_outputs) {
+	if (status == STOPPED_ON_REPEAT) {
+		return strdup("<REPEAT>");
+	} else if (status != OK) {
+		return strdup("<ERROR>");
+	}
+
+	std::string contigs;
+	char id_line[1024];
+	for (size_t i=0; i<contig_outputs.size(); i++) {
+		snprintf(id_line, sizeof(id_line), ">%s_%d_%f\n", prefix, (int) i, contig_outputs[i].score);
+		contigs.append(id_line);
+		contigs.append(contig_outputs[i].seq);
+		contigs.append("\n");
+	}
+
+	return strdup(contigs.c_str());
+}
+
+// Encodes status and contigs in native byte order as:
+// status, contig count, then per contig: score (double), num nodes, min kmer frequency, length, bases
+jbyteArray encode_contigs(JNIEnv* env, int status, vector<contig_output>& contig_outputs) {
+	int count = contig_outputs.size();
+	int header_len = sizeof(double) + sizeof(int)*3;
+	int len = sizeof(int)*2;
+	for (int i=0; i<count; i++) {
+		len += header_len + contig_outputs[i].seq.length();
+	}
+
+	char* buf = (char*) malloc(len);
+	char* ptr = buf;
+	memcpy(ptr, &status, sizeof(int)); ptr += sizeof(int);
+	memcpy(ptr, &count, sizeof(int)); ptr += sizeof(int);
+
+	for (int i=0; i<count; i++) {
+		contig_output& contig = contig_outputs[i];
+		int seq_len = contig.seq.length();
+
+		// Round score to the precision of the fasta output, which contig ranking has historically used
+		char score_str[64];
+		snprintf(score_str, sizeof(score_str), "%f", contig.score);
+		double score = strtod(score_str, NULL);
+
+		memcpy(ptr, &score, sizeof(double)); ptr += sizeof(double);
+		memcpy(ptr, &contig.num_nodes, sizeof(int)); ptr += sizeof(int);
+		memcpy(ptr, &contig.min_freq, sizeof(int)); ptr += sizeof(int);
+		memcpy(ptr, &seq_len, sizeof(int)); ptr += sizeof(int);
+		memcpy(ptr, contig.seq.data(), seq_len); ptr += seq_len;
 	}
+
+	jbyteArray ret = env->NewByteArray(len);
+	env->SetByteArrayRegion(ret, 0, len, (jbyte*) buf);
+	free(buf);
+
+	return ret;
 }
 
 extern "C"
@@ -1553,7 +2049,10 @@ extern "C"
 //	printf("min base quality: %d\n", min_base_quality);
 //	printf("min edge ratio: %f\n", min_edge_ratio);
 
-	char* contig_str = assemble(input, output, prefix, truncate_on_output, max_contigs, max_paths_from_root, read_length, kmer_size);
+	int num_records = strlen(input) / (read_length*2 + 2);
+	vector<contig_output> contig_outputs;
+	int status = assemble(input, num_records, output, prefix, truncate_on_output, max_contigs, max_paths_from_root, read_length, kmer_size, NULL, contig_outputs);
+	char* contig_str = format_contigs(status, prefix, contig_outputs);
 	jstring ret = env->NewStringUTF(contig_str);
 
      //DON'T FORGET THIS LINE!!!
@@ -1567,6 +2066,149 @@ extern "C"
     return ret;
  }
 
+// Reads are passed as fixed length records in a direct buffer, avoiding string conversion and copies.
+extern "C"
+ JNIEXPORT jbyteArray JNICALL Java_abra_NativeAssembler_assembleReads
+   (JNIEnv *env, jobject obj, jobject j_reads, jint j_num_reads, jstring j_output, jstring j_prefix,
+    jint j_truncate_on_output, jint j_max_contigs, jint j_max_paths_from_root,
+    jint j_read_length, jint j_kmer_size, jint j_min_node_freq, jint j_min_base_quality,
+    jdouble j_min_edge_ratio, jint j_debug, jint j_max_nodes, jlong j_kmer_cache)
+ {
+	const char* input = (const char*) env->GetDirectBufferAddress(j_reads);
+	jlong capacity = env->GetDirectBufferCapacity(j_reads);
+
+	if (input == NULL || capacity < (jlong) j_num_reads * (j_read_length*2 + 2)) {
+		fprintf(stderr, "Invalid read buffer.  capacity: %ld, num_reads: %d, read_length: %d\n", (long) capacity, j_num_reads, j_read_length);
+		vector<contig_output> none;
+		return encode_contigs(env, INVALID_INPUT, none);
+	}
+
+	const char* output = env->GetStringUTFChars(j_output, 0);
+	const char* prefix = env->GetStringUTFChars(j_prefix, 0);
+	min_node_freq = j_min_node_freq;
+	min_base_quality = j_min_base_quality;
+	min_edge_ratio = j_min_edge_ratio;
+	debug = j_debug;
+	max_nodes = j_max_nodes;
+
+	if (debug) {
+		fprintf(stderr,"Abra JNI entry point, prefix: %s, num_reads: %d, read_length: %d, kmer_size: %d, min_node_freq: %d, min_base_qual: %d, min_edge_ratio %f, debug: %d, max_nodes: %d\n",
+				prefix, j_num_reads, j_read_length, j_kmer_size, min_node_freq, min_base_quality, min_edge_ratio, debug, max_nodes);
+	}
+
+	vector<contig_output> contig_outputs;
+	int status = assemble(input, j_num_reads, output, prefix, j_truncate_on_output, j_max_contigs, j_max_paths_from_root, j_read_length, j_kmer_size,
+			(struct kmer_cache*) j_kmer_cache, contig_outputs);
+	jbyteArray ret = encode_contigs(env, status, contig_outputs);
+
+	env->ReleaseStringUTFChars(j_output, output);
+	env->ReleaseStringUTFChars(j_prefix, prefix);
+
+	return ret;
+ }
+
+// Builds and retains the unpruned graph for the reads in the direct buffer.  The buffer must
+// remain valid until the graph is released.  Returns 0 on invalid input.
+extern "C"
+ JNIEXPORT jlong JNICALL Java_abra_NativeAssembler_buildGraph
+   (JNIEnv *env, jobject obj, jobject j_reads, jint j_num_reads, jint j_read_length, jint j_kmer_size,
+    jint j_debug, jint j_max_nodes, jlong j_kmer_cache)
+ {
+	const char* input = (const char*) env->GetDirectBufferAddress(j_reads);
+	jlong capacity = env->GetDirectBufferCapacity(j_reads);
+
+	if (input == NULL || capacity < (jlong) j_num_reads * (j_read_length*2 + 2)) {
+		fprintf(stderr, "Invalid read buffer.  capacity: %ld, num_reads: %d, read_length: %d\n", (long) capacity, j_num_reads, j_read_length);
+		return 0;
+	}
+
+	debug = j_debug;
+	max_nodes = j_max_nodes;
+
+	return (jlong) build_graph(input, j_num_reads, j_read_length, j_kmer_size, (struct kmer_cache*) j_kmer_cache);
+ }
+
+// Assembles a retained graph.  If j_retain is set, a copy of the graph is pruned and assembled
+// leaving the original available for reassembly, otherwise the graph is assembled and released.
+extern "C"
+ JNIEXPORT jbyteArray JNICALL Java_abra_NativeAssembler_assembleGraph
+   (JNIEnv *env, jobject obj, jlong j_graph, jstring j_output, jstring j_prefix,
+    jint j_truncate_on_output, jint j_max_contigs, jint j_max_paths_from_root,
+    jint j_min_node_freq, jint j_min_base_quality, jdouble j_min_edge_ratio, jint j_debug, jint j_retain)
+ {
+	struct graph* graph = (struct graph*) j_graph;
+
+	if (graph == NULL) {
+		vector<contig_output> none;
+		return encode_contigs(env, INVALID_INPUT, none);
+	}
+
+	const char* output = env->GetStringUTFChars(j_output, 0);
+	const char* prefix = env->GetStringUTFChars(j_prefix, 0);
+	min_node_freq = j_min_node_freq;
+	min_base_quality = j_min_base_quality;
+	min_edge_ratio = j_min_edge_ratio;
+	debug = j_debug;
+
+	if (debug) {
+		fprintf(stderr,"Abra JNI graph entry point, prefix: %s, kmer_size: %d, min_node_freq: %d, min_base_qual: %d, min_edge_ratio %f, retain: %d\n",
+				prefix, graph->kmer_size, min_node_freq, min_base_quality, min_edge_ratio, j_retain);
+	}
+
+	struct graph* target = j_retain ? copy_graph(graph) : graph;
+
+	vector<contig_output> contig_outputs;
+	int status = assemble_graph(target, output, prefix, j_truncate_on_output, j_max_contigs, j_max_paths_from_root, contig_outputs);
+	free_graph(target);
+	jbyteArray ret = encode_contigs(env, status, contig_outputs);
+
+	env->ReleaseStringUTFChars(j_output, output);
+	env->ReleaseStringUTFChars(j_prefix, prefix);
+
+	return ret;
+ }
+
+extern "C"
+ JNIEXPORT void JNICALL Java_abra_NativeAssembler_releaseGraph
+   (JNIEnv *env, jobject obj, jlong j_graph)
+ {
+	if (j_graph != 0) {
+		free_graph((struct graph*) j_graph);
+	}
+ }
+
+extern "C"
+ JNIEXPORT jlong JNICALL Java_abra_NativeAssembler_newKmerCache
+   (JNIEnv *env, jclass cls, jlong j_max_bytes)
+ {
+	return (jlong) new_kmer_cache((size_t) j_max_bytes);
+ }
+
+// Returns hits and misses
+extern "C"
+ JNIEXPORT jlongArray JNICALL Java_abra_NativeAssembler_getKmerCacheStats
+   (JNIEnv *env, jclass cls, jlong j_kmer_cache)
+ {
+	struct kmer_cache* cache = (struct kmer_cache*) j_kmer_cache;
+
+	pthread_mutex_lock(&cache->lock);
+	jlong stats[2] = { cache->hits, cache->misses };
+	pthread_mutex_unlock(&cache->lock);
+
+	jlongArray ret = env->NewLongArray(2);
+	env->SetLongArrayRegion(ret, 0, 2, stats);
+	return ret;
+ }
+
+extern "C"
+ JNIEXPORT void JNICALL Java_abra_NativeAssembler_releaseKmerCache
+   (JNIEnv *env, jclass cls, jlong j_kmer_cache)
+ {
+	if (j_kmer_cache != 0) {
+		free_kmer_cache((struct kmer_cache*) j_kmer_cache);
+	}
+ }
+
 void profile(const char* filename) {
 	FILE* fp = fopen(filename, "r");
 
@@ -1604,15 +2246,20 @@ void profile(const char* filename) {
 	max_nodes = 150000;
 
 
-	char* contigs = assemble(line1,
+	vector<contig_output> contig_outputs;
+	int status = assemble(line1,
+			 strlen(line1) / (read_length*2 + 2),
 			 "",
 			 prefix,
 			 1,
 			 5000,
 			 100000,
 			 atoi(line2),
-			 atoi(line3));
+			 atoi(line3),
+			 NULL,
+			 contig_outputs);
 
+	char* contigs = format_contigs(status, prefix, contig_outputs);
 	printf("\n%s\n", contigs);
 
 	free(contigs);
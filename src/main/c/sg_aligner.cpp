@@ -1,6 +1,7 @@
 #include <stdio.h>
 #include <stdlib.h>
 #include <string.h>
+#include <limits.h>
 #include <vector>
 #include "abra_NativeSemiGlobalAligner.h"
 
@@ -14,85 +15,379 @@ using namespace std;
 #define M 1
 #define D 2
 
-#define MAX_REF_LEN 5000
-#define MAX_CONTIG_LEN 2000
+// Below any reachable score, with headroom for adding penalties
+#define NEG_INF -1000000000
 
-__thread int matrix[MAX_CONTIG_LEN][MAX_REF_LEN][3];
-__thread char bt[MAX_CONTIG_LEN][MAX_REF_LEN][3];
+// Traceback directions for all three levels
+#define BT_SHIFT_I 0
+#define BT_SHIFT_M 2
+#define BT_SHIFT_D 4
+
+// Initial half width of the traceback band in diagonals.  Widened by BAND_GROWTH until the
+// traceback stays within the band or the band spans the full matrix.
+#define INITIAL_BAND 32
+#define BAND_GROWTH 4
+#define MAX_BANDS 16
 
 __thread int match = 8;
 __thread int mismatch_pen = -32;
 __thread int gap_open = -48;
 __thread int gap_extend = -1;
 
-void populate(const char* seq1, const char* seq2, int seq1_len, int seq2_len) {
+// Traceback band.  Row r (1 based) covers columns row_start(r) through row_end(r).
+// Cells just outside of the band are taken from the full matrix (see border_cells).
+struct band {
+	int lo;
+	int hi;
+	int stride;
+	int seq1_len;
+	int seq2_len;
+	char is_exceeded;
+};
 
-	for (int r=1; r<=seq1_len; r++) {
-		matrix[r][0][I] = gap_open + (r*gap_extend);
-		matrix[r][0][M] = gap_open + (r*gap_extend);
-		matrix[r][0][D] = gap_open + (r*gap_extend);
+// Full matrix scores of the cells bordering the band, by row.  top_i[r] and top_m[r] are the I and M
+// scores of (r-1, r+hi), above the last cell of row r.  left_m[r] and left_d[r] are the M and D scores
+// of (r, r+lo-1).
+struct border_cells {
+	int* top_i;
+	int* top_m;
+	int* left_m;
+	int* left_d;
+};
+
+// I, M and D scores for a single cell
+struct score_cell {
+	int s[3];
+};
+
+// Per thread buffers, grown as needed and reused across alignments
+__thread struct score_cell* score_rows = NULL;
+__thread int score_rows_cap = 0;
+__thread unsigned char* bt_band = NULL;
+__thread size_t bt_band_cap = 0;
+__thread int* border_buf = NULL;
+__thread int border_buf_cap = 0;
+
+struct score_cell* get_score_rows(int seq2_len) {
+	int cap = (seq2_len+1) * 2;
+	if (cap > score_rows_cap) {
+		free(score_rows);
+		score_rows = (struct score_cell*) malloc(cap * sizeof(struct score_cell));
+		score_rows_cap = cap;
 	}
+	return score_rows;
+}
 
-	for (int c=0; c<=seq2_len; c++) {
-		matrix[0][c][I] = gap_open + (c*gap_extend);
-		matrix[0][c][M] = 0;
-		matrix[0][c][D] = gap_open + (c*gap_extend);
+unsigned char* get_bt_band(size_t size) {
+	if (size > bt_band_cap) {
+		free(bt_band);
+		bt_band = (unsigned char*) malloc(size);
+		bt_band_cap = size;
 	}
+	return bt_band;
+}
 
-	for (int r=2; r<=seq1_len; r++) {
-		bt[r][0][I] = DIR_UP;
-		bt[r][0][D] = DIR_UP;
-		bt[r][0][M] = DIR_UP;
+void get_border_cells(int seq1_len, struct border_cells* borders, int num_bands) {
+	int rows = seq1_len + 2;
+	int cap = rows * 4 * num_bands;
+	if (cap > border_buf_cap) {
+		free(border_buf);
+		border_buf = (int*) malloc(cap * sizeof(int));
+		border_buf_cap = cap;
+	}
+	for (int b=0; b<num_bands; b++) {
+		int* buf = border_buf + rows * 4 * b;
+		borders[b].top_i = buf;
+		borders[b].top_m = buf + rows;
+		borders[b].left_m = buf + rows * 2;
+		borders[b].left_d = buf + rows * 3;
+	}
+}
+
+inline int row_start(struct band* band, int r) {
+	return r + band->lo > 1 ? r + band->lo : 1;
+}
+
+inline int row_end(struct band* band, int r) {
+	return r + band->hi < band->seq2_len ? r + band->hi : band->seq2_len;
+}
+
+//
+// Score only alignment.  Uses striped 16 bit SIMD when the cpu supports it and all scores are
+// guaranteed to fit in 16 bits, otherwise a scalar pass over the full matrix.  Results are identical either way.
+
+__thread char* simd_buffer = NULL;
+__thread size_t simd_buffer_cap = 0;
+
+void* get_simd_buffer(size_t size) {
+	if (size > simd_buffer_cap) {
+		free(simd_buffer);
+		if (posix_memalign((void**) &simd_buffer, 32, size) != 0) {
+			fprintf(stderr, "Unable to allocate SIMD alignment buffer of size: %ld\n", (long) size);
+			exit(-1);
+		}
+		simd_buffer_cap = size;
+	}
+	return simd_buffer;
+}
+
+#if defined(__x86_64__) || defined(__i386__)
+#include <immintrin.h>
+#define HAS_X86_SIMD
+
+#pragma GCC push_options
+#pragma GCC target("sse4.1")
+#define STRIPED_FN striped_score_sse41
+#define VEC __m128i
+#define LANES 8
+#define VSET1(x) _mm_set1_epi16(x)
+#define VADDS(a,b) _mm_adds_epi16(a,b)
+#define VMAX(a,b) _mm_max_epi16(a,b)
+#define VLOAD(p) _mm_load_si128((const __m128i*) (p))
+#define VSTORE(p,v) _mm_store_si128((__m128i*) (p), v)
+#define VGT_ANY(a,b) (_mm_movemask_epi8(_mm_cmpgt_epi16(a,b)) != 0)
+#define VSHIFT_IN(v,x) _mm_insert_epi16(_mm_slli_si128(v, 2), x, 0)
+#include "sg_striped.h"
+#undef STRIPED_FN
+#undef VEC
+#undef LANES
+#undef VSET1
+#undef VADDS
+#undef VMAX
+#undef VLOAD
+#undef VSTORE
+#undef VGT_ANY
+#undef VSHIFT_IN
+#pragma GCC pop_options
+
+#pragma GCC push_options
+#pragma GCC target("avx2")
+#define STRIPED_FN striped_score_avx2
+#define VEC __m256i
+#define LANES 16
+#define VSET1(x) _mm256_set1_epi16(x)
+#define VADDS(a,b) _mm256_adds_epi16(a,b)
+#define VMAX(a,b) _mm256_max_epi16(a,b)
+#define VLOAD(p) _mm256_load_si256((const __m256i*) (p))
+#define VSTORE(p,v) _mm256_store_si256((__m256i*) (p), v)
+#define VGT_ANY(a,b) (_mm256_movemask_epi8(_mm256_cmpgt_epi16(a,b)) != 0)
+#define VSHIFT_IN(v,x) _mm256_insert_epi16(_mm256_alignr_epi8(v, _mm256_permute2x128_si256(v, v, 0x08), 14), x, 0)
+#include "sg_striped.h"
+#undef STRIPED_FN
+#undef VEC
+#undef LANES
+#undef VSET1
+#undef VADDS
+#undef VMAX
+#undef VLOAD
+#undef VSTORE
+#undef VGT_ANY
+#undef VSHIFT_IN
+#pragma GCC pop_options
+#endif
+
+// Largest magnitude allowed for any intermediate score in the 16 bit kernels
+#define SIMD_SCORE_LIMIT 32000
+
+//
+// True if all reachable scores fit in 16 bits.  Scores are bounded above by a full length match.
+// Every cell is reachable via a gap from the first row or column, bounding scores below.
+char simd_fits(int seq1_len, int seq2_len) {
+	if (seq1_len < 1 || seq2_len < 1 || match < 0 || mismatch_pen > 0 || gap_open > 0 || gap_extend > 0) {
+		return 0;
+	}
+
+	long upper = (long) match * (seq1_len+1);
+	long lower = gap_open + (long) seq2_len * gap_extend;
+	long interior = 2L * gap_open + (long) seq1_len * gap_extend;
+	if (interior < lower) {
+		lower = interior;
+	}
+	int step = gap_open < mismatch_pen ? gap_open : mismatch_pen;
+	if (gap_extend < step) {
+		step = gap_extend;
+	}
+	lower += step;
+
+	return upper < SIMD_SCORE_LIMIT && lower > -SIMD_SCORE_LIMIT;
+}
+
+// Runs the striped kernel for the current cpu.  Returns false if SIMD is not applicable.
+char striped_score(const char* seq1, const char* seq2, int seq1_len, int seq2_len,
+		int* best_idx, int* best_score, int* second_best_score,
+		struct band* bands, struct border_cells* borders, int num_bands) {
+#ifdef HAS_X86_SIMD
+	if (simd_fits(seq1_len, seq2_len)) {
+		if (__builtin_cpu_supports("avx2")) {
+			striped_score_avx2(seq1, seq2, seq1_len, seq2_len, best_idx, best_score, second_best_score, bands, borders, num_bands);
+			return 1;
+		} else if (__builtin_cpu_supports("sse4.1")) {
+			striped_score_sse41(seq1, seq2, seq1_len, seq2_len, best_idx, best_score, second_best_score, bands, borders, num_bands);
+			return 1;
+		}
+	}
+#endif
+	return 0;
+}
+
+inline void set_cell(struct score_cell* cell, int i_score, int m_score, int d_score) {
+	cell->s[I] = i_score;
+	cell->s[M] = m_score;
+	cell->s[D] = d_score;
+}
+
+//
+// Computes scores for cells within the band in linear memory, taking the scores of the cells bordering
+// the band from the full matrix.  Scores within the band are therefore identical to the full matrix.
+// If bt is set, traceback directions are recorded.  The last row is left in the first half of the score rows.
+void fill_band(const char* seq1, const char* seq2, int seq1_len, int seq2_len, struct band* band,
+		struct border_cells* borders, unsigned char* bt) {
+
+	struct score_cell* prev = get_score_rows(seq2_len);
+	struct score_cell* curr = prev + seq2_len + 1;
+
+	for (int c=0; c<=seq2_len; c++) {
+		set_cell(&prev[c], gap_open + (c*gap_extend), 0, gap_open + (c*gap_extend));
 	}
 
 	for (int r=1; r<=seq1_len; r++) {
-		for (int c=1; c<=seq2_len; c++) {
+		int edge = gap_open + (r*gap_extend);
+		set_cell(&curr[0], edge, edge, edge);
+
+		int start = row_start(band, r);
+		int end = row_end(band, r);
+
+		// Cells bordering the band.  The I score left of the band and the D score above it are not used.
+		if (start-1 >= 1 && start-1 <= seq2_len) {
+			set_cell(&curr[start-1], NEG_INF, borders->left_m[r], borders->left_d[r]);
+		}
+		if (end+1 >= 1 && end+1 <= seq2_len && r < seq1_len) {
+			set_cell(&curr[end+1], borders->top_i[r+1], borders->top_m[r+1], NEG_INF);
+		}
+
+		unsigned char* bt_row = bt != NULL ? bt + (size_t) (r-1) * band->stride - start : NULL;
+
+		for (int c=start; c<=end; c++) {
+			int* cell = curr[c].s;
+			unsigned char dirs;
 
 			//
 			// Insertion (lower) matrix
-			int insertExt = matrix[r-1][c][I] + gap_extend;
-			int insertOpen = matrix[r-1][c][M] + gap_open;
+			int insertExt = prev[c].s[I] + gap_extend;
+			int insertOpen = prev[c].s[M] + gap_open;
 
 			if (insertExt >= insertOpen) {
-				matrix[r][c][I] = insertExt;
-				bt[r][c][I] = DIR_UP;
+				cell[I] = insertExt;
+				dirs = DIR_UP << BT_SHIFT_I;
 			} else {
-				matrix[r][c][I] = insertOpen;
-				bt[r][c][I] = DIR_DIAG;
+				cell[I] = insertOpen;
+				dirs = DIR_DIAG << BT_SHIFT_I;
 			}
 
 			// Deletion (upper) matrix
-			int deleteExt = matrix[r][c-1][D] + gap_extend;
-			int deleteOpen = matrix[r][c-1][M] + gap_open;
+			int deleteExt = curr[c-1].s[D] + gap_extend;
+			int deleteOpen = curr[c-1].s[M] + gap_open;
 
 			if (deleteExt >= deleteOpen) {
-				matrix[r][c][D] = deleteExt;
-				bt[r][c][D] = DIR_LEFT;
+				cell[D] = deleteExt;
+				dirs |= DIR_LEFT << BT_SHIFT_D;
 			} else {
-				matrix[r][c][D] = deleteOpen;
-				bt[r][c][D] = DIR_DIAG;
+				cell[D] = deleteOpen;
+				dirs |= DIR_DIAG << BT_SHIFT_D;
 			}
 
 			//
 			// Match/mismatch (middle) matrix
-			int insertClose = matrix[r][c][I];
-			int baseMatch = seq1[r-1] == seq2[c-1] ? (matrix[r-1][c-1][M] + match) : (matrix[r-1][c-1][M] + mismatch_pen);
-			int deleteClose = matrix[r][c][D];
+			int baseScore = seq1[r-1] == seq2[c-1] ? match : mismatch_pen;
+			int insertClose = cell[I];
+			int baseMatch = prev[c-1].s[M] + baseScore;
+			int deleteClose = cell[D];
 
 			if (baseMatch >=insertClose && baseMatch >= deleteClose) {
-				matrix[r][c][M] = baseMatch;
-				bt[r][c][M] = DIR_DIAG;
+				cell[M] = baseMatch;
+				dirs |= DIR_DIAG << BT_SHIFT_M;
 			} else if (insertClose >= deleteClose) {
-				matrix[r][c][M] = insertClose;
-				bt[r][c][M] = DIR_UP;
+				cell[M] = insertClose;
+				dirs |= DIR_UP << BT_SHIFT_M;
 			} else {
-				matrix[r][c][M] = deleteClose;
-				bt[r][c][M] = DIR_LEFT;
+				cell[M] = deleteClose;
+				dirs |= DIR_LEFT << BT_SHIFT_M;
+			}
+
+			if (bt_row != NULL) {
+				bt_row[c] = dirs;
 			}
 		}
+
+		struct score_cell* temp = prev;
+		prev = curr;
+		curr = temp;
+	}
+
+	if (seq1_len % 2 == 1) {
+		// Move the last row to the first half
+		memcpy(curr, prev, (seq2_len+1) * sizeof(struct score_cell));
 	}
 }
 
+void get_last_row_best(int seq2_len, int* best_idx, int* best_score, int* second_best_score);
+
+void score(const char* seq1, const char* seq2, int* best_idx, int* best_score, int* second_best_score) {
+	int seq1_len = strlen(seq1);
+	int seq2_len = strlen(seq2);
+
+	if (striped_score(seq1, seq2, seq1_len, seq2_len, best_idx, best_score, second_best_score, NULL, NULL, 0)) {
+		return;
+	}
+
+	struct band band;
+	band.lo = -seq1_len;
+	band.hi = seq2_len;
+	band.seq1_len = seq1_len;
+	band.seq2_len = seq2_len;
+	band.stride = 0;
+	fill_band(seq1, seq2, seq1_len, seq2_len, &band, NULL, NULL);
+	get_last_row_best(seq2_len, best_idx, best_score, second_best_score);
+}
+
+// Best and second best scores in the last row filled by fill_band.  Only valid for the full band.
+void get_last_row_best(int seq2_len, int* best_idx, int* best_score, int* second_best_score) {
+	struct score_cell* last = get_score_rows(seq2_len);
+
+	*best_idx = -1;
+	*best_score = -300000000;
+	*second_best_score = -300000000;
+
+	for (int c=1; c<=seq2_len; c++) {
+		if (last[c].s[M] > *best_score) {
+			*best_idx = c;
+			*best_score = last[c].s[M];
+		} else if (last[c].s[M] > *second_best_score) {
+			*second_best_score = last[c].s[M];
+		}
+	}
+}
+
+char get_bt(struct band* band, int r, int c, int level) {
+	if (r < 1 || c < 0) {
+		return 0;
+	}
+
+	// First column is not banded
+	if (c == 0) {
+		return r >= 2 ? DIR_UP : 0;
+	}
+
+	int start = row_start(band, r);
+	if (c < start || c > row_end(band, r)) {
+		band->is_exceeded = 1;
+		return 0;
+	}
+
+	int shift = level == I ? BT_SHIFT_I : (level == M ? BT_SHIFT_M : BT_SHIFT_D);
+	return (bt_band[(size_t) (r-1) * band->stride + (c - start)] >> shift) & 3;
+}
+
 struct cigar_elem {
 	char op;
 	int len;
@@ -110,32 +405,16 @@ void update_curr_elem(char op, vector <cigar_elem> & elems) {
 	}
 }
 
-
-void backtrack(const char* seq1, const char* seq2, int seq1_len, int seq2_len, char* result) {
-	int best_idx = -1;
-	int best_score = -300000000;
-	int second_best_score = -300000000;
-	int row = seq1_len;
-
-	for (int c=1; c<=seq2_len; c++) {
-		if (matrix[row][c][M] > best_score) {
-			best_idx = c;
-			best_score = matrix[row][c][M];
-		} else if (matrix[row][c][M] > second_best_score) {
-			second_best_score = matrix[row][c][M];
-		}
-	}
+// Returns the starting ref index
+int backtrack(int seq1_len, int best_idx, struct band* band, vector<cigar_elem>& elems) {
 
 	int r = seq1_len;
 	int c = best_idx;
-	int ref_end_idx = c;
-
-	vector<cigar_elem> elems;
 
 	int level = M;
 
 	while (r > 0) {
-		char curr_bt = bt[r][c][level];
+		char curr_bt = get_bt(band, r, c, level);
 
 		if (curr_bt == DIR_DIAG) {
 			if (level == M) {
@@ -179,25 +458,126 @@ void backtrack(const char* seq1, const char* seq2, int seq1_len, int seq2_len, c
 		}
 	}
 
-	int ref_idx = c;
+	return c;
+}
+
+//
+// The best score and end position are computed over the full matrix by the striped kernel.  Traceback
+// is then computed within a band of diagonals around the end position, using full matrix scores for
+// the cells bordering the band.  If backtracking leaves the band, the band is widened, up to the full
+// matrix.  Results are identical to a full matrix alignment.
+struct alignment {
+	int score;
+	int second_best_score;
+	int ref_idx;
+	int ref_end_idx;
+	// In reverse order
+	vector<cigar_elem> elems;
+};
+
+void align(const char* seq1, const char* seq2, struct alignment* aln) {
+
+	int seq1_len = strlen(seq1);
+	int seq2_len = strlen(seq2);
+
+	int best_idx;
+	char is_simd = striped_score(seq1, seq2, seq1_len, seq2_len, &best_idx, &aln->score, &aln->second_best_score, NULL, NULL, 0);
+
+	// Bands of increasing width around the diagonal of the end position, followed by the full matrix
+	struct band bands[MAX_BANDS+1];
+	struct border_cells borders[MAX_BANDS];
+	int num_bands = 0;
+
+	if (is_simd && best_idx > 0) {
+		int diag = best_idx - seq1_len;
+		for (int width=INITIAL_BAND; width < seq1_len + seq2_len && num_bands < MAX_BANDS; width *= BAND_GROWTH) {
+			bands[num_bands].lo = diag - width;
+			bands[num_bands].hi = diag + width;
+			num_bands += 1;
+		}
+	}
+
+	bands[num_bands].lo = -seq1_len;
+	bands[num_bands].hi = seq2_len;
+
+	// Full matrix scores bordering each band, from a single striped pass
+	if (num_bands > 0) {
+		get_border_cells(seq1_len, borders, num_bands);
+		int idx, best, second_best;
+		striped_score(seq1, seq2, seq1_len, seq2_len, &idx, &best, &second_best, bands, borders, num_bands);
+	}
+
+	for (int b=0; b<=num_bands; b++) {
+		struct band* band = &bands[b];
+		band->seq1_len = seq1_len;
+		band->seq2_len = seq2_len;
+		int row_width = band->hi - band->lo + 1;
+		band->stride = row_width < seq2_len ? row_width : seq2_len;
+		band->is_exceeded = 0;
+
+		unsigned char* bt = get_bt_band((size_t) seq1_len * band->stride + 1);
+		fill_band(seq1, seq2, seq1_len, seq2_len, band, b < num_bands ? &borders[b] : NULL, bt);
+
+		if (!is_simd) {
+			// Scored by the full band
+			get_last_row_best(seq2_len, &best_idx, &aln->score, &aln->second_best_score);
+		}
+
+		aln->elems.clear();
+		aln->ref_idx = backtrack(seq1_len, best_idx, band, aln->elems);
+
+		if (!band->is_exceeded) {
+			break;
+		}
+	}
+
+	aln->ref_end_idx = best_idx;
+}
+
+void align(const char* seq1, const char* seq2, char* result) {
+
+	struct alignment aln;
+	align(seq1, seq2, &aln);
 
 	char cigar[2056];
+	cigar[0] = '\0';
 	int idx = 0;
-	for (int i=elems.size()-1; i>=0; i--) {
-		snprintf(cigar+idx, 2056-idx, "%d%c", elems[i].len, elems[i].op);
+	for (int i=aln.elems.size()-1; i>=0; i--) {
+		snprintf(cigar+idx, 2056-idx, "%d%c", aln.elems[i].len, aln.elems[i].op);
 		idx = strlen(cigar);
 	}
 
-	sprintf(result, "%d:%d:%d:%d:%s", best_score, second_best_score, ref_idx, ref_end_idx, cigar);
+	sprintf(result, "%d:%d:%d:%d:%s", aln.score, aln.second_best_score, aln.ref_idx, aln.ref_end_idx, cigar);
 }
 
-void align(const char* seq1, const char* seq2, char* result) {
+extern "C"
+ JNIEXPORT jintArray JNICALL Java_abra_NativeSemiGlobalAligner_score
+   (JNIEnv *env, jobject obj, jstring j_seq1, jstring j_seq2, jint j_match, jint j_mismatch,
+		   jint j_gap_open, jint j_gap_extend) {
 
-	int seq1_len = strlen(seq1);
-	int seq2_len = strlen(seq2);
+	match = j_match;
+	mismatch_pen = j_mismatch;
+	gap_open = j_gap_open;
+	gap_extend = j_gap_extend;
+
+	const char* seq1  = env->GetStringUTFChars(j_seq1, 0);
+	const char* seq2  = env->GetStringUTFChars(j_seq2, 0);
+
+	// score, second best, end position
+	jint result[3];
+	int best_idx, best_score, second_best_score;
+	score(seq1, seq2, &best_idx, &best_score, &second_best_score);
+	result[0] = best_score;
+	result[1] = second_best_score;
+	result[2] = best_idx;
+
+	jintArray ret = env->NewIntArray(3);
+	env->SetIntArrayRegion(ret, 0, 3, result);
+
+	env->ReleaseStringUTFChars(j_seq1, seq1);
+	env->ReleaseStringUTFChars(j_seq2, seq2);
 
-	populate(seq1, seq2, seq1_len, seq2_len);
-	backtrack(seq1, seq2, seq1_len, seq2_len, result);
+	return ret;
 }
 
 extern "C"
@@ -226,6 +606,92 @@ extern "C"
 	return ret;
 }
 
+void set_scoring(jint j_match, jint j_mismatch, jint j_gap_open, jint j_gap_extend) {
+	match = j_match;
+	mismatch_pen = j_mismatch;
+	gap_open = j_gap_open;
+	gap_extend = j_gap_extend;
+}
+
+// Scores each contig against a single reference.  Returns score, second best and end position per contig.
+extern "C"
+ JNIEXPORT jintArray JNICALL Java_abra_NativeSemiGlobalAligner_scoreBatch
+   (JNIEnv *env, jobject obj, jstring j_ref, jobjectArray j_seqs, jint j_match, jint j_mismatch,
+		   jint j_gap_open, jint j_gap_extend) {
+
+	set_scoring(j_match, j_mismatch, j_gap_open, j_gap_extend);
+
+	const char* ref = env->GetStringUTFChars(j_ref, 0);
+	int num_seqs = env->GetArrayLength(j_seqs);
+	vector<jint> result(num_seqs * 3);
+
+	for (int i=0; i<num_seqs; i++) {
+		jstring j_seq = (jstring) env->GetObjectArrayElement(j_seqs, i);
+		const char* seq = env->GetStringUTFChars(j_seq, 0);
+
+		int best_idx, best_score, second_best_score;
+		score(seq, ref, &best_idx, &best_score, &second_best_score);
+		result[i*3] = best_score;
+		result[i*3+1] = second_best_score;
+		result[i*3+2] = best_idx;
+
+		env->ReleaseStringUTFChars(j_seq, seq);
+		env->DeleteLocalRef(j_seq);
+	}
+
+	env->ReleaseStringUTFChars(j_ref, ref);
+
+	jintArray ret = env->NewIntArray(result.size());
+	if (num_seqs > 0) {
+		env->SetIntArrayRegion(ret, 0, result.size(), &result[0]);
+	}
+
+	return ret;
+}
+
+// Aligns each contig against a single reference.  Returns per contig:
+// score, second best, position, end position, number of cigar ops, then each op as length << 2 | (0=M, 1=I, 2=D)
+extern "C"
+ JNIEXPORT jintArray JNICALL Java_abra_NativeSemiGlobalAligner_alignBatch
+   (JNIEnv *env, jobject obj, jstring j_ref, jobjectArray j_seqs, jint j_match, jint j_mismatch,
+		   jint j_gap_open, jint j_gap_extend) {
+
+	set_scoring(j_match, j_mismatch, j_gap_open, j_gap_extend);
+
+	const char* ref = env->GetStringUTFChars(j_ref, 0);
+	int num_seqs = env->GetArrayLength(j_seqs);
+	vector<jint> result;
+	struct alignment aln;
+
+	for (int i=0; i<num_seqs; i++) {
+		jstring j_seq = (jstring) env->GetObjectArrayElement(j_seqs, i);
+		const char* seq = env->GetStringUTFChars(j_seq, 0);
+
+		align(seq, ref, &aln);
+		result.push_back(aln.score);
+		result.push_back(aln.second_best_score);
+		result.push_back(aln.ref_idx);
+		result.push_back(aln.ref_end_idx);
+		result.push_back(aln.elems.size());
+		for (int j=aln.elems.size()-1; j>=0; j--) {
+			int op = aln.elems[j].op == 'M' ? 0 : (aln.elems[j].op == 'I' ? 1 : 2);
+			result.push_back((aln.elems[j].len << 2) | op);
+		}
+
+		env->ReleaseStringUTFChars(j_seq, seq);
+		env->DeleteLocalRef(j_seq);
+	}
+
+	env->ReleaseStringUTFChars(j_ref, ref);
+
+	jintArray ret = env->NewIntArray(result.size());
+	if (!result.empty()) {
+		env->SetIntArrayRegion(ret, 0, result.size(), &result[0]);
+	}
+
+	return ret;
+}
+
 /*
 int main(int argc, char* argv[]) {
 
@@ -0,0 +1,158 @@
+// Striped (Farrar) score only semi-global alignment kernel.
+// Included once per instruction set by sg_aligner.cpp with the following defined:
+//   STRIPED_FN - function name
+//   VEC - vector type, LANES - number of 16 bit lanes
+//   VSET1(x), VADDS(a,b), VMAX(a,b), VLOAD(p), VSTORE(p,v)
+//   VGT_ANY(a,b) - true if any lane of a > b
+//   VSHIFT_IN(v,x) - shift lanes up by one, inserting x into lane 0
+//
+// The contig (seq1) is striped across lanes, so that row i is in lane i / seg_len of vector i % seg_len.
+// Scores must fit in 16 bits; see simd_fits in sg_aligner.cpp.
+// If num_bands > 0, the scores of the cells bordering each band are stored in the corresponding borders
+// and columns past the last bordering cell are skipped.  Insertion scores are then carried across segments
+// until exact, rather than only until they can no longer improve a score.
+
+static void STRIPED_FN(const char* seq1, const char* seq2, int seq1_len, int seq2_len,
+		int* best_idx, int* best_score, int* second_best_score,
+		struct band* bands, struct border_cells* borders, int num_bands) {
+
+	int seg_len = (seq1_len + LANES - 1) / LANES;
+
+	// Profile per distinct ref base.  Bases are compared exactly, as in the scalar aligner.
+	int char_idx[256];
+	unsigned char chars[256];
+	int num_chars = 0;
+	memset(char_idx, -1, sizeof(char_idx));
+	for (int c=0; c<seq2_len; c++) {
+		unsigned char ch = seq2[c];
+		if (char_idx[ch] < 0) {
+			char_idx[ch] = num_chars;
+			chars[num_chars++] = ch;
+		}
+	}
+
+	VEC* profile = (VEC*) get_simd_buffer(((size_t) num_chars + 4) * seg_len * sizeof(VEC));
+	VEC* h_prev = profile + (size_t) num_chars * seg_len;
+	VEC* h_curr = h_prev + seg_len;
+	VEC* e = h_curr + seg_len;
+	VEC* f = e + seg_len;
+
+	short lanes[LANES] __attribute__((aligned(32)));
+
+	for (int idx=0; idx<num_chars; idx++) {
+		for (int k=0; k<seg_len; k++) {
+			for (int l=0; l<LANES; l++) {
+				int i = l*seg_len + k;
+				lanes[l] = (i < seq1_len && seq1[i] == chars[idx]) ? match : mismatch_pen;
+			}
+			profile[idx*seg_len + k] = VLOAD(lanes);
+		}
+	}
+
+	// First column
+	for (int k=0; k<seg_len; k++) {
+		for (int l=0; l<LANES; l++) {
+			int i = l*seg_len + k;
+			lanes[l] = i < seq1_len ? gap_open + ((i+1)*gap_extend) : SHRT_MIN;
+		}
+		h_prev[k] = VLOAD(lanes);
+		e[k] = h_prev[k];
+	}
+
+	VEC v_gap_open = VSET1(gap_open);
+	VEC v_gap_extend = VSET1(gap_extend);
+	VEC v_open_minus_extend = VSET1(gap_open - gap_extend);
+	VEC v_neg_inf = VSET1(SHRT_MIN);
+
+	int last_k = (seq1_len-1) % seg_len;
+	int last_lane = (seq1_len-1) / seg_len;
+
+	*best_idx = -1;
+	*best_score = -300000000;
+	*second_best_score = -300000000;
+
+	int last_col = seq2_len;
+	if (num_bands > 0 && seq1_len + bands[num_bands-1].hi < last_col) {
+		last_col = seq1_len + bands[num_bands-1].hi;
+	}
+
+	for (int c=1; c<=last_col; c++) {
+		VEC* prof = profile + (size_t) char_idx[(unsigned char) seq2[c-1]] * seg_len;
+
+		// Diagonal from the first row is always 0
+		VEC vh = VSHIFT_IN(h_prev[seg_len-1], 0);
+
+		// Insertion into the first row from the top edge
+		int top_insert = gap_open + ((c+1)*gap_extend);
+		if (gap_open > top_insert) {
+			top_insert = gap_open;
+		}
+		VEC vf = VSHIFT_IN(v_neg_inf, top_insert);
+
+		for (int k=0; k<seg_len; k++) {
+			vh = VADDS(vh, prof[k]);
+
+			// Deletion
+			VEC ve = VMAX(VADDS(e[k], v_gap_extend), VADDS(h_prev[k], v_gap_open));
+			e[k] = ve;
+
+			vh = VMAX(vh, ve);
+			vh = VMAX(vh, vf);
+			f[k] = vf;
+
+			VEC diag = h_prev[k];
+			h_curr[k] = vh;
+
+			// Insertion for the next row
+			vf = VMAX(VADDS(vf, v_gap_extend), VADDS(vh, v_gap_open));
+			vh = diag;
+		}
+
+		// Carry insertions across segment boundaries
+		vf = VSHIFT_IN(vf, SHRT_MIN);
+		int k = 0;
+		while (num_bands > 0 ? VGT_ANY(vf, f[k]) : VGT_ANY(vf, VADDS(h_curr[k], v_open_minus_extend))) {
+			h_curr[k] = VMAX(h_curr[k], vf);
+			f[k] = VMAX(f[k], vf);
+			vf = VADDS(vf, v_gap_extend);
+			if (++k == seg_len) {
+				vf = VSHIFT_IN(vf, SHRT_MIN);
+				k = 0;
+			}
+		}
+
+		for (int b=0; b<num_bands; b++) {
+			// Above the last cell of row r
+			int r = c - bands[b].hi;
+			if (r >= 2 && r <= seq1_len) {
+				VSTORE(lanes, h_curr[(r-2) % seg_len]);
+				borders[b].top_m[r] = lanes[(r-2) / seg_len];
+				VSTORE(lanes, f[(r-2) % seg_len]);
+				borders[b].top_i[r] = lanes[(r-2) / seg_len];
+			}
+
+			// Left of the first cell of row r
+			r = c - bands[b].lo + 1;
+			if (r >= 1 && r <= seq1_len) {
+				VSTORE(lanes, h_curr[(r-1) % seg_len]);
+				borders[b].left_m[r] = lanes[(r-1) / seg_len];
+				VSTORE(lanes, e[(r-1) % seg_len]);
+				borders[b].left_d[r] = lanes[(r-1) / seg_len];
+			}
+		}
+
+		VSTORE(lanes, h_curr[last_k]);
+		int score = lanes[last_lane];
+
+		if (score > *best_score) {
+			*best_idx = c;
+			*best_score = score;
+		} else if (score > *second_best_score) {
+			*second_best_score = score;
+		}
+
+		VEC* temp = h_prev;
+		h_prev = h_curr;
+		h_curr = temp;
+	}
+}
@@ -1,6 +1,8 @@
 /* Copyright 2013 University of North Carolina at Chapel Hill.  All rights reserved. */
 package abra;
 
+import java.util.Arrays;
+
 /**
  * Main entry point for Abra.
  * 
@@ -9,6 +11,10 @@ package abra;
 public class Abra {
 
 	public static void main(String[] args) throws Exception {
-		ReAligner.run(args);
+		if (args.length > 0 && args[0].equals("index")) {
+			ReferenceIndexer.main(Arrays.copyOfRange(args, 1, args.length));
+		} else {
+			ReAligner.run(args);
+		}
 	}
 }
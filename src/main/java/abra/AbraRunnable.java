@@ -18,11 +18,10 @@ public abstract class AbraRunnable implements Runnable {
 	public void run() {
 		try {
 			go();
-		} catch (Throwable t) {
-			t.printStackTrace();
-			System.exit(-1);
-		} finally {
-			threadManager.removeThread(this);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
 		}
 	}
 	
@@ -0,0 +1,125 @@
+package abra;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Optional on disk cache of native assembly results keyed by a digest of the assembled reads,
+ * region and assembly parameters.  Allows repeated runs over the same input to skip assembly.
+ * Entries are only valid for the assembler version that produced them.
+ */
+public class AssemblyCache {
+
+	// Increment when native assembler output changes
+	static final int VERSION = 1;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private File dir;
+
+	public AssemblyCache(String dir) {
+		this.dir = new File(dir);
+		if (!this.dir.isDirectory() && !this.dir.mkdirs()) {
+			throw new IllegalArgumentException("Unable to create assembly cache directory: " + dir);
+		}
+	}
+
+	/**
+	 * Returns the hex SHA-1 of the reads digest and parameters.
+	 */
+	static String key(byte[] readsDigest, Object... params) {
+		MessageDigest md = sha1();
+		StringBuilder str = new StringBuilder();
+		str.append(VERSION).append('\t').append(ByteOrder.nativeOrder());
+		for (Object param : params) {
+			str.append('\t').append(param);
+		}
+		md.update(str.toString().getBytes(UTF8));
+		md.update(readsDigest);
+
+		return toHex(md.digest());
+	}
+
+	/**
+	 * Returns the SHA-1 of the first length bytes of buffer.  The buffer's position is unchanged.
+	 */
+	static byte[] digest(ByteBuffer buffer, int length) {
+		ByteBuffer reads = buffer.duplicate();
+		reads.position(0);
+		reads.limit(length);
+		MessageDigest md = sha1();
+		md.update(reads);
+		return md.digest();
+	}
+
+	/**
+	 * Returns the cached result or null if not present or unreadable.
+	 */
+	public byte[] get(String key) {
+		File file = getFile(key);
+		if (!file.exists()) {
+			return null;
+		}
+
+		try {
+			return Files.readAllBytes(file.toPath());
+		} catch (IOException e) {
+			Logger.warn("Unable to read assembly cache entry: " + file + " - " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Writes via a temp file and rename so that concurrent readers never see a partial entry.
+	 * Write failures are logged and otherwise ignored.
+	 */
+	public void put(String key, byte[] value) {
+		File file = getFile(key);
+		File tmp = null;
+		try {
+			file.getParentFile().mkdirs();
+			tmp = File.createTempFile(key, ".tmp", file.getParentFile());
+			FileOutputStream out = new FileOutputStream(tmp);
+			try {
+				out.write(value);
+			} finally {
+				out.close();
+			}
+
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			Logger.warn("Unable to write assembly cache entry: " + file + " - " + e.getMessage());
+			if (tmp != null) {
+				tmp.delete();
+			}
+		}
+	}
+
+	private File getFile(String key) {
+		return new File(new File(dir, key.substring(0, 2)), key);
+	}
+
+	private static MessageDigest sha1() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder();
+		for (byte b : bytes) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+}
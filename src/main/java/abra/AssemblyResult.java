@@ -0,0 +1,92 @@
+package abra;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Contigs and status returned by the native assembler.
+ */
+public class AssemblyResult {
+
+	// Status codes match assembler.cpp
+	public static final int OK = 0;
+	public static final int STOPPED_ON_REPEAT = -3;
+	public static final int INVALID_INPUT = -5;
+
+	private static final AssemblyResult EMPTY = new AssemblyResult(OK, Collections.<ScoredContig>emptyList());
+
+	private int status;
+	private List<ScoredContig> contigs;
+
+	AssemblyResult(int status, List<ScoredContig> contigs) {
+		this.status = status;
+		this.contigs = contigs;
+	}
+
+	public static AssemblyResult empty() {
+		return EMPTY;
+	}
+
+	/**
+	 * Decodes the native byte order result produced by assembler.cpp's encode_contigs:
+	 * status, contig count, then per contig: score, num nodes, min kmer frequency, length and bases.
+	 */
+	public static AssemblyResult decode(byte[] bytes) {
+		ByteBuffer buf = ByteBuffer.wrap(bytes).order(ByteOrder.nativeOrder());
+
+		int status = buf.getInt();
+		int count = buf.getInt();
+
+		List<ScoredContig> contigs = new ArrayList<ScoredContig>(count);
+		for (int i=0; i<count; i++) {
+			double score = buf.getDouble();
+			int numNodes = buf.getInt();
+			int minKmerFrequency = buf.getInt();
+			int length = buf.getInt();
+
+			char[] bases = new char[length];
+			for (int j=0; j<length; j++) {
+				bases[j] = (char) buf.get();
+			}
+
+			contigs.add(new ScoredContig(score, new String(bases), numNodes, minKmerFrequency));
+		}
+
+		return new AssemblyResult(status, contigs);
+	}
+
+	public int getStatus() {
+		return status;
+	}
+
+	public boolean isOk() {
+		return status == OK;
+	}
+
+	public boolean isRepeat() {
+		return status == STOPPED_ON_REPEAT;
+	}
+
+	public List<ScoredContig> getContigs() {
+		return contigs;
+	}
+
+	/**
+	 * Formats contigs as fasta records named prefix_idx_score.
+	 */
+	public String toFasta(String prefix) {
+		StringBuilder fasta = new StringBuilder();
+		int idx = 0;
+		for (ScoredContig contig : contigs) {
+			fasta.append('>').append(prefix).append('_').append(idx++).append('_');
+			fasta.append(String.format(Locale.ROOT, "%f", contig.getScore())).append('\n');
+			fasta.append(contig.getContig()).append('\n');
+		}
+
+		return fasta.toString();
+	}
+}
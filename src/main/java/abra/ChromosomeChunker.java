@@ -1,11 +1,17 @@
 package abra;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import abra.Logger.Level;
+import htsjdk.samtools.BAMFileSpan;
+import htsjdk.samtools.BAMIndex;
+import htsjdk.samtools.Chunk;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SamReader;
 
 public class ChromosomeChunker {
 	
@@ -13,8 +19,18 @@ public class ChromosomeChunker {
 	//private static final int MIN_CHUNK_SIZE = 50000000;
 	private static final int MIN_CHUNK_SIZE = 25000000;
 	
+	// Size of bins used to estimate work
+	private static final int BIN_SIZE = 1000000;
+	
+	// N regions at least this long are preferred chunk boundaries
+	private static final int MIN_GAP_SIZE = 10000;
+	
 	private CompareToReference2 c2r;
 	
+	private int chunkSize;
+	private int binSize;
+	private int minGapSize;
+	
 	// Chromosome chunks
 	private List<Feature> chunks;
 	
@@ -22,57 +38,254 @@ public class ChromosomeChunker {
 	private Map<String, List<Integer>> chunkGroups;
 	
 	public ChromosomeChunker(CompareToReference2 c2r) {
+		this(c2r, MIN_CHUNK_SIZE, BIN_SIZE, MIN_GAP_SIZE);
+	}
+	
+	ChromosomeChunker(CompareToReference2 c2r, int chunkSize, int binSize, int minGapSize) {
 		this.c2r = c2r;
+		this.chunkSize = chunkSize;
+		this.binSize = binSize;
+		this.minGapSize = minGapSize;
 	}
 
-	// Identify chunks for processing
+	// Identify chunks for processing using reference content only
 	// Split chunks at N regions
 	public void init() {
+		Map<String, double[]> binWork = newBins();
+		addWork(binWork, getReferenceBases());
+		init(binWork);
+	}
+	
+	/**
+	 * Identify chunks representing roughly equal amounts of work.  Work per bin is estimated
+	 * using defined reference bases, target region bases and BAM index content.  Each estimate
+	 * is normalized across the genome so that all contribute equally.  Chunks are split at N regions
+	 * where possible.
+	 */
+	public void init(List<Feature> regions, String[] bams) throws IOException {
+		Map<String, double[]> binWork = newBins();
+		addWork(binWork, getReferenceBases());
+		
+		if (regions != null) {
+			addWork(binWork, getTargetBases(regions));
+		}
+		
+		if (bams != null) {
+			addWork(binWork, getBamBytes(bams));
+		}
+		
+		init(binWork);
+	}
+	
+	private void init(Map<String, double[]> binWork) {
 		
 		chunks = new ArrayList<Feature>();
 		chunkGroups = new HashMap<String, List<Integer>>();
 		
-		int chunkIdx = 0;
+		double totalWork = 0;
+		long totalLength = 0;
 		for (String chromosome : c2r.getChromosomes()) {
-			long currStart = 1;
-			int chromosomeLength = c2r.getChromosomeLength(chromosome);
+			for (double work : binWork.get(chromosome)) {
+				totalWork += work;
+			}
+			totalLength += c2r.getChromosomeLength(chromosome);
+		}
+		
+		// Target roughly the same number of chunks as fixed size chunking
+		double targetWork = totalLength > 0 ? totalWork * chunkSize / totalLength : 0;
+		
+		for (String chromosome : c2r.getChromosomes()) {
+			chunkChromosome(chromosome, binWork.get(chromosome), targetWork);
+		}
+		
+		Logger.info("Num chromosome chunks: %d", chunks.size());
+		Logger.debug("Chromosome chunks:");
+		for (Feature chunk : chunks) {
+			Logger.debug(chunk.toString());
+		}
+	}
+	
+	private void chunkChromosome(String chromosome, double[] work, double targetWork) {
+		int chromosomeLength = c2r.getChromosomeLength(chromosome);
+		List<Feature> gaps = getGaps(chromosome);
+		
+		long currStart = 1;
+		double currWork = 0;
+		int gapIdx = 0;
+		
+		for (int bin=0; bin<work.length; bin++) {
+			long binEnd = Math.min((long) (bin+1) * binSize, chromosomeLength);
 			
-			while (currStart < chromosomeLength) {
-				Feature chunk = new Feature(chromosome, currStart, Math.min(currStart+MIN_CHUNK_SIZE-1, chromosomeLength));
-				currStart = chunk.getEnd()+1;
-				chunks.add(chunk);
-				
-				if (!chunkGroups.containsKey(chromosome)) {
-					chunkGroups.put(chromosome, new ArrayList<Integer>());
+			// Prefer splitting within a gap once a reasonable amount of work has accumulated
+			while (gapIdx < gaps.size() && gaps.get(gapIdx).getStart() <= binEnd) {
+				Feature gap = gaps.get(gapIdx);
+				long gapMid = (gap.getStart() + gap.getEnd()) / 2;
+				if (currWork >= targetWork / 2 && gapMid > currStart && gapMid < chromosomeLength) {
+					addChunk(chromosome, currStart, gapMid);
+					currStart = gapMid + 1;
+					currWork = 0;
 				}
-				
-				chunkGroups.get(chromosome).add(chunkIdx);
-				chunkIdx += 1;
+				gapIdx += 1;
+			}
+			
+			currWork += work[bin];
+			
+			if (currWork >= targetWork && binEnd < chromosomeLength) {
+				addChunk(chromosome, currStart, binEnd);
+				currStart = binEnd + 1;
+				currWork = 0;
 			}
-						
-/*			
-			List<Feature> nRegions = c2r.getUndefinedRegions().get(chromosome);
+		}
+		
+		if (currStart <= chromosomeLength) {
+			addChunk(chromosome, currStart, chromosomeLength);
+		}
+	}
+	
+	private void addChunk(String chromosome, long start, long end) {
+		if (!chunkGroups.containsKey(chromosome)) {
+			chunkGroups.put(chromosome, new ArrayList<Integer>());
+		}
+		
+		chunkGroups.get(chromosome).add(chunks.size());
+		chunks.add(new Feature(chromosome, start, end));
+	}
+	
+	private List<Feature> getGaps(String chromosome) {
+		List<Feature> gaps = new ArrayList<Feature>();
+		
+		List<Feature> nRegions = c2r.getUndefinedRegions(chromosome);
+		if (nRegions != null) {
 			for (Feature nRegion : nRegions) {
-				// Only consider N regions of reasonable size
-				if (nRegion.getEnd() - nRegion.getStart() > 1000) {
-					if (nRegion.getStart() - currStart > MIN_CHUNK_SIZE && nRegion.getStart()+MIN_CHUNK_SIZE < chromosomeLength) {
-						Feature chunk = new Feature(chromosome, currStart, nRegion.getStart());
-						chunks.add(chunk);
-						currStart = nRegion.getStart()+1;
-					}
+				if (nRegion.getLength() >= minGapSize) {
+					gaps.add(nRegion);
 				}
 			}
+		}
+		
+		return gaps;
+	}
+	
+	private int getNumBins(String chromosome) {
+		return (c2r.getChromosomeLength(chromosome) + binSize - 1) / binSize;
+	}
+	
+	private Map<String, double[]> newBins() {
+		Map<String, double[]> bins = new HashMap<String, double[]>();
+		for (String chromosome : c2r.getChromosomes()) {
+			bins.put(chromosome, new double[getNumBins(chromosome)]);
+		}
+		
+		return bins;
+	}
+	
+	// Add normalized values to the total work for each bin
+	private void addWork(Map<String, double[]> binWork, Map<String, double[]> values) {
+		double total = 0;
+		for (double[] chromosomeValues : values.values()) {
+			for (double value : chromosomeValues) {
+				total += value;
+			}
+		}
+		
+		if (total > 0) {
+			for (String chromosome : values.keySet()) {
+				double[] work = binWork.get(chromosome);
+				double[] chromosomeValues = values.get(chromosome);
+				for (int i=0; i<work.length; i++) {
+					work[i] += chromosomeValues[i] / total;
+				}
+			}
+		}
+	}
+	
+	// Number of non N reference bases per bin
+	private Map<String, double[]> getReferenceBases() {
+		Map<String, double[]> bases = newBins();
+		
+		for (String chromosome : c2r.getChromosomes()) {
+			double[] chromosomeBases = bases.get(chromosome);
+			int chromosomeLength = c2r.getChromosomeLength(chromosome);
+			for (int i=0; i<chromosomeBases.length; i++) {
+				chromosomeBases[i] = Math.min((long) (i+1) * binSize, chromosomeLength) - (long) i * binSize;
+			}
 			
-			if (currStart < chromosomeLength) {
-				chunks.add(new Feature(chromosome, currStart, chromosomeLength));
+			List<Feature> nRegions = c2r.getUndefinedRegions(chromosome);
+			if (nRegions != null) {
+				for (Feature nRegion : nRegions) {
+					for (long pos = nRegion.getStart(); pos <= nRegion.getEnd(); ) {
+						int bin = (int) ((pos-1) / binSize);
+						long binEnd = Math.min((long) (bin+1) * binSize, nRegion.getEnd());
+						chromosomeBases[bin] -= binEnd - pos + 1;
+						pos = binEnd + 1;
+					}
+				}
 			}
-*/
 		}
 		
-		Logger.debug("Chromosome chunks:");
-		for (Feature chunk : chunks) {
-			Logger.debug(chunk.toString());
+		return bases;
+	}
+	
+	// Number of target region bases per bin.  Regions are assigned to the bin containing their start position.
+	private Map<String, double[]> getTargetBases(List<Feature> regions) {
+		Map<String, double[]> bases = newBins();
+		
+		for (Feature region : regions) {
+			double[] chromosomeBases = bases.get(region.getSeqname());
+			if (chromosomeBases != null) {
+				int bin = (int) Math.max((region.getStart()-1) / binSize, 0);
+				if (bin < chromosomeBases.length) {
+					chromosomeBases[bin] += region.getLength();
+				}
+			}
 		}
+		
+		return bases;
+	}
+	
+	// Approximate compressed bytes per bin summed across all indexed BAM files
+	private Map<String, double[]> getBamBytes(String[] bams) throws IOException {
+		Map<String, double[]> bytes = newBins();
+		
+		for (String bam : bams) {
+			SamReader reader = SAMRecordUtils.getSamReader(bam);
+			try {
+				if (reader.type() != SamReader.Type.BAM_TYPE || !reader.hasIndex()) {
+					Logger.info("No BAM index available for: %s.  Read content not used for chunking.", bam);
+					continue;
+				}
+				
+				BAMIndex index = reader.indexing().getIndex();
+				SAMFileHeader header = reader.getFileHeader();
+				
+				for (String chromosome : c2r.getChromosomes()) {
+					int refIdx = header.getSequenceIndex(chromosome);
+					if (refIdx < 0) {
+						continue;
+					}
+					
+					double[] chromosomeBytes = bytes.get(chromosome);
+					int chromosomeLength = c2r.getChromosomeLength(chromosome);
+					for (int i=0; i<chromosomeBytes.length; i++) {
+						int start = i * binSize + 1;
+						int end = (int) Math.min((long) (i+1) * binSize, chromosomeLength);
+						BAMFileSpan span = index.getSpanOverlapping(refIdx, start, end);
+						if (span != null && !span.isEmpty()) {
+							long last = 0;
+							for (Chunk chunk : span.getChunks()) {
+								last = Math.max(last, chunk.getChunkEnd());
+							}
+							// Virtual file offsets.  Upper 48 bits are the compressed block offset
+							chromosomeBytes[i] += Math.max((last >>> 16) - (span.getFirstOffset() >>> 16), 0);
+						}
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		}
+		
+		return bytes;
 	}
 	
 	public List<Feature> getChunks() {
@@ -1,16 +1,28 @@
 /* Copyright 2013 University of North Carolina at Chapel Hill.  All rights reserved. */
 package abra;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 
 import htsjdk.samtools.Cigar;
 import htsjdk.samtools.CigarElement;
@@ -25,20 +37,101 @@ import htsjdk.samtools.SamReader;
  */
 public class CompareToReference2 {
 	
+	// Suffix of the prebuilt 2 bit reference index.  i.e. hg38.fa.abi
+	public static final String INDEX_SUFFIX = ".abi";
+	
+	private static final int INDEX_MAGIC = 0x41424932;  // "ABI2"
+	private static final int INDEX_VERSION = 1;
+	
+	// java.util.Random's linear congruential generator.  Used to position the N randomization
+	// stream at the start of a lazily loaded chromosome.
+	private static final long RANDOM_MULTIPLIER = 0x5DEECE66DL;
+	private static final long RANDOM_ADDEND = 0xBL;
+	private static final long RANDOM_MASK = (1L << 48) - 1;
+	
+	// 2 bit code for each base
+	private static final char[] BASES = { 'A', 'T', 'C', 'G' };
+	
+	// 2 bit code indexed by base character.  -1 for anything other than ACTG.
+	private static final long[] BASE_CODES = new long[256];
+	
+	static {
+		Arrays.fill(BASE_CODES, -1);
+		BASE_CODES['A'] = 0;
+		BASE_CODES['T'] = 1;
+		BASE_CODES['C'] = 2;
+		BASE_CODES['G'] = 3;
+	}
+	
 	private Random random = new Random(1);
 	private String refFileName;
 	private BufferedReader refReader;
-	private Map<String, byte[]> refMap;
+	private Map<String, ByteBuffer> refMap;
 	private boolean is2Bit = true;
 	private List<String> chromosomes;
-	private Map<String, Integer> chromosomeLength; 
+	private Map<String, Integer> chromosomeLength;
+	
+	// Runs of non ACTG bases (1 based, inclusive) keyed by chromosome
+	private Map<String, List<Feature>> undefinedRegions;
+	
+	// Lazy loading via fasta index.  Values are offset, line bases and line bytes
+	private boolean isLazy = false;
+	private Map<String, long[]> faiEntries;
+	private Map<String, Object> loadLocks;
 
 	/**
 	 * Memory efficient reference storage using 2 bits per base.
 	 * N's are converted to random bases.
+	 * If an up to date index (reference + INDEX_SUFFIX) is present, it is memory mapped
+	 * instead of parsing the fasta.
 	 */
 	public void init(String reference) throws FileNotFoundException, IOException {
 		this.refFileName = reference;
+		
+		File index = new File(reference + INDEX_SUFFIX);
+		File fasta = new File(reference);
+		if (index.exists()) {
+			if (fasta.exists() && fasta.lastModified() > index.lastModified()) {
+				Logger.warn("Reference index: " + index.getPath() + " is older than the reference.  Ignoring index.");
+				loadRefMap();
+			} else if (fasta.exists() && getIndexVersion(index.getPath()) != INDEX_VERSION) {
+				Logger.warn("Reference index: " + index.getPath() + " was written by a different version.  Ignoring index.  Rebuild with: abra2.jar index");
+				loadRefMap();
+			} else {
+				loadIndex(index.getPath());
+			}
+		} else {
+			loadRefMap();
+		}
+	}
+	
+	/**
+	 * 2 bit reference storage where each chromosome is decoded from the fasta upon first
+	 * access using the fasta index (reference.fai) and may be released via release(chromosome).
+	 * N's are converted to the same random bases as init() regardless of load order.
+	 * Undefined regions are available for all chromosomes via getUndefinedRegions(chromosome).
+	 * Falls back to init() if a prebuilt reference index is present (mapped chromosomes are paged in
+	 * on demand) or if the fasta index is missing.
+	 */
+	public void initLazy(String reference) throws FileNotFoundException, IOException {
+		File fai = new File(reference + ".fai");
+		
+		if (new File(reference + INDEX_SUFFIX).exists()) {
+			init(reference);
+		} else if (!fai.exists()) {
+			Logger.warn("No fasta index found for: " + reference + ".  Loading entire reference.");
+			init(reference);
+		} else {
+			this.refFileName = reference;
+			loadFai(fai.getPath());
+		}
+	}
+	
+	/**
+	 * Loads the reference from fasta regardless of the presence of an index.
+	 */
+	void initFasta(String reference) throws FileNotFoundException, IOException {
+		this.refFileName = reference;
 		loadRefMap();
 	}
 	
@@ -58,18 +151,50 @@ public class CompareToReference2 {
 	
 	public void initLocal(String chrom, String sequence) {
 //		is2Bit = false;
-		this.refMap = new HashMap<String, byte[]>();
-		refMap.put(chrom, getBytes(sequence));
+		this.refMap = new HashMap<String, ByteBuffer>();
+		refMap.put(chrom, ByteBuffer.wrap(getBytes(sequence)));
 	}
 	
 	public boolean containsChromosome(String chromosome) {
-		return refMap.containsKey(chromosome);
+		return refMap.containsKey(chromosome) || (isLazy && faiEntries.containsKey(chromosome));
 	}
 	
 	public List<String> getChromosomes() {
 		return chromosomes;
 	}
 	
+	/**
+	 * Returns runs of N's (or other non ACTG bases) in the reference keyed by chromosome.
+	 */
+	public Map<String, List<Feature>> getUndefinedRegions() {
+		return undefinedRegions;
+	}
+	
+	/**
+	 * Returns runs of N's (or other non ACTG bases) in the specified chromosome or null if unknown.
+	 * When loading lazily, the chromosome's fasta entry is scanned (without storing bases) if it
+	 * has not been loaded.
+	 */
+	public List<Feature> getUndefinedRegions(String chromosome) {
+		List<Feature> nRegions = undefinedRegions != null ? undefinedRegions.get(chromosome) : null;
+		
+		if (nRegions == null && isLazy && faiEntries.containsKey(chromosome)) {
+			synchronized(loadLocks.get(chromosome)) {
+				nRegions = undefinedRegions.get(chromosome);
+				if (nRegions == null) {
+					try {
+						nRegions = readChromosome(chromosome, null);
+					} catch (IOException e) {
+						throw new RuntimeException("Error scanning chromosome: " + chromosome + " from: " + refFileName, e);
+					}
+					undefinedRegions.put(chromosome, nRegions);
+				}
+			}
+		}
+		
+		return nRegions;
+	}
+	
 	public void cleanup() throws IOException {
 		refReader.close();
 	}
@@ -105,14 +230,17 @@ public class CompareToReference2 {
 	}
 	
 	private long getRefLength(String refName) {
-		return refMap.get(refName.trim()).length * 4;
+		return getRef(refName.trim()).capacity() * 4;
 	}
 	
 	// 1 based input
 	public String getAlternateReference(int refStart, int refEnd, String chromosome, String seq, Cigar cigar) {
 		String alt = null;
 		
-		if (refEnd < getRefLength(chromosome)) {
+		ByteBuffer ref = getRef(chromosome.trim());
+		long refLength = ref.capacity() * 4;
+		
+		if (refEnd < refLength) {
 			
 			StringBuffer altBuf = new StringBuffer(seq.length());
 		
@@ -121,21 +249,16 @@ public class CompareToReference2 {
 			for (CigarElement element : cigar.getCigarElements()) {
 				if (element.getOperator() == CigarOperator.M) {
 					
-					for (int i=0; i<element.getLength(); i++) {
-
-						if (refIdx >= getRefLength(chromosome)) {
-							// You're off the edge of the map matey.  Monsters be here!
-							// This read has aligned across chromosomes.  Do not proceed.
-							return null;
-						}
-						
-						char refBase = getRefBase(refIdx, chromosome);
-						
-						altBuf.append(refBase);
-											
-						readIdx++;
-						refIdx++;
+					if (refIdx + element.getLength() > refLength) {
+						// You're off the edge of the map matey.  Monsters be here!
+						// This read has aligned across chromosomes.  Do not proceed.
+						return null;
 					}
+					
+					appendBases(altBuf, ref, refIdx, element.getLength());
+					
+					readIdx += element.getLength();
+					refIdx += element.getLength();
 				} else if (element.getOperator() == CigarOperator.I) {
 					altBuf.append(seq.substring(readIdx, readIdx + element.getLength()));
 					readIdx += element.getLength();
@@ -152,14 +275,6 @@ public class CompareToReference2 {
 		return alt;
 	}
 		
-	private char getReadBase(SAMRecord read, int index) {
-		return (char) read.getReadBases()[index];
-	}
-	
-	private int getBaseQuality(SAMRecord read, int index) {
-		return (char) read.getBaseQualities()[index];
-	}
-	
 	private int numDifferences(SAMRecord read, int minBaseQual) {
 		return numDifferences(read, minBaseQual, true);
 	}
@@ -170,25 +285,21 @@ public class CompareToReference2 {
 		
 		try {
 		
-		if (refMap.get(read.getReferenceName().trim()) != null) {
+		// Resolve the reference once per read
+		ByteBuffer ref = getRef(read.getReferenceName().trim());
+		
+		if (ref != null) {
+			long refLength = ref.capacity() * 4;
+			byte[] bases = read.getReadBases();
+			byte[] quals = read.getBaseQualities();
 			int readIdx = 0;
 			int refIdx = read.getAlignmentStart()-1;
 			int elementIdx = 0;
 			for (CigarElement element : read.getCigar().getCigarElements()) {
 				if (element.getOperator() == CigarOperator.M) {
-					for (int i=0; i<element.getLength(); i++) {
-						char readBase = getReadBase(read, readIdx);
-						char refBase = getRefBase(refIdx, read.getReferenceName());
-//						if ((readBase != refBase) && (readBase != 'N') && (refBase != 'N')) {
-						if (readBase != refBase) {
-							if (minBaseQual == 0 || getBaseQuality(read, readIdx) >= minBaseQual) {
-								diffs++;
-							}
-						}
-						
-						readIdx++;
-						refIdx++;
-					}
+					diffs += numMismatches(ref, bases, quals, readIdx, refIdx, element.getLength(), minBaseQual);
+					readIdx += element.getLength();
+					refIdx += element.getLength();
 				} else if (element.getOperator() == CigarOperator.I) {
 					readIdx += element.getLength();
 				} else if (element.getOperator() == CigarOperator.D || element.getOperator() == CigarOperator.N) {
@@ -203,13 +314,11 @@ public class CompareToReference2 {
 					
 					//TODO: Should this always be included?
 					for (int i=0; i<element.getLength(); i++) {
-						if ((refIdx >= 0) && (refIdx < getRefLength(read.getReferenceName())-1)) {
-//							char readBase = Character.toUpperCase(read.getReadString().charAt(readIdx));
-							char readBase = getReadBase(read, readIdx);
-							char refBase = getRefBase(refIdx, read.getReferenceName());
-//							if ((readBase != refBase) && (readBase != 'N') && (refBase != 'N')) {
+						if ((refIdx >= 0) && (refIdx < refLength-1)) {
+							char readBase = (char) bases[readIdx];
+							char refBase = getBaseAsChar(refIdx, ref);
 							if (readBase != refBase) {
-								if (minBaseQual == 0 || getBaseQuality(read, readIdx) >= minBaseQual) {
+								if (minBaseQual == 0 || quals[readIdx] >= minBaseQual) {
 									if (includeSoftClipping) {
 										diffs++;
 									}
@@ -239,6 +348,117 @@ public class CompareToReference2 {
 		return diffs;
 	}
 	
+	/**
+	 * Counts mismatches between the read and reference for an aligned block.
+	 * Read bases are packed into 2 bit words and compared to the reference 32 bases at a time.
+	 */
+	private int numMismatches(ByteBuffer ref, byte[] bases, byte[] quals, int readIdx, int refIdx, int length, int minBaseQual) {
+		
+		if (!is2Bit) {
+			int diffs = 0;
+			for (int i=0; i<length; i++) {
+				if ((char) bases[readIdx+i] != getBaseAsChar(refIdx+i, ref)) {
+					if (minBaseQual == 0 || quals[readIdx+i] >= minBaseQual) {
+						diffs++;
+					}
+				}
+			}
+			return diffs;
+		}
+		
+		if (refIdx < 0 || refIdx + length > ref.capacity()*4) {
+			throw new IndexOutOfBoundsException("Reference index: " + refIdx + " length: " + length + " out of range");
+		}
+		
+		int diffs = 0;
+		
+		for (int block=0; block<length; block+=32) {
+			int blockLen = Math.min(32, length-block);
+			
+			// Pack read bases.  Non ACTG bases always mismatch and are tracked separately.
+			long readWord = 0;
+			long undefined = 0;
+			for (int i=0; i<blockLen; i++) {
+				int shift = 62 - i*2;
+				long code = BASE_CODES[bases[readIdx+block+i] & 0xFF];
+				if (code < 0) {
+					undefined |= 1L << shift;
+				} else {
+					readWord |= code << shift;
+				}
+			}
+			
+			long diff = readWord ^ getRefWord(ref, refIdx+block);
+			
+			// Collapse each 2 bit difference into the low bit of its slot
+			long mismatches = ((diff | (diff >>> 1)) & 0x5555555555555555L) | undefined;
+			
+			if (blockLen < 32) {
+				mismatches &= ~(-1L >>> (blockLen*2));
+			}
+			
+			if (minBaseQual == 0) {
+				diffs += Long.bitCount(mismatches);
+			} else {
+				while (mismatches != 0) {
+					int bit = Long.numberOfTrailingZeros(mismatches);
+					int i = (62 - bit) / 2;
+					if (quals[readIdx+block+i] >= minBaseQual) {
+						diffs++;
+					}
+					mismatches &= mismatches-1;
+				}
+			}
+		}
+		
+		return diffs;
+	}
+	
+	/**
+	 * Returns 32 packed reference bases starting at idx.  First base in the high order bits.
+	 */
+	private long getRefWord(ByteBuffer ref, int idx) {
+		int byteIdx = idx / 4;
+		int subIdx = idx % 4;
+		long word;
+		long next;
+		
+		if (byteIdx + 9 <= ref.capacity()) {
+			word = ref.getLong(byteIdx);
+			next = ref.get(byteIdx+8) & 0xFF;
+		} else {
+			// Near the end of the reference.  Pad with zeros.
+			word = 0;
+			for (int i=0; i<8; i++) {
+				word = (word << 8) | (byteIdx+i < ref.capacity() ? ref.get(byteIdx+i) & 0xFF : 0);
+			}
+			next = byteIdx+8 < ref.capacity() ? ref.get(byteIdx+8) & 0xFF : 0;
+		}
+		
+		if (subIdx > 0) {
+			word = (word << (subIdx*2)) | (next >>> (8-subIdx*2));
+		}
+		
+		return word;
+	}
+	
+	private void appendBases(StringBuffer buf, ByteBuffer ref, int idx, int length) {
+		if (!is2Bit) {
+			for (int i=0; i<length; i++) {
+				buf.append(getBaseAsChar(idx+i, ref));
+			}
+			return;
+		}
+		
+		for (int block=0; block<length; block+=32) {
+			long word = getRefWord(ref, idx+block);
+			int blockLen = Math.min(32, length-block);
+			for (int i=0; i<blockLen; i++) {
+				buf.append(BASES[(int) (word >>> (62-i*2)) & 3]);
+			}
+		}
+	}
+	
 	// Convert input StringBuffer to 2 bit representation.
 	private byte[] getBytes(CharSequence buf) {
 		if (is2Bit) {
@@ -252,7 +472,7 @@ public class CompareToReference2 {
 			int byteIdx = 0;
 			for (int i=0; i<buf.length(); i++) {
 				
-				byte base = getBase(buf.charAt(i));
+				byte base = getBase(buf.charAt(i), random);
 				byte shifted = (byte) (base << (6-subIdx*2));
 				
 				bytes[byteIdx] = (byte) (bytes[byteIdx] | shifted);
@@ -273,7 +493,19 @@ public class CompareToReference2 {
 		}
 	}
 	
-	private byte getBase(char ch) {
+	private boolean isUndefined(char ch) {
+		switch (Character.toUpperCase(ch)) {
+			case 'A':
+			case 'T':
+			case 'C':
+			case 'G':
+				return false;
+			default:
+				return true;
+		}
+	}
+	
+	private byte getBase(char ch, Random random) {
 		switch (Character.toUpperCase(ch)) {
 		case 'A':
 			return 0;
@@ -284,11 +516,11 @@ public class CompareToReference2 {
 		case 'G':
 			return 3;
 		default:
-			return randomBase();
+			return randomBase(random);
 		}
 	}
 	
-	private byte randomBase() {
+	private byte randomBase(Random random) {
 		byte val;
 		double rand = random.nextDouble();
 		
@@ -308,9 +540,10 @@ public class CompareToReference2 {
 	private void loadRefMap() throws IOException {
 		Logger.info("Loading reference map:  " + this.refFileName);
 		long s = System.currentTimeMillis();
-		this.refMap = new HashMap<String, byte[]>();
+		this.refMap = new HashMap<String, ByteBuffer>();
 		this.chromosomes = new ArrayList<String>();
 		this.chromosomeLength = new HashMap<String, Integer>();
+		this.undefinedRegions = new HashMap<String, List<Feature>>();
 		
 		BufferedReader reader = new BufferedReader(new FileReader(refFileName));
 		
@@ -321,9 +554,10 @@ public class CompareToReference2 {
 			if (line.startsWith(">")) {
 				if (currSeqName != null) {
 					Logger.debug("Chromosome: %s length: %d", currSeqName, sequence.length());
-					refMap.put(currSeqName, getBytes(sequence));
+					refMap.put(currSeqName, ByteBuffer.wrap(getBytes(sequence)));
 					chromosomes.add(currSeqName);
 					chromosomeLength.put(currSeqName, sequence.length());
+					undefinedRegions.put(currSeqName, findUndefinedRegions(currSeqName, sequence));
 				}
 				
 				sequence = new StringBuffer();
@@ -347,9 +581,10 @@ public class CompareToReference2 {
 		}
 		
 		Logger.debug("Chromosome: %s length: %d", currSeqName, sequence.length());
-		refMap.put(currSeqName, getBytes(sequence));
+		refMap.put(currSeqName, ByteBuffer.wrap(getBytes(sequence)));
 		chromosomes.add(currSeqName);
 		chromosomeLength.put(currSeqName, sequence.length());
+		undefinedRegions.put(currSeqName, findUndefinedRegions(currSeqName, sequence));
 		
 		sequence = null;
 		
@@ -359,14 +594,344 @@ public class CompareToReference2 {
 		Logger.info("Done loading ref map.  Elapsed secs: " + (e-s)/1000);
 	}
 	
+	private List<Feature> findUndefinedRegions(String chromosome, CharSequence seq) {
+		List<Feature> regions = new ArrayList<Feature>();
+		
+		int start = -1;
+		for (int i=0; i<seq.length(); i++) {
+			if (isUndefined(seq.charAt(i))) {
+				if (start < 0) {
+					start = i;
+				}
+			} else if (start >= 0) {
+				regions.add(new Feature(chromosome, start+1, i));
+				start = -1;
+			}
+		}
+		
+		if (start >= 0) {
+			regions.add(new Feature(chromosome, start+1, seq.length()));
+		}
+		
+		return regions;
+	}
+	
+	/**
+	 * Writes the 2 bit packed reference, chromosome lengths and N regions to the specified file.
+	 * Layout: magic, version, header length, header, then each chromosome's packed bases
+	 * starting on an 8 byte boundary in header order.
+	 */
+	public void writeIndex(String indexFile) throws IOException {
+		if (!is2Bit) {
+			throw new IllegalArgumentException("Only 2 bit references may be indexed");
+		}
+		
+		ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+		DataOutputStream header = new DataOutputStream(headerBytes);
+		header.writeInt(chromosomes.size());
+		for (String chromosome : chromosomes) {
+			header.writeUTF(chromosome);
+			header.writeInt(chromosomeLength.get(chromosome));
+			header.writeInt(getRef(chromosome).capacity());
+			List<Feature> nRegions = undefinedRegions.get(chromosome);
+			header.writeInt(nRegions.size());
+			for (Feature nRegion : nRegions) {
+				header.writeInt((int) nRegion.getStart());
+				header.writeInt((int) nRegion.getEnd());
+			}
+		}
+		header.close();
+		
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile), 1 << 20));
+		out.writeInt(INDEX_MAGIC);
+		out.writeInt(INDEX_VERSION);
+		out.writeInt(headerBytes.size());
+		headerBytes.writeTo(out);
+		
+		long offset = 12 + headerBytes.size();
+		offset = pad(out, offset);
+		
+		for (String chromosome : chromosomes) {
+			ByteBuffer ref = getRef(chromosome).duplicate();
+			ref.clear();
+			byte[] buf = new byte[Math.min(ref.remaining(), 1 << 20)];
+			while (ref.hasRemaining()) {
+				int len = Math.min(buf.length, ref.remaining());
+				ref.get(buf, 0, len);
+				out.write(buf, 0, len);
+			}
+			offset = pad(out, offset + ref.capacity());
+		}
+		
+		out.close();
+	}
+	
+	private long pad(DataOutputStream out, long offset) throws IOException {
+		while (offset % 8 != 0) {
+			out.write(0);
+			offset++;
+		}
+		return offset;
+	}
+	
+	private int getIndexVersion(String indexFile) throws IOException {
+		DataInputStream in = new DataInputStream(new FileInputStream(indexFile));
+		try {
+			if (in.readInt() != INDEX_MAGIC) {
+				throw new IllegalArgumentException("Invalid reference index: " + indexFile);
+			}
+			return in.readInt();
+		} finally {
+			in.close();
+		}
+	}
+	
+	private void loadIndex(String indexFile) throws IOException {
+		Logger.info("Mapping reference index:  " + indexFile);
+		long s = System.currentTimeMillis();
+		this.refMap = new HashMap<String, ByteBuffer>();
+		this.chromosomes = new ArrayList<String>();
+		this.chromosomeLength = new HashMap<String, Integer>();
+		this.undefinedRegions = new HashMap<String, List<Feature>>();
+		
+		RandomAccessFile file = new RandomAccessFile(indexFile, "r");
+		
+		try {
+			if (file.readInt() != INDEX_MAGIC) {
+				throw new IllegalArgumentException("Invalid reference index: " + indexFile);
+			}
+			int version = file.readInt();
+			if (version != INDEX_VERSION) {
+				throw new IllegalArgumentException("Unsupported reference index version: " + version + " in: " + indexFile);
+			}
+			
+			byte[] headerBytes = new byte[file.readInt()];
+			file.readFully(headerBytes);
+			DataInputStream header = new DataInputStream(new ByteArrayInputStream(headerBytes));
+			
+			long offset = 12 + headerBytes.length;
+			offset = (offset + 7) & ~7L;
+			
+			FileChannel channel = file.getChannel();
+			
+			int numChromosomes = header.readInt();
+			for (int i=0; i<numChromosomes; i++) {
+				String chromosome = header.readUTF();
+				int length = header.readInt();
+				int numBytes = header.readInt();
+				int numRegions = header.readInt();
+				List<Feature> nRegions = new ArrayList<Feature>(numRegions);
+				for (int j=0; j<numRegions; j++) {
+					int start = header.readInt();
+					int end = header.readInt();
+					nRegions.add(new Feature(chromosome, start, end));
+				}
+				
+				Logger.debug("Chromosome: %s length: %d", chromosome, length);
+				refMap.put(chromosome, channel.map(FileChannel.MapMode.READ_ONLY, offset, numBytes));
+				chromosomes.add(chromosome);
+				chromosomeLength.put(chromosome, length);
+				undefinedRegions.put(chromosome, nRegions);
+				
+				offset = (offset + numBytes + 7) & ~7L;
+			}
+		} finally {
+			// Mappings remain valid after the channel is closed
+			file.close();
+		}
+		
+		long e = System.currentTimeMillis();
+		Logger.info("Done mapping reference index.  Elapsed msecs: " + (e-s));
+	}
+	
+	private void loadFai(String fai) throws IOException {
+		Logger.info("Loading fasta index:  " + fai);
+		this.isLazy = true;
+		this.refMap = new ConcurrentHashMap<String, ByteBuffer>();
+		this.chromosomes = new ArrayList<String>();
+		this.chromosomeLength = new HashMap<String, Integer>();
+		this.undefinedRegions = new ConcurrentHashMap<String, List<Feature>>();
+		this.faiEntries = new HashMap<String, long[]>();
+		this.loadLocks = new HashMap<String, Object>();
+		
+		BufferedReader reader = new BufferedReader(new FileReader(fai));
+		String line = reader.readLine();
+		while (line != null) {
+			String[] fields = line.split("\t");
+			if (fields.length < 5) {
+				reader.close();
+				throw new IllegalArgumentException("Invalid fasta index line: [" + line + "] in: " + fai);
+			}
+			
+			String chromosome = fields[0];
+			chromosomes.add(chromosome);
+			chromosomeLength.put(chromosome, Integer.parseInt(fields[1]));
+			faiEntries.put(chromosome, new long[] { Long.parseLong(fields[2]), Long.parseLong(fields[3]), Long.parseLong(fields[4]) });
+			loadLocks.put(chromosome, new Object());
+			
+			line = reader.readLine();
+		}
+		
+		reader.close();
+	}
+	
+	/**
+	 * Returns the packed reference for the specified chromosome, loading it if necessary. 
+	 */
+	private ByteBuffer getRef(String chromosome) {
+		ByteBuffer ref = refMap.get(chromosome);
+		
+		if (ref == null && isLazy && faiEntries.containsKey(chromosome)) {
+			synchronized(loadLocks.get(chromosome)) {
+				ref = refMap.get(chromosome);
+				if (ref == null) {
+					try {
+						ref = loadChromosome(chromosome);
+					} catch (IOException e) {
+						throw new RuntimeException("Error loading chromosome: " + chromosome + " from: " + refFileName, e);
+					}
+					refMap.put(chromosome, ref);
+				}
+			}
+		}
+		
+		return ref;
+	}
+	
+	private ByteBuffer loadChromosome(String chromosome) throws IOException {
+		long s = System.currentTimeMillis();
+		
+		int length = chromosomeLength.get(chromosome);
+		byte[] bytes = new byte[(length+3)/4];
+		
+		undefinedRegions.put(chromosome, readChromosome(chromosome, bytes));
+		
+		long e = System.currentTimeMillis();
+		Logger.info("Loaded chromosome: %s length: %d msecs: %d", chromosome, length, (e-s));
+		
+		return ByteBuffer.wrap(bytes);
+	}
+	
+	/**
+	 * Reads the chromosome's bases from the fasta, packing them into bytes unless null.
+	 * Returns the chromosome's undefined regions.
+	 */
+	private List<Feature> readChromosome(String chromosome, byte[] bytes) throws IOException {
+		long[] entry = faiEntries.get(chromosome);
+		int length = chromosomeLength.get(chromosome);
+		Random chromosomeRandom = bytes != null ? getChromosomeRandom(chromosome) : null;
+		
+		List<Feature> nRegions = new ArrayList<Feature>();
+		int nStart = -1;
+		
+		FileInputStream fis = new FileInputStream(refFileName);
+		try {
+			fis.getChannel().position(entry[0]);
+			byte[] buf = new byte[1 << 20];
+			int bufLen = 0;
+			int bufPos = 0;
+			
+			int pos = 0;
+			while (pos < length) {
+				if (bufPos == bufLen) {
+					bufLen = fis.read(buf);
+					bufPos = 0;
+					if (bufLen < 0) {
+						throw new IllegalArgumentException("Unexpected end of fasta for chromosome: " + chromosome + " at: " + pos);
+					}
+					continue;
+				}
+				
+				char ch = (char) (buf[bufPos++] & 0xFF);
+				if (ch == '\n' || ch == '\r') {
+					continue;
+				}
+				
+				if (isUndefined(ch)) {
+					if (nStart < 0) {
+						nStart = pos;
+					}
+				} else if (nStart >= 0) {
+					nRegions.add(new Feature(chromosome, nStart+1, pos));
+					nStart = -1;
+				}
+				
+				if (bytes != null) {
+					byte base = getBase(ch, chromosomeRandom);
+					bytes[pos/4] = (byte) (bytes[pos/4] | (base << (6-(pos%4)*2)));
+				}
+				pos++;
+			}
+		} finally {
+			fis.close();
+		}
+		
+		if (nStart >= 0) {
+			nRegions.add(new Feature(chromosome, nStart+1, length));
+		}
+		
+		return nRegions;
+	}
+	
+	/**
+	 * Returns the N randomization stream positioned at the start of the specified chromosome, as if
+	 * all preceding chromosomes in the fasta had been loaded.  Each N consumes one nextDouble(),
+	 * i.e. two steps of the generator.
+	 */
+	private Random getChromosomeRandom(String chromosome) {
+		long numUndefined = 0;
+		for (String prev : chromosomes) {
+			if (prev.equals(chromosome)) {
+				break;
+			}
+			for (Feature nRegion : getUndefinedRegions(prev)) {
+				numUndefined += nRegion.getEnd() - nRegion.getStart() + 1;
+			}
+		}
+		
+		return skipRandom(1, numUndefined * 2);
+	}
+	
+	/**
+	 * Returns new Random(seed) advanced by the specified number of generator steps.
+	 */
+	static Random skipRandom(long seed, long steps) {
+		long state = (seed ^ RANDOM_MULTIPLIER) & RANDOM_MASK;
+		
+		// Square and multiply the affine step
+		long mult = RANDOM_MULTIPLIER;
+		long add = RANDOM_ADDEND;
+		while (steps > 0) {
+			if ((steps & 1) != 0) {
+				state = state * mult + add;
+			}
+			add = (mult + 1) * add;
+			mult = mult * mult;
+			steps >>>= 1;
+		}
+		
+		// The constructor scrambles the seed
+		return new Random((state & RANDOM_MASK) ^ RANDOM_MULTIPLIER);
+	}
+	
+	/**
+	 * Releases the decoded reference for the specified chromosome when loading lazily.
+	 * The chromosome is reloaded if subsequently accessed.
+	 */
+	public void release(String chromosome) {
+		if (isLazy && refMap.remove(chromosome) != null) {
+			Logger.info("Released chromosome: %s", chromosome);
+		}
+	}
+	
 	private char getRefBase(int idx, String ref) {
-		return getBaseAsChar(idx, refMap.get(ref.trim()));
+		return getBaseAsChar(idx, getRef(ref.trim()));
 	}
 	
-	private char getBaseAsChar(int idx, byte[] ref) {
+	private char getBaseAsChar(int idx, ByteBuffer ref) {
 		int byteIdx = idx / 4;
 		int bitShift = (3-(idx % 4)) * 2;
-		byte b = ref[byteIdx];
+		byte b = ref.get(byteIdx);
 		byte shifted = (byte) (b >>> bitShift);
 		byte val = (byte) (shifted & 3);
 		
@@ -385,7 +950,7 @@ public class CompareToReference2 {
 	}
 	
 	public String getSequence(String chromosome, int position, int length) {
-		byte[] ref = refMap.get(chromosome);
+		ByteBuffer ref = getRef(chromosome);
 		
 		if (ref == null) {
 			Logger.error("No ref for chromosome: " + chromosome);
@@ -396,14 +961,19 @@ public class CompareToReference2 {
 		if (is2Bit) {
 			StringBuffer buf = new StringBuffer(length);
 			int start = Math.max(position, 0);
-			int stop = Math.min(position+length, ref.length*4);
+			int stop = Math.min(position+length, ref.capacity()*4);
 			
 			for (int i=start; i<stop; i++) {
 				buf.append(getBaseAsChar(i, ref));
 			}
 			return buf.toString();
 		} else {
-			byte[] sub = Arrays.copyOfRange(ref, Math.max(position,0), Math.min(position+length, ref.length));
+			int start = Math.max(position, 0);
+			int stop = Math.min(position+length, ref.capacity());
+			byte[] sub = new byte[Math.max(stop-start, 0)];
+			for (int i=0; i<sub.length; i++) {
+				sub[i] = ref.get(start+i);
+			}
 			
 			return new String(sub);
 		}
@@ -417,11 +987,11 @@ public class CompareToReference2 {
 	 * Returns length of reference for input chromosome (give or take a few bases)
 	 */
 	public int getReferenceLength(String chromosome) {
-		byte[] ref = refMap.get(chromosome);
+		ByteBuffer ref = getRef(chromosome);
 		if (is2Bit) {
-			return ref.length * 4;
+			return ref.capacity() * 4;
 		} else {
-			return ref.length;
+			return ref.capacity();
 		}
 	}
 	
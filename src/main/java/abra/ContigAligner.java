@@ -1,6 +1,8 @@
 package abra;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 
 import htsjdk.samtools.Cigar;
@@ -11,6 +13,10 @@ import htsjdk.samtools.TextCigarCodec;
 public class ContigAligner {
 	
 	private static final int MIN_ALIGNMENT_SCORE = 1;
+	
+	// If set, evaluate returns INDEL_NEAR_END for contigs with indels near their ends, triggering a
+	// less stringent reassembly of the region.  Currently disabled, such contigs are simply rejected.
+	static final boolean IS_INDEL_NEAR_END_RETRY_ENABLED = false;
 
 	private static int MATCH;
 	private static int MISMATCH;
@@ -67,12 +73,33 @@ public class ContigAligner {
 	}
 	
 	public ContigAlignerResult align(String seq) {
+		return evaluate(seq, aligner.align(seq, ref));
+	}
+	
+	/**
+	 * Aligns all of seqs against this aligner's reference in a single native call.
+	 * Results are in input order and null where an alignment is not accepted.
+	 */
+	public List<ContigAlignerResult> align(List<String> seqs) {
+		List<ContigAlignerResult> results = new ArrayList<ContigAlignerResult>();
+		if (seqs.isEmpty()) {
+			return results;
+		}
+		
+		SemiGlobalAligner.Result[] sgResults = aligner.align(seqs, ref);
+		for (int i=0; i<sgResults.length; i++) {
+			results.add(evaluate(seqs.get(i), sgResults[i]));
+		}
+		
+		return results;
+	}
+	
+	private ContigAlignerResult evaluate(String seq, SemiGlobalAligner.Result sgResult) {
 		
 		ContigAlignerResult result = null;
 		
-		SemiGlobalAligner.Result sgResult = aligner.align(seq, ref);
 		Logger.trace("SG Alignment [%s]:\t%s, possible: %d to: %s", seq, sgResult, seq.length()*MATCH, ref);
-		if (sgResult.score > MIN_ALIGNMENT_SCORE && sgResult.score > sgResult.secondBest && sgResult.endPosition > 0) {
+		if (isCandidate(sgResult)) {
 			Cigar cigar = TextCigarCodec.decode(sgResult.cigar);
 			
 			CigarElement first = cigar.getFirstCigarElement();
@@ -87,18 +114,20 @@ public class ContigAligner {
 				(first.getOperator() != CigarOperator.M || first.getLength() < minAnchorLength || 
 				last.getOperator() != CigarOperator.M || last.getLength() < minAnchorLength)) {
 
-//				if ((first.getOperator() != CigarOperator.M || last.getOperator() != CigarOperator.M) &&
-//						cigar.toString().contains("I")) {
-//					Logger.trace("INDEL_NEAR_END: %s", cigar.toString());
-//					return ContigAlignerResult.INDEL_NEAR_END;
-//				}
-//				
-//				if ((first.getLength() < 5 || last.getLength() < 5) && 
-//						cigar.toString().contains("I") &&
-//						minAnchorLength >= 5) {
-//					Logger.trace("INDEL_NEAR_END: %s", cigar.toString());
-//					return ContigAlignerResult.INDEL_NEAR_END;						
-//				}
+				if (IS_INDEL_NEAR_END_RETRY_ENABLED) {
+					if ((first.getOperator() != CigarOperator.M || last.getOperator() != CigarOperator.M) &&
+							cigar.toString().contains("I")) {
+						Logger.trace("INDEL_NEAR_END: %s", cigar.toString());
+						return ContigAlignerResult.INDEL_NEAR_END;
+					}
+					
+					if ((first.getLength() < 5 || last.getLength() < 5) && 
+							cigar.toString().contains("I") &&
+							minAnchorLength >= 5) {
+						Logger.trace("INDEL_NEAR_END: %s", cigar.toString());
+						return ContigAlignerResult.INDEL_NEAR_END;						
+					}
+				}
 
 				return null;
 			}
@@ -139,6 +168,108 @@ public class ContigAligner {
 		return result;
 	}
 	
+	// Unambiguous alignments with a positive score are eligible for further evaluation
+	static boolean isCandidate(SemiGlobalAligner.Result sgResult) {
+		return sgResult.score > MIN_ALIGNMENT_SCORE && sgResult.score > sgResult.secondBest && sgResult.endPosition > 0;
+	}
+	
+	SemiGlobalAligner.Result score(String seq) {
+		return aligner.score(seq, ref);
+	}
+	
+	SemiGlobalAligner.Result[] score(List<String> seqs) {
+		if (seqs.isEmpty()) {
+			return new SemiGlobalAligner.Result[0];
+		}
+		return aligner.score(seqs, ref);
+	}
+	
+	/**
+	 * Returns the highest scoring alignment of seq across aligners, preferring earlier aligners on ties.
+	 * Equivalent to calling align on each aligner, but aligners are scored first and only backtracked in
+	 * descending score order until an alignment is accepted.
+	 */
+	static ContigAlignerResult alignBest(String seq, List<ContigAligner> aligners) {
+		return alignBest(Collections.singletonList(seq), aligners).get(0);
+	}
+	
+	/**
+	 * Batched form of alignBest(String, List).  Each aligner scores all seqs in one native call, then
+	 * backtracking proceeds in rounds, with each unresolved seq's next best candidate grouped
+	 * into one native call per aligner.  Results are in input order.
+	 */
+	static List<ContigAlignerResult> alignBest(List<String> seqs, List<ContigAligner> aligners) {
+		
+		if (aligners.size() == 1) {
+			return aligners.get(0).align(seqs);
+		}
+		
+		// Candidate aligners per seq in descending score order
+		List<List<Integer>> candidates = new ArrayList<List<Integer>>();
+		final int[][] scores = new int[seqs.size()][aligners.size()];
+		for (int i=0; i<seqs.size(); i++) {
+			candidates.add(new ArrayList<Integer>());
+		}
+		
+		for (int a=0; a<aligners.size(); a++) {
+			SemiGlobalAligner.Result[] sgResults = aligners.get(a).score(seqs);
+			for (int i=0; i<sgResults.length; i++) {
+				if (isCandidate(sgResults[i])) {
+					scores[i][a] = sgResults[i].score;
+					candidates.get(i).add(a);
+				}
+			}
+		}
+		
+		for (int i=0; i<seqs.size(); i++) {
+			final int[] seqScores = scores[i];
+			// Stable, so ties remain in aligner order
+			Collections.sort(candidates.get(i), new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a1, Integer a2) {
+					return seqScores[a2] - seqScores[a1];
+				}
+			});
+		}
+		
+		List<ContigAlignerResult> results = new ArrayList<ContigAlignerResult>(Collections.<ContigAlignerResult>nCopies(seqs.size(), null));
+		int[] next = new int[seqs.size()];
+		boolean isPending = true;
+		
+		while (isPending) {
+			isPending = false;
+			
+			// Group each unresolved seq's next candidate by aligner
+			List<List<Integer>> batches = new ArrayList<List<Integer>>();
+			for (int a=0; a<aligners.size(); a++) {
+				batches.add(new ArrayList<Integer>());
+			}
+			for (int i=0; i<seqs.size(); i++) {
+				if (results.get(i) == null && next[i] < candidates.get(i).size()) {
+					batches.get(candidates.get(i).get(next[i]++)).add(i);
+				}
+			}
+			
+			for (int a=0; a<aligners.size(); a++) {
+				List<Integer> batch = batches.get(a);
+				if (!batch.isEmpty()) {
+					List<String> batchSeqs = new ArrayList<String>();
+					for (int i : batch) {
+						batchSeqs.add(seqs.get(i));
+					}
+					
+					List<ContigAlignerResult> batchResults = aligners.get(a).align(batchSeqs);
+					for (int b=0; b<batch.size(); b++) {
+						results.set(batch.get(b), batchResults.get(b));
+					}
+					isPending = true;
+				}
+			}
+		}
+		
+		return results;
+	}
+	
 	ContigAlignerResult finishAlignment(int refStart, int refEnd, String alignedCigar, int score, String seq) {
 		try {
 			// Pad with remaining reference sequence
@@ -235,6 +366,12 @@ public class ContigAligner {
 			return score;
 		}
 		
+		ContigAlignerResult copy() {
+			ContigAlignerResult copy = new ContigAlignerResult(localRefPos, cigar, chromosome, refContextStart, sequence, score);
+			copy.isSecondary = isSecondary;
+			return copy;
+		}
+		
 		public boolean isSecondary() {
 			return isSecondary;
 		}
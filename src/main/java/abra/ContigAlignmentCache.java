@@ -0,0 +1,51 @@
+package abra;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import abra.ContigAligner.ContigAlignerResult;
+
+/**
+ * Cache of contig alignments for a single region, keyed by contig sequence.  Contigs repeated by
+ * the region's assembly, alternate contig generation and assembly retries are aligned once.
+ * Unaligned contigs are cached as well.  Results are copied in and out, as callers may mark them secondary.
+ * Not thread safe.
+ */
+public class ContigAlignmentCache {
+
+	static final ContigAlignerResult NO_ALIGNMENT = new ContigAlignerResult(-1, null, null, -1, null, -1);
+
+	private Map<String, ContigAlignerResult> cache = new HashMap<String, ContigAlignerResult>();
+	private int hits = 0;
+	private int misses = 0;
+
+	/**
+	 * Returns a copy of the cached result, NO_ALIGNMENT if the contig is cached as unaligned, or null if not cached.
+	 */
+	public ContigAlignerResult get(String contig) {
+		ContigAlignerResult result = cache.get(contig);
+		if (result == null) {
+			misses += 1;
+			return null;
+		}
+
+		hits += 1;
+		return result == NO_ALIGNMENT ? NO_ALIGNMENT : result.copy();
+	}
+
+	public void put(String contig, ContigAlignerResult result) {
+		cache.put(contig, result == null ? NO_ALIGNMENT : result.copy());
+	}
+
+	public int getHits() {
+		return hits;
+	}
+
+	public int getMisses() {
+		return misses;
+	}
+
+	int size() {
+		return cache.size();
+	}
+}
@@ -0,0 +1,394 @@
+package abra;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import abra.ContigAligner.ContigAlignerResult;
+import abra.SimpleMapper.Orientation;
+
+/**
+ * Kmer seed index over all contigs of the regions in scope for remapping.  Each read is seeded
+ * against every contig in a single pass per orientation, producing the same per contig results
+ * as SimpleMapper.map.
+ *
+ * Regions are added and evicted incrementally as the remap window moves.  Contigs with identical
+ * sequence share a slot.  Evicted slots are skipped until enough accumulate to compact the index.
+ *
+ * Not thread safe.
+ */
+public class ContigSeedIndex {
+
+	private static final int KMER_SIZE = SimpleMapper.KMER_SIZE;
+
+	// Seed pair key is slot << REF_POS_BITS | ref start position
+	private static final int REF_POS_BITS = 24;
+	private static final int REF_POS_MASK = (1 << REF_POS_BITS) - 1;
+	private static final int MAX_SLOTS = 1 << (63 - REF_POS_BITS - SimpleMapper.OFFSET_BITS);
+
+	private static final byte FORWARD = 1;
+	private static final byte REVERSE = 2;
+
+	// Contig slots
+	private List<SimpleMapper> mappers = new ArrayList<SimpleMapper>();
+	private int[] refCounts = new int[0];
+	private List<Integer> freeSlots = new ArrayList<Integer>();
+	private List<Integer> deadSlots = new ArrayList<Integer>();
+	private Map<SimpleMapper, Integer> slotsByContig = new HashMap<SimpleMapper, Integer>();
+
+	// Live slots with kmers containing bases other than ACGT
+	private List<Integer> unpackedSlots = new ArrayList<Integer>();
+
+	// Region -> contig map and slot per contig in the map's iteration order
+	private Map<Feature, RegionSlots> regions = new HashMap<Feature, RegionSlots>();
+
+	// Open addressing table of packed kmer -> first entry
+	private long[] tableKmers;
+	private int[] tableHeads;
+	private int tableMask;
+	private int tableShift;
+	private int numKmers = 0;
+
+	// Linked lists of contig slot and position per kmer
+	private int[] entrySlots = new int[1024];
+	private int[] entryPositions = new int[1024];
+	private int[] entryNext = new int[1024];
+	private int numEntries = 0;
+	private int numDeadEntries = 0;
+
+	// Per read results by slot
+	private int[] mismatches = new int[0];
+	private int[] positions = new int[0];
+	private byte[] orientations = new byte[0];
+	private long[] pairs = new long[256];
+	private SimpleMapper.PackedBases forward = new SimpleMapper.PackedBases();
+	private SimpleMapper.PackedBases reverse = new SimpleMapper.PackedBases();
+
+	public ContigSeedIndex() {
+		initTable(1024);
+	}
+
+	static class RegionSlots {
+		Map<SimpleMapper, ContigAlignerResult> contigs;
+		SimpleMapper[] mappers;
+		int[] slots;
+	}
+
+	/**
+	 * Adds and evicts regions so that the index covers exactly the regions in mappedContigs.
+	 */
+	public void update(Map<Feature, Map<SimpleMapper, ContigAlignerResult>> mappedContigs) {
+		Iterator<Map.Entry<Feature, RegionSlots>> iter = regions.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<Feature, RegionSlots> entry = iter.next();
+			if (mappedContigs.get(entry.getKey()) != entry.getValue().contigs) {
+				removeRegion(entry.getValue());
+				iter.remove();
+			}
+		}
+
+		if (numDeadEntries > numEntries / 2) {
+			compact();
+		}
+
+		for (Map.Entry<Feature, Map<SimpleMapper, ContigAlignerResult>> entry : mappedContigs.entrySet()) {
+			if (!regions.containsKey(entry.getKey())) {
+				regions.put(entry.getKey(), addRegion(entry.getValue()));
+			}
+		}
+	}
+
+	RegionSlots getRegionSlots(Feature region) {
+		return regions.get(region);
+	}
+
+	int getNumSlots() {
+		return slotsByContig.size();
+	}
+
+	private RegionSlots addRegion(Map<SimpleMapper, ContigAlignerResult> contigs) {
+		RegionSlots region = new RegionSlots();
+		region.contigs = contigs;
+		region.mappers = new SimpleMapper[contigs.size()];
+		region.slots = new int[contigs.size()];
+
+		int idx = 0;
+		for (SimpleMapper mapper : contigs.keySet()) {
+			region.mappers[idx] = mapper;
+			region.slots[idx] = addContig(mapper);
+			idx += 1;
+		}
+
+		return region;
+	}
+
+	private void removeRegion(RegionSlots region) {
+		for (int slot : region.slots) {
+			refCounts[slot] -= 1;
+			if (refCounts[slot] == 0) {
+				SimpleMapper mapper = mappers.get(slot);
+				Integer registered = slotsByContig.get(mapper);
+				if (registered != null && registered == slot) {
+					slotsByContig.remove(mapper);
+				}
+				unpackedSlots.remove((Integer) slot);
+				deadSlots.add(slot);
+				numDeadEntries += Math.max(mapper.getSeq().length()-KMER_SIZE, 0);
+			}
+		}
+	}
+
+	private int addContig(SimpleMapper mapper) {
+		// Identical contigs map identically
+		Integer existing = slotsByContig.get(mapper);
+		if (existing != null && mappers.get(existing).getMaxMismatchRate() == mapper.getMaxMismatchRate()) {
+			refCounts[existing] += 1;
+			return existing;
+		}
+
+		int slot;
+		if (!freeSlots.isEmpty()) {
+			slot = freeSlots.remove(freeSlots.size()-1);
+			mappers.set(slot, mapper);
+		} else {
+			slot = mappers.size();
+			if (slot >= MAX_SLOTS) {
+				throw new IllegalStateException("Too many contigs in seed index: " + slot);
+			}
+			mappers.add(mapper);
+			refCounts = Arrays.copyOf(refCounts, mappers.size());
+			mismatches = Arrays.copyOf(mismatches, mappers.size());
+			positions = Arrays.copyOf(positions, mappers.size());
+			orientations = Arrays.copyOf(orientations, mappers.size());
+		}
+
+		refCounts[slot] = 1;
+		if (existing == null) {
+			slotsByContig.put(mapper, slot);
+		}
+		if (mapper.hasUnpackedKmers()) {
+			unpackedSlots.add(slot);
+		}
+
+		indexContig(slot, mapper);
+
+		return slot;
+	}
+
+	// Same kmers as indexed by SimpleMapper
+	private void indexContig(int slot, SimpleMapper mapper) {
+		for (int i=0; i<mapper.getSeq().length()-KMER_SIZE; i++) {
+			long kmer = SimpleMapper.getKmer(mapper.getPackedRef(), i);
+			if (kmer != SimpleMapper.EMPTY) {
+				addEntry(kmer, slot, i);
+			}
+		}
+	}
+
+	// Rebuilds the kmer table from live slots and frees dead slots for reuse
+	private void compact() {
+		initTable(tableKmers.length);
+		numEntries = 0;
+		numDeadEntries = 0;
+
+		for (int slot : deadSlots) {
+			mappers.set(slot, null);
+			freeSlots.add(slot);
+		}
+		deadSlots.clear();
+
+		for (int slot=0; slot<mappers.size(); slot++) {
+			if (mappers.get(slot) != null) {
+				indexContig(slot, mappers.get(slot));
+			}
+		}
+	}
+
+	private void initTable(int capacity) {
+		tableKmers = new long[capacity];
+		Arrays.fill(tableKmers, SimpleMapper.EMPTY);
+		tableHeads = new int[capacity];
+		tableMask = capacity-1;
+		tableShift = 64 - Integer.numberOfTrailingZeros(capacity);
+		numKmers = 0;
+	}
+
+	private int hash(long kmer) {
+		return (int) ((kmer * 0x9E3779B97F4A7C15L) >>> tableShift);
+	}
+
+	private int findSlot(long kmer) {
+		int slot = hash(kmer);
+		while (tableKmers[slot] != SimpleMapper.EMPTY && tableKmers[slot] != kmer) {
+			slot = (slot + 1) & tableMask;
+		}
+		return slot;
+	}
+
+	private void addEntry(long kmer, int slot, int pos) {
+		if (numKmers * 2 >= tableKmers.length) {
+			rehash();
+		}
+
+		if (numEntries == entrySlots.length) {
+			entrySlots = Arrays.copyOf(entrySlots, numEntries*2);
+			entryPositions = Arrays.copyOf(entryPositions, numEntries*2);
+			entryNext = Arrays.copyOf(entryNext, numEntries*2);
+		}
+
+		int tableSlot = findSlot(kmer);
+		if (tableKmers[tableSlot] == SimpleMapper.EMPTY) {
+			tableKmers[tableSlot] = kmer;
+			tableHeads[tableSlot] = -1;
+			numKmers += 1;
+		}
+
+		entrySlots[numEntries] = slot;
+		entryPositions[numEntries] = pos;
+		entryNext[numEntries] = tableHeads[tableSlot];
+		tableHeads[tableSlot] = numEntries;
+		numEntries += 1;
+	}
+
+	private void rehash() {
+		long[] oldKmers = tableKmers;
+		int[] oldHeads = tableHeads;
+		initTable(oldKmers.length * 2);
+
+		for (int i=0; i<oldKmers.length; i++) {
+			if (oldKmers[i] != SimpleMapper.EMPTY) {
+				int tableSlot = findSlot(oldKmers[i]);
+				tableKmers[tableSlot] = oldKmers[i];
+				tableHeads[tableSlot] = oldHeads[i];
+				numKmers += 1;
+			}
+		}
+	}
+
+	/**
+	 * Maps read against all indexed contigs.  Per slot results are available via getMismatches, getPos
+	 * and getOrientation until the next call.
+	 */
+	public void map(String read) {
+		int length = read.length();
+
+		for (int slot=0; slot<mappers.size(); slot++) {
+			mismatches[slot] = length + 1;
+			positions[slot] = SimpleMapper.UNMAPPED;
+			orientations[slot] = 0;
+		}
+
+		if (length >= 1 << SimpleMapper.OFFSET_BITS) {
+			throw new IllegalArgumentException("Read too long for seed index: " + length);
+		}
+
+		// Read is packed once per orientation for all candidates
+		forward.pack(read, false);
+		reverse.pack(read, true);
+
+		// Search for matches to contigs in forward orientation, then in reverse complement
+		mapOrientation(read, false, forward);
+		mapOrientation(read, true, reverse);
+
+		for (int slot=0; slot<mappers.size(); slot++) {
+			SimpleMapper mapper = mappers.get(slot);
+			if (mapper != null && mismatches[slot] > length * mapper.getMaxMismatchRate()) {
+				positions[slot] = SimpleMapper.UNMAPPED;
+			}
+		}
+	}
+
+	private void mapOrientation(String read, boolean isReverse, SimpleMapper.PackedBases packedRead) {
+		int length = read.length();
+		int numPairs = 0;
+
+		// Same kmer schedule as SimpleMapper
+		int i=0;
+		while (i<=length-KMER_SIZE) {
+			long kmer = SimpleMapper.getKmer(packedRead, i);
+
+			if (kmer != SimpleMapper.EMPTY) {
+				int tableSlot = findSlot(kmer);
+				if (tableKmers[tableSlot] != SimpleMapper.EMPTY) {
+					for (int entry=tableHeads[tableSlot]; entry>=0; entry=entryNext[entry]) {
+						numPairs = addPair(numPairs, entrySlots[entry], entryPositions[entry] - i, i, length);
+					}
+				}
+			} else if (!unpackedSlots.isEmpty()) {
+				String unpacked = SimpleMapper.unpacked(read, i, isReverse);
+				for (int slot : unpackedSlots) {
+					List<Integer> kmerPositions = mappers.get(slot).getUnpackedKmerPositions(unpacked);
+					if (kmerPositions != null) {
+						for (int pos : kmerPositions) {
+							numPairs = addPair(numPairs, slot, pos - i, i, length);
+						}
+					}
+				}
+			}
+
+			if (i+KMER_SIZE <= length-KMER_SIZE) {
+				i += KMER_SIZE;
+			} else if (i < length-KMER_SIZE){
+				i = length-KMER_SIZE;
+			} else {
+				i = length;
+			}
+		}
+
+		// Group matching kmers by slot and ref start position
+		Arrays.sort(pairs, 0, numPairs);
+
+		int start = 0;
+		while (start < numPairs) {
+			long key = pairs[start] >>> SimpleMapper.OFFSET_BITS;
+			int end = start + 1;
+			while (end < numPairs && (pairs[end] >>> SimpleMapper.OFFSET_BITS) == key) {
+				end += 1;
+			}
+
+			int slot = (int) (key >>> REF_POS_BITS);
+			int refStartPos = (int) (key & REF_POS_MASK);
+			int posMismatches = mappers.get(slot).countMismatches(packedRead, read, isReverse, refStartPos);
+
+			if (posMismatches < mismatches[slot]) {
+				mismatches[slot] = posMismatches;
+				positions[slot] = refStartPos;
+				orientations[slot] = isReverse ? REVERSE : FORWARD;
+			} else if (posMismatches == mismatches[slot]) {
+				positions[slot] = SimpleMapper.HOMOLOGOUS_MAPPING;
+			}
+
+			start = end;
+		}
+	}
+
+	private int addPair(int numPairs, int slot, int refStartPos, int offset, int length) {
+		// Skip evicted contigs
+		if (refCounts[slot] > 0 && refStartPos > 0 && refStartPos <= mappers.get(slot).getSeq().length() - length) {
+			if (numPairs == pairs.length) {
+				pairs = Arrays.copyOf(pairs, numPairs*2);
+			}
+			pairs[numPairs++] = ((((long) slot << REF_POS_BITS) | refStartPos) << SimpleMapper.OFFSET_BITS) | offset;
+		}
+		return numPairs;
+	}
+
+	int getMismatches(int slot) {
+		return mismatches[slot];
+	}
+
+	int getPos(int slot) {
+		return positions[slot];
+	}
+
+	Orientation getOrientation(int slot) {
+		switch (orientations[slot]) {
+			case FORWARD: return Orientation.FORWARD;
+			case REVERSE: return Orientation.REVERSE;
+			default: return Orientation.UNSET;
+		}
+	}
+}
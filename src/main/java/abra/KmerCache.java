@@ -0,0 +1,64 @@
+package abra;
+
+/**
+ * Native cache of read kmer keys shared by the regions of a chromosome chunk.  Reads in the
+ * overlap of neighboring regions are kmerized once per kmer size rather than once per region.
+ * Graphs are still built per region, so assembly results are unchanged.
+ *
+ * The native cache is freed upon close, or once the last assembly using it completes.
+ */
+public class KmerCache {
+
+	static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+	private long handle;
+	private int users = 0;
+	private boolean isClosed = false;
+	private long hits = 0;
+	private long misses = 0;
+
+	public KmerCache() {
+		this(DEFAULT_MAX_BYTES);
+	}
+
+	public KmerCache(long maxBytes) {
+		handle = NativeAssembler.newKmerCache(maxBytes);
+	}
+
+	/**
+	 * Returns the native handle for use by an assembly, or 0 if the cache is closed.
+	 * Each call must be followed by a call to release.
+	 */
+	synchronized long acquire() {
+		users += 1;
+		return isClosed ? 0 : handle;
+	}
+
+	synchronized void release() {
+		users -= 1;
+		freeIfUnused();
+	}
+
+	public synchronized void close() {
+		isClosed = true;
+		freeIfUnused();
+	}
+
+	private void freeIfUnused() {
+		if (isClosed && users == 0 && handle != 0) {
+			long[] stats = NativeAssembler.getKmerCacheStats(handle);
+			hits = stats[0];
+			misses = stats[1];
+			NativeAssembler.releaseKmerCache(handle);
+			handle = 0;
+		}
+	}
+
+	public synchronized long getHits() {
+		return handle != 0 ? NativeAssembler.getKmerCacheStats(handle)[0] : hits;
+	}
+
+	public synchronized long getMisses() {
+		return handle != 0 ? NativeAssembler.getKmerCacheStats(handle)[1] : misses;
+	}
+}
@@ -3,29 +3,46 @@ package abra;
 import java.io.File;
 import java.io.IOException;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
 
 import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.ValidationStringency;
+import htsjdk.samtools.util.AsyncBufferedIterator;
 
 public class MultiSamReader implements Iterable<SAMRecordWrapper> {
 	
 	//TODO: Upgrade to newer implementation
 	private SamReader[] readers;
 	private Iterator<SAMRecord>[] iterators;
-	private SAMRecordWrapper[] nextRecord;
+	
+	// Next record for each sample with remaining reads, ordered by reference index, position and sample index
+	private PriorityQueue<MergeEntry> nextRecords;
 	private int minMapqForAssembly;
 	private boolean isPairedEnd;
 	
+	// Number of records per prefetch buffer and number of buffers per sample in async mode
+	private static final int PREFETCH_BUFFER_SIZE = 2000;
+	private static final int PREFETCH_BUFFERS = 4;
+	
 	// Iterator used by clients
 	private Iterator<SAMRecordWrapper> clientIterator;
 	
 	public MultiSamReader(String[] inputBams, int minMapqForAssembly, boolean isPairedEnd, Feature region) {
+		this(inputBams, minMapqForAssembly, isPairedEnd, region, false);
+	}
+	
+	/**
+	 * If isAsync is true, each input is inflated and decoded on its own background thread into a bounded
+	 * buffer, so that the merge only consumes ready records and samples are decompressed in parallel.
+	 */
+	public MultiSamReader(String[] inputBams, int minMapqForAssembly, boolean isPairedEnd, Feature region, boolean isAsync) {
 		
 		//TODO: Assert all SAM Headers have same sequence dict
 		readers = new SamReader[inputBams.length];
-		nextRecord = new SAMRecordWrapper[inputBams.length];
+		nextRecords = new PriorityQueue<MergeEntry>(Math.max(inputBams.length, 1));
 		iterators = new Iterator[inputBams.length];
 		this.minMapqForAssembly = minMapqForAssembly;
 		this.isPairedEnd = isPairedEnd;
@@ -39,6 +56,11 @@ public class MultiSamReader implements Iterable<SAMRecordWrapper> {
 			// TODO: Pad by region size?
 			iterators[idx] = readers[idx].queryOverlapping(region.getSeqname(), (int) region.getStart(), (int) region.getEnd());
 			
+			if (isAsync) {
+				iterators[idx] = new AsyncBufferedIterator<SAMRecord>(new DecodingIterator(iterators[idx]),
+						PREFETCH_BUFFER_SIZE, PREFETCH_BUFFERS, "abra-prefetch-" + idx);
+			}
+			
 			// cache next record
 			cacheNextRecord(idx);
 			
@@ -49,7 +71,10 @@ public class MultiSamReader implements Iterable<SAMRecordWrapper> {
 	}
 	
 	private void cacheNextRecord(int sampleIdx) {
-		nextRecord[sampleIdx] = getNext(sampleIdx);
+		SAMRecordWrapper record = getNext(sampleIdx);
+		if (record != null) {
+			nextRecords.add(new MergeEntry(record));
+		}
 	}
 	
 	public SAMFileHeader getSAMFileHeader() {
@@ -57,6 +82,13 @@ public class MultiSamReader implements Iterable<SAMRecordWrapper> {
 	}
 	
 	public void close() throws IOException {
+		// Stop prefetch threads prior to closing the underlying readers
+		for (Iterator<SAMRecord> iterator : iterators) {
+			if (iterator instanceof AsyncBufferedIterator) {
+				((AsyncBufferedIterator<SAMRecord>) iterator).close();
+			}
+		}
+		
 		for (SamReader reader : readers) {
 			reader.close();
 		}
@@ -105,42 +137,96 @@ public class MultiSamReader implements Iterable<SAMRecordWrapper> {
 		@Override
 		public boolean hasNext() {
 			// Return true if any sample has another read
-			for (SAMRecordWrapper record : multiSamReader.nextRecord) {
-				if (record != null) {
-					return true;
-				}
-			}
-			
-			return false;
+			return !multiSamReader.nextRecords.isEmpty();
 		}
 
 		@Override
 		public SAMRecordWrapper next() {
 			// Return the first read across samples by genomic coordinate
-			SAMRecordWrapper nextRecord = null;
-			int bestChr = Integer.MAX_VALUE;
-			int bestPos = Integer.MAX_VALUE;
-			int bestSampleIdx = -1;
+			MergeEntry entry = multiSamReader.nextRecords.poll();
 			
-			for (int i=0; i<multiSamReader.nextRecord.length; i++) {
-				
-				SAMRecordWrapper record = multiSamReader.nextRecord[i];
-				
-				if (record != null) {
-					if ( (record.getSamRecord().getReferenceIndex() < bestChr) || 
-						 (record.getSamRecord().getReferenceIndex() == bestChr && record.getSamRecord().getAlignmentStart() < bestPos)) {
-						nextRecord = record;
-						bestChr = record.getSamRecord().getReferenceIndex();
-						bestPos = record.getSamRecord().getAlignmentStart();
-						bestSampleIdx = i;
-					}
-				}
+			if (entry == null) {
+				throw new NoSuchElementException();
+			}
+
+			SAMRecordWrapper record = entry.record;
+
+			// Replace current read in cache, reusing the heap entry
+			SAMRecordWrapper next = multiSamReader.getNext(entry.sampleIdx);
+			if (next != null) {
+				entry.setRecord(next);
+				multiSamReader.nextRecords.add(entry);
 			}
+			
+			return record;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+	
+	/**
+	 * Heap entry for the k-way merge of samples.  Sort keys are cached to avoid repeated record lookups.
+	 * Ties are broken by sample index so that ordering is deterministic.
+	 */
+	static class MergeEntry implements Comparable<MergeEntry> {
+		int refIdx;
+		int pos;
+		int sampleIdx;
+		SAMRecordWrapper record;
+		
+		MergeEntry(SAMRecordWrapper record) {
+			setRecord(record);
+		}
+		
+		void setRecord(SAMRecordWrapper record) {
+			this.refIdx = record.getSamRecord().getReferenceIndex();
+			this.pos = record.getSamRecord().getAlignmentStart();
+			this.sampleIdx = record.getSampleIdx();
+			this.record = record;
+		}
 
-			// Replace current read in cache
-			multiSamReader.cacheNextRecord(bestSampleIdx);
+		@Override
+		public int compareTo(MergeEntry that) {
+			if (this.refIdx != that.refIdx) {
+				return this.refIdx < that.refIdx ? -1 : 1;
+			}
 			
-			return nextRecord;
+			if (this.pos != that.pos) {
+				return this.pos < that.pos ? -1 : 1;
+			}
+			
+			return this.sampleIdx < that.sampleIdx ? -1 : (this.sampleIdx == that.sampleIdx ? 0 : 1);
+		}
+	}
+	
+	/**
+	 * Forces full decoding of BAM records on the prefetch thread.  BAM records are otherwise
+	 * decoded lazily on first access by the consuming thread.
+	 */
+	static class DecodingIterator implements Iterator<SAMRecord> {
+		
+		private Iterator<SAMRecord> iterator;
+		
+		DecodingIterator(Iterator<SAMRecord> iterator) {
+			this.iterator = iterator;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return iterator.hasNext();
+		}
+
+		@Override
+		public SAMRecord next() {
+			SAMRecord read = iterator.next();
+			read.getCigar();
+			read.getReadBases();
+			read.getBaseQualities();
+			read.getAttribute("NM");
+			return read;
 		}
 
 		@Override
@@ -6,18 +6,25 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.attribute.PosixFilePermission;
 import java.nio.file.attribute.PosixFilePermissions;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import htsjdk.samtools.Cigar;
 import htsjdk.samtools.CigarElement;
@@ -39,6 +46,12 @@ public class NativeAssembler {
 	
 	private static final int MIN_CANDIDATE_BASE_QUALITY = 10;
 	
+	private static final int INITIAL_READ_BUFFER_SIZE = 1024 * 1024;
+	
+	// Per thread direct buffer of fixed stride read records passed to the native assembler.
+	// Record layout: sample id, strand ('0' or '1'), bases and phred33 quals padded to max read length.
+	private static final ThreadLocal<ByteBuffer> READ_BUFFERS = new ThreadLocal<ByteBuffer>();
+	
 	private boolean truncateOnRepeat;
 	private int maxContigs = 5000;
 	private int maxPathsFromRoot;
@@ -53,12 +66,127 @@ public class NativeAssembler {
 	private int maxNodes;
 	private boolean isSkipUnmappedTrigger = false;
 	private int maxReadLength; // Includes merged reads
+	
+	// If set, larger kmers are assembled speculatively on this pool
+	private ExecutorService kmerPool;
+	
+	// Speculative kmer task states
+	private static final int TASK_PENDING = 0;
+	private static final int TASK_RUNNING = 1;
+	private static final int TASK_SKIPPED = 2;
+	
+	// If set, unpruned graphs are retained per kmer so that the region can be reassembled with
+	// different pruning parameters without rebuilding.  Graphs reference graphReads in place.
+	private boolean retainGraphs = false;
+	private Map<Integer, Long> graphs = Collections.synchronizedMap(new HashMap<Integer, Long>());
+	private ByteBuffer graphReads;
+	private int graphNumReads;
+	
+	// If set, results are read from and written to this cache
+	private AssemblyCache assemblyCache;
+	
+	// If set, read kmer keys are shared with other regions via this cache
+	private KmerCache kmerCache;
+	private byte[] readsDigest;
 
 	private native String assemble(String input, String output, String prefix,
 			int truncateOnRepeat, int maxContigs, int maxPathsFromRoot, int readLength, 
 			int kmerSize, int minKmerFreq, int minBaseQuality, double minEdgeRatio, int debug,
 			int maxNodes);
 	
+	private native byte[] assembleReads(ByteBuffer reads, int numReads, String output, String prefix,
+			int truncateOnRepeat, int maxContigs, int maxPathsFromRoot, int readLength, 
+			int kmerSize, int minKmerFreq, int minBaseQuality, double minEdgeRatio, int debug,
+			int maxNodes, long kmerCache);
+	
+	// Returns a handle to the unpruned graph or 0 on invalid input
+	private native long buildGraph(ByteBuffer reads, int numReads, int readLength, int kmerSize, int debug, int maxNodes, long kmerCache);
+	
+	// Assembles a copy of the graph if retain is set, otherwise assembles and releases the graph
+	private native byte[] assembleGraph(long graph, String output, String prefix,
+			int truncateOnRepeat, int maxContigs, int maxPathsFromRoot,
+			int minKmerFreq, int minBaseQuality, double minEdgeRatio, int debug, int retain);
+	
+	private native void releaseGraph(long graph);
+	
+	static native long newKmerCache(long maxBytes);
+	
+	// Returns hits and misses
+	static native long[] getKmerCacheStats(long kmerCache);
+	
+	static native void releaseKmerCache(long kmerCache);
+	
+	static int recordLength(int maxReadLength) {
+		return maxReadLength * 2 + 2;
+	}
+	
+	/**
+	 * Returns this thread's read buffer cleared and with room for at least capacity bytes.
+	 */
+	static ByteBuffer getReadBuffer(int capacity) {
+		ByteBuffer buffer = READ_BUFFERS.get();
+		if (buffer == null || buffer.capacity() < capacity) {
+			buffer = ByteBuffer.allocateDirect(Math.max(capacity, INITIAL_READ_BUFFER_SIZE));
+			READ_BUFFERS.set(buffer);
+		}
+		
+		buffer.clear();
+		return buffer;
+	}
+	
+	/**
+	 * Appends a read record to the buffer, growing (and replacing this thread's pooled buffer) as needed.
+	 * Returns the buffer containing the record.
+	 */
+	static ByteBuffer appendRead(ByteBuffer buffer, int sampleId, boolean isNegativeStrand, SAMRecordWrapper readWrapper, int maxReadLength) {
+		
+		int recordLength = recordLength(maxReadLength);
+		
+		if (buffer.remaining() < recordLength) {
+			ByteBuffer newBuffer = ByteBuffer.allocateDirect(Math.max(buffer.capacity() * 2, buffer.position() + recordLength));
+			buffer.flip();
+			newBuffer.put(buffer);
+			READ_BUFFERS.set(newBuffer);
+			buffer = newBuffer;
+		}
+		
+		buffer.put((byte) sampleId);
+		buffer.put(isNegativeStrand ? (byte) '1' : (byte) '0');
+		
+		int readLength = readWrapper.getReadLength();
+		
+		if (readWrapper.hasMergedSeq()) {
+			String seq = readWrapper.getMergedSeq();
+			for (int i=0; i<readLength; i++) {
+				buffer.put((byte) seq.charAt(i));
+			}
+			pad(buffer, (byte) 'N', maxReadLength - readLength);
+			
+			String qual = readWrapper.getMergedQual();
+			for (int i=0; i<readLength; i++) {
+				buffer.put((byte) qual.charAt(i));
+			}
+			pad(buffer, (byte) '!', maxReadLength - readLength);
+		} else {
+			SAMRecord read = readWrapper.getSamRecord();
+			buffer.put(read.getReadBases());
+			pad(buffer, (byte) 'N', maxReadLength - readLength);
+			
+			byte[] quals = read.getBaseQualities();
+			for (int i=0; i<readLength; i++) {
+				buffer.put((byte) (quals[i] + 33));
+			}
+			pad(buffer, (byte) '!', maxReadLength - readLength);
+		}
+		
+		return buffer;
+	}
+	
+	private static void pad(ByteBuffer buffer, byte value, int count) {
+		for (int i=0; i<count; i++) {
+			buffer.put(value);
+		}
+	}
 	
 	private boolean isHardClipped(SAMRecord read) {
 		return read.getCigarString().contains("H");
@@ -274,16 +402,19 @@ public class NativeAssembler {
 		return contigs;
 	}
 	
-	public String assembleContigs(List<String> inputFiles, List<Feature> regions, String prefix,
+	public AssemblyResult assembleContigs(List<String> inputFiles, List<Feature> regions, String prefix,
 			boolean checkForDupes, ReAligner realigner, CompareToReference2 c2r, List<List<SAMRecordWrapper>> readsList,
-			int mnf, int mbq, double mer, StringBuffer readBuffer) {
+			int mnf, int mbq, double mer) {
 		
 				
-		String contigs = "";
+		AssemblyResult contigs = AssemblyResult.empty();
 		
 		long start = System.currentTimeMillis();
 		
 		int readCount = 0;
+		
+		ByteBuffer readBuffer = null;
+		int numReads = 0;
 
 		boolean isAssemblyCandidate = false;
 		
@@ -319,8 +450,6 @@ public class NativeAssembler {
 				sampleIdx += 1;
 			}
 			
-//			StringBuffer readBuffer = new StringBuffer();
-			
 			if (isAssemblyCandidate) {
 				
 				Logger.debug("ASSEMBLY_TRIGGERED\t%s", regions.get(0));
@@ -334,115 +463,79 @@ public class NativeAssembler {
 				
 				int downsampleTarget = desiredNumberOfReads(regions);
 				
-				char sampleId = 1;
+				if (graphReads != null) {
+					// Reads packed by a previous attempt on this region and referenced by retained graphs
+					readBuffer = graphReads;
+					numReads = graphNumReads;
+				} else {
+					readBuffer = getReadBuffer(readCount * recordLength(maxReadLength));
+				
+					int sampleId = 1;
 				
-				sampleIdx = 0;
-				for (List<SAMRecordWrapper> reads : readsList) {
-					// Default to always keep
-					double keepProbability = 1.1;
+					sampleIdx = 0;
+					for (List<SAMRecordWrapper> reads : readsList) {
+						// Default to always keep
+						double keepProbability = 1.1;
 					
-					if (reads.size() > downsampleTarget) {
-						keepProbability = (double) downsampleTarget / (double) unfilteredReads[sampleIdx];
-					}
+						if (reads.size() > downsampleTarget) {
+							keepProbability = (double) downsampleTarget / (double) unfilteredReads[sampleIdx];
+						}
 					
-					Set<String> mergedReadIds = new HashSet<String>();
+						Set<String> mergedReadIds = new HashSet<String>();
 					
-					Random random = new Random(1);
-					//Random random = new Random(System.currentTimeMillis());
+						Random random = new Random(1);
+						//Random random = new Random(System.currentTimeMillis());
 					
-					for (SAMRecordWrapper readWrapper : reads) {
+						for (SAMRecordWrapper readWrapper : reads) {
 						
-						SAMRecord read = readWrapper.getSamRecord();
+							SAMRecord read = readWrapper.getSamRecord();
 						
-						if (readWrapper.hasMergedSeq() && mergedReadIds.contains(read.getReadName())) {
-							// Only include merged sequence once
-							continue;
-						}
+							if (readWrapper.hasMergedSeq() && mergedReadIds.contains(read.getReadName())) {
+								// Only include merged sequence once
+								continue;
+							}
 						
-						mergedReadIds.add(read.getReadName());
+							mergedReadIds.add(read.getReadName());
 												
-						if (readWrapper.shouldAssemble() && random.nextDouble() < keepProbability) {
-							
-							readBuffer.append(sampleId);
-							readBuffer.append(read.getReadNegativeStrandFlag() ? "1" : "0");
+							if (readWrapper.shouldAssemble() && random.nextDouble() < keepProbability) {
 							
-							String seq;
-							String qual;
+								int readLength = readWrapper.getReadLength();
 							
-							if (readWrapper.getReadLength() == maxReadLength) {
-								seq = readWrapper.getSeq();
-								qual = readWrapper.getQual();
-								
-//								readBuffer.append(readWrapper.getSeq());
-//								readBuffer.append(readWrapper.getQual());
-							} else {
-								StringBuffer basePadding = new StringBuffer();
-								StringBuffer qualPadding = new StringBuffer();
-								
-								for (int i=0; i<maxReadLength-readWrapper.getReadLength(); i++) {
-									basePadding.append('N');
-									qualPadding.append('!');
+								if (readLength > maxReadLength) {
+									String msg = String.format("Invalid seq length [%d] for region [%s] read [%s] seq [%s]", readLength, regions.get(0), read.getReadName(), readWrapper.getSeq());
+									Logger.error(msg);
+									throw new RuntimeException(msg);
 								}
-
-								seq = readWrapper.getSeq() + basePadding.toString();
-								qual = readWrapper.getQual() + qualPadding.toString();
-//								readBuffer.append(readWrapper.getSeq() + basePadding.toString());
-//								readBuffer.append(readWrapper.getQual() + qualPadding.toString());							
-							}
 							
-							if (seq.length() != maxReadLength) {
-								String msg = String.format("Invalid seq length [%d] for region [%s] read [%s] seq [%s]", seq.length(), regions.get(0), read.getReadName(), seq);
-								Logger.error(msg);
-								throw new RuntimeException(msg);
-							}
+								int qualLength = readWrapper.hasMergedSeq() ? readWrapper.getMergedQual().length() : read.getBaseQualities().length;
+								if (qualLength != readLength) {
+									String msg = String.format("Invalid qual length [%d] for region [%s] read [%s] qual [%s]", qualLength, regions.get(0), read.getReadName(), readWrapper.getQual());
+									Logger.error(msg);
+									throw new RuntimeException(msg);
+								}
 							
-							if (qual.length() != maxReadLength) {
-								String msg = String.format("Invalid qual length [%d] for region [%s] read [%s] qual [%s]", qual.length(), regions.get(0), read.getReadName(), qual);
-								Logger.error(msg);
-								throw new RuntimeException(msg);
+								readBuffer = appendRead(readBuffer, sampleId, read.getReadNegativeStrandFlag(), readWrapper, maxReadLength);
+								numReads += 1;
 							}
-							
-							readBuffer.append(seq);
-							readBuffer.append(qual);
 						}
+					
+						sampleIdx += 1;
+						sampleId += 1;
 					}
 					
-					sampleIdx += 1;
-					sampleId += 1;
+					if (retainGraphs) {
+						graphReads = readBuffer;
+						graphNumReads = numReads;
+					}
+				}
+				
+				if (assemblyCache != null && readsDigest == null) {
+					readsDigest = AssemblyCache.digest(readBuffer, numReads * recordLength(maxReadLength));
 				}
 			}
 			
 			if (isAssemblyCandidate) {
-				for (int kmer : kmers) { 
-				
-					//TODO: Not really an output file anymore.  Cleanup.
-					String outputFile = prefix + "_k" + kmer;
-					
-//					System.out.println(readBuffer.toString());
-					
-					contigs = assemble(
-							readBuffer.toString(),
-							outputFile, 
-							prefix, 
-							truncateOnRepeat ? 1 : 0,
-							maxContigs,
-							maxPathsFromRoot,
-							maxReadLength,
-							kmer,
-							Math.max(mnf, 1),
-							Math.max(mbq, 2),
-							Math.max(mer, .0001),
-							Logger.LEVEL == Logger.Level.DEBUG || Logger.LEVEL == Logger.Level.TRACE ? 1 : 0,
-							maxNodes);
-					
-					if (!contigs.equals("<REPEAT>")) {
-						break;
-					} else {
-						if (kmer >= readLength/2 || kmer >= CYCLE_KMER_LENGTH_THRESHOLD) {
-							isCycleExceedingThresholdDetected = true;
-						}
-					}
-				}
+				contigs = assembleKmers(readBuffer, numReads, prefix, mnf, mbq, mer);
 			} else {
 //				System.out.println("Skipping assembly for: " + prefix);
 			}
@@ -465,6 +558,190 @@ public class NativeAssembler {
 		return contigs;
 	}
 	
+	/**
+	 * Assembles using each kmer in order, returning the first result that does not stop on a repeat.
+	 */
+	AssemblyResult assembleKmers(ByteBuffer readBuffer, int numReads, String prefix, int mnf, int mbq, double mer) throws Exception {
+		if (kmerPool != null && kmers.length > 1) {
+			return assembleKmersSpeculatively(readBuffer, numReads, prefix, mnf, mbq, mer);
+		}
+		
+		AssemblyResult contigs = AssemblyResult.empty();
+		for (int kmer : kmers) {
+			contigs = assembleKmer(readBuffer, numReads, prefix, kmer, mnf, mbq, mer);
+			
+			if (!contigs.isRepeat()) {
+				break;
+			} else {
+				checkCycle(kmer);
+			}
+		}
+		
+		return contigs;
+	}
+	
+	//
+	//  The smallest kmer is assembled on the calling thread while larger kmers are queued to the kmer pool.
+	//  Once a result is selected, queued attempts are skipped.  Running attempts cannot be interrupted in
+	//  native code and are waited upon, as they read from this thread's pooled read buffer.
+	private AssemblyResult assembleKmersSpeculatively(final ByteBuffer readBuffer, final int numReads, final String prefix,
+			final int mnf, final int mbq, final double mer) throws Exception {
+		
+		List<AtomicInteger> states = new ArrayList<AtomicInteger>();
+		List<Future<AssemblyResult>> futures = new ArrayList<Future<AssemblyResult>>();
+		
+		for (int i=1; i<kmers.length; i++) {
+			final int kmer = kmers[i];
+			final AtomicInteger state = new AtomicInteger(TASK_PENDING);
+			states.add(state);
+			futures.add(kmerPool.submit(new Callable<AssemblyResult>() {
+				@Override
+				public AssemblyResult call() throws Exception {
+					if (!state.compareAndSet(TASK_PENDING, TASK_RUNNING)) {
+						return null;
+					}
+					
+					return assembleKmer(readBuffer, numReads, prefix, kmer, mnf, mbq, mer);
+				}
+			}));
+		}
+		
+		try {
+			AssemblyResult contigs = assembleKmer(readBuffer, numReads, prefix, kmers[0], mnf, mbq, mer);
+			
+			int idx = 0;
+			while (contigs.isRepeat()) {
+				checkCycle(kmers[idx]);
+				idx += 1;
+				
+				if (idx == kmers.length) {
+					break;
+				}
+				
+				Future<AssemblyResult> future = futures.get(idx-1);
+				if (states.get(idx-1).compareAndSet(TASK_PENDING, TASK_RUNNING)) {
+					// Not yet started, so run here rather than wait on the pool
+					future.cancel(false);
+					contigs = assembleKmer(readBuffer, numReads, prefix, kmers[idx], mnf, mbq, mer);
+				} else {
+					contigs = future.get();
+				}
+			}
+			
+			return contigs;
+		} finally {
+			for (int i=0; i<futures.size(); i++) {
+				if (states.get(i).compareAndSet(TASK_PENDING, TASK_SKIPPED)) {
+					futures.get(i).cancel(false);
+				}
+			}
+			
+			for (int i=0; i<futures.size(); i++) {
+				if (!futures.get(i).isCancelled()) {
+					try {
+						futures.get(i).get();
+					} catch (Exception e) {
+						// Result discarded
+					}
+				}
+			}
+		}
+	}
+	
+	private void checkCycle(int kmer) {
+		if (kmer >= readLength/2 || kmer >= CYCLE_KMER_LENGTH_THRESHOLD) {
+			isCycleExceedingThresholdDetected = true;
+		}
+	}
+	
+	AssemblyResult assembleKmer(ByteBuffer readBuffer, int numReads, String prefix, int kmer, int mnf, int mbq, double mer) {
+		//TODO: Not really an output file anymore.  Cleanup.
+		String outputFile = prefix + "_k" + kmer;
+		
+		mnf = Math.max(mnf, 1);
+		mbq = Math.max(mbq, 2);
+		mer = Math.max(mer, .0001);
+		int debug = Logger.LEVEL == Logger.Level.DEBUG || Logger.LEVEL == Logger.Level.TRACE ? 1 : 0;
+		
+		String cacheKey = null;
+		if (assemblyCache != null) {
+			cacheKey = AssemblyCache.key(readsDigest, prefix, numReads, maxReadLength, kmer, truncateOnRepeat,
+					maxContigs, maxPathsFromRoot, mnf, mbq, mer, maxNodes);
+			byte[] cached = assemblyCache.get(cacheKey);
+			if (cached != null) {
+				return AssemblyResult.decode(cached);
+			}
+		}
+		
+		byte[] result;
+		Long graph = retainGraphs ? graphs.get(kmer) : graphs.remove(kmer);
+		
+		long kmerCacheHandle = kmerCache != null ? kmerCache.acquire() : 0;
+		try {
+			if (graph == null && retainGraphs) {
+				graph = buildGraph(readBuffer, numReads, maxReadLength, kmer, debug, maxNodes, kmerCacheHandle);
+				graphs.put(kmer, graph);
+			}
+			
+			if (graph != null) {
+				result = assembleGraph(graph, outputFile, prefix, truncateOnRepeat ? 1 : 0, maxContigs, maxPathsFromRoot,
+						mnf, mbq, mer, debug, retainGraphs ? 1 : 0);
+			} else {
+				result = assembleReads(
+						readBuffer,
+						numReads,
+						outputFile, 
+						prefix, 
+						truncateOnRepeat ? 1 : 0,
+						maxContigs,
+						maxPathsFromRoot,
+						maxReadLength,
+						kmer,
+						mnf,
+						mbq,
+						mer,
+						debug,
+						maxNodes,
+						kmerCacheHandle);
+			}
+		} finally {
+			if (kmerCache != null) {
+				kmerCache.release();
+			}
+		}
+		
+		AssemblyResult contigs = AssemblyResult.decode(result);
+		
+		if (cacheKey != null && contigs.getStatus() != AssemblyResult.INVALID_INPUT) {
+			assemblyCache.put(cacheKey, result);
+		}
+		
+		return contigs;
+	}
+	
+	/**
+	 * If set, graphs built by subsequent assemblies are retained for reassembly with different pruning
+	 * parameters.  If unset, retained graphs are consumed by the next assembly of their kmer.
+	 * Retained graphs must be released via releaseGraphs.
+	 */
+	public void setRetainGraphs(boolean retainGraphs) {
+		this.retainGraphs = retainGraphs;
+	}
+	
+	/**
+	 * Releases native memory for any retained graphs.
+	 */
+	public void releaseGraphs() {
+		synchronized (graphs) {
+			for (long graph : graphs.values()) {
+				releaseGraph(graph);
+			}
+			graphs.clear();
+		}
+		
+		graphReads = null;
+	}
+	
 	String nativeAssemble(String input, String output, String prefix, int truncateOnRepeat, int maxContigs, int maxPathsFromRoot, int readLength, int[] kmers,
 			int minKmerFreq, int minBaseQuality, double minEdgeRatio, int debug, int maxNodes) {
 		String result = "";
@@ -540,6 +817,18 @@ public class NativeAssembler {
 	public void setSkipUnmappedTrigger(boolean shouldSkip) {
 		this.isSkipUnmappedTrigger = shouldSkip;
 	}
+	
+	public void setKmerPool(ExecutorService kmerPool) {
+		this.kmerPool = kmerPool;
+	}
+	
+	public void setAssemblyCache(AssemblyCache assemblyCache) {
+		this.assemblyCache = assemblyCache;
+	}
+	
+	public void setKmerCache(KmerCache kmerCache) {
+		this.kmerCache = kmerCache;
+	}
 		
 	public boolean isCycleExceedingThresholdDetected() {
 		return isCycleExceedingThresholdDetected;
@@ -1,11 +1,21 @@
 package abra;
 
+import java.util.List;
+
 import abra.SemiGlobalAligner.Result;
 
 public class NativeSemiGlobalAligner {
 
 	private native String align(String seq1, String seq2, int match, int mismatch, int gapOpen, int gapExtend);
 	
+	private native int[] score(String seq1, String seq2, int match, int mismatch, int gapOpen, int gapExtend);
+	
+	private native int[] scoreBatch(String ref, String[] seqs, int match, int mismatch, int gapOpen, int gapExtend);
+	
+	private native int[] alignBatch(String ref, String[] seqs, int match, int mismatch, int gapOpen, int gapExtend);
+	
+	private static final char[] CIGAR_OPS = { 'M', 'I', 'D' };
+	
 	private int match = 8;
 	private int mismatch = -32;
 	private int gapOpen = -48;
@@ -21,8 +31,7 @@ public class NativeSemiGlobalAligner {
 		this.gapExtend = gapExtend;
 	}
 	
-	public Result align(String seq1, String seq2) {
-		
+	private void checkLengths(String seq1, String seq2) {
 		if (seq1.length() > MAX_CONTIG_LEN) {
 			throw new IllegalArgumentException("Contig too long");
 		}
@@ -30,6 +39,11 @@ public class NativeSemiGlobalAligner {
 		if (seq2.length() > MAX_REF_LEN) {
 			throw new IllegalArgumentException("Ref too long");
 		}
+	}
+	
+	public Result align(String seq1, String seq2) {
+		
+		checkLengths(seq1, seq2);
 		
 		// Result returned in format score:secondBest:pos:endPos:cigar
 		// 789:741:611:734:52M108I71M
@@ -41,4 +55,74 @@ public class NativeSemiGlobalAligner {
 		
 		return result;
 	}
+	
+	/**
+	 * Computes score, second best score and end position without backtracking.
+	 * Position is -1 and cigar is null.
+	 */
+	public Result score(String seq1, String seq2) {
+		
+		checkLengths(seq1, seq2);
+		
+		int[] res = score(seq1, seq2, match, mismatch, gapOpen, gapExtend);
+		
+		return new Result(res[0], res[1], -1, res[2], null);
+	}
+	
+	/**
+	 * Scores each of seqs against ref in a single native call.
+	 * Positions are -1 and cigars are null.
+	 */
+	public Result[] score(List<String> seqs, String ref) {
+		
+		String[] seqArray = toArray(seqs, ref);
+		int[] res = scoreBatch(ref, seqArray, match, mismatch, gapOpen, gapExtend);
+		
+		Result[] results = new Result[seqArray.length];
+		for (int i=0; i<results.length; i++) {
+			results[i] = new Result(res[i*3], res[i*3+1], -1, res[i*3+2], null);
+		}
+		
+		return results;
+	}
+	
+	/**
+	 * Aligns each of seqs against ref in a single native call.
+	 */
+	public Result[] align(List<String> seqs, String ref) {
+		
+		String[] seqArray = toArray(seqs, ref);
+		
+		// Per seq: score, secondBest, pos, endPos, numOps, ops packed as length << 2 | op
+		int[] res = alignBatch(ref, seqArray, match, mismatch, gapOpen, gapExtend);
+		
+		Result[] results = new Result[seqArray.length];
+		int idx = 0;
+		for (int i=0; i<results.length; i++) {
+			int score = res[idx++];
+			int secondBest = res[idx++];
+			int pos = res[idx++];
+			int endPos = res[idx++];
+			int numOps = res[idx++];
+			
+			StringBuilder cigar = new StringBuilder();
+			for (int j=0; j<numOps; j++) {
+				int op = res[idx++];
+				cigar.append(op >>> 2);
+				cigar.append(CIGAR_OPS[op & 3]);
+			}
+			
+			results[i] = new Result(score, secondBest, pos, endPos, cigar.toString());
+		}
+		
+		return results;
+	}
+	
+	private String[] toArray(List<String> seqs, String ref) {
+		String[] seqArray = seqs.toArray(new String[seqs.size()]);
+		for (String seq : seqArray) {
+			checkLengths(seq, ref);
+		}
+		return seqArray;
+	}
 }
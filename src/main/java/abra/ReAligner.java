@@ -20,12 +20,21 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import abra.JunctionUtils.JunctionComparator;
 import abra.JunctionUtils.JunctionSequence;
@@ -154,6 +163,51 @@ public class ReAligner {
 	private boolean shouldUseJunctionsAsContigs;
 	private boolean disallowComplexIndelsAtReadEdge;
 	
+	private boolean isLazyReference;
+	private boolean isAsyncRead;
+	private boolean isParallelKmers;
+	private String assemblyCacheDir;
+	
+	// Number of unprocessed chunks per chromosome.  Used to release lazily loaded reference
+	private Map<String, AtomicInteger> remainingChunks = new HashMap<String, AtomicInteger>();
+	
+	// Work stealing pool shared by all chromosome chunks for region processing
+	private ForkJoinPool regionPool;
+	
+	// Ingest, remap and write stage threads.  Each active chromosome chunk uses one thread per stage
+	// and the number of active chunks is capped at stageThreads, so stage tasks never queue.
+	private ExecutorService stagePool;
+	
+	// Number of chromosome chunks processed concurrently.  0 to derive from numThreads.
+	private int stageThreads;
+	
+	// Speculative assembly of larger kmers.  Null unless enabled.
+	private ExecutorService kmerPool;
+	
+	// Cross run cache of assembly results.  Null unless enabled.
+	private AssemblyCache assemblyCache;
+	
+	// Max number of batches of reads awaiting region results before the reader blocks
+	private static final int MAX_PENDING_REMAP_BATCHES = 32;
+	
+	// Number of reads handed from the ingest stage at a time and max number of batches queued
+	private static final int INGEST_BATCH_SIZE = 1000;
+	private static final int INGEST_QUEUE_SIZE = 16;
+	
+	// Max number of per sample read batches awaiting output
+	private static final int WRITE_QUEUE_SIZE = 64;
+	
+	// Ingest, remap and write
+	static final int NUM_STAGES = 3;
+	
+	/**
+	 * Returns the number of chromosome chunks to process concurrently.  Unless specified,
+	 * one chunk per thread.
+	 */
+	static int getStageThreads(int numThreads, int requested) {
+		return requested > 0 ? requested : numThreads;
+	}
+	
 	public void reAlign(String[] inputFiles, String[] outputFiles) throws Exception {
 		
 		this.inputSams = inputFiles;
@@ -163,11 +217,12 @@ public class ReAligner {
 		String tempDir = init();
 		
 		c2r = new CompareToReference2();
-		c2r.init(this.reference);
+		if (isLazyReference) {
+			c2r.initLazy(this.reference);
+		} else {
+			c2r.init(this.reference);
+		}
 		
-		chromosomeChunker = new ChromosomeChunker(c2r);
-		chromosomeChunker.init();
-
 		Logger.info("Reading Input SAM Header and identifying read length");
 		getSamHeaderAndReadLength();
 		
@@ -177,6 +232,14 @@ public class ReAligner {
 		loadRegions();
 		loadJunctions();
 		
+		// Size chromosome chunks using target regions and input BAM content
+		chromosomeChunker = new ChromosomeChunker(c2r);
+		chromosomeChunker.init(regions, inputSams);
+		
+		for (String chromosome : chromosomeChunker.getChunkGroups().keySet()) {
+			remainingChunks.put(chromosome, new AtomicInteger(chromosomeChunker.getChunkGroups().get(chromosome).size()));
+		}
+		
 		Clock clock = new Clock("Realignment");
 		clock.start();
 		
@@ -216,12 +279,36 @@ public class ReAligner {
 		// Spawn thread for each chromosome
 		// TODO: Validate identical sequence dictionary for each input file
 		
-		for (int i=0; i<this.chromosomeChunker.getChunks().size(); i++) {
-			spawnChromosomeThread(i);
+		// Region assembly is bounded by numThreads.  Each active chunk adds its own ingest, remap
+		// and write threads, so decoding, remapping and temp BAM compression scale with chunks.
+		int chunkThreads = getStageThreads(numThreads, stageThreads);
+		Logger.info("Chunk pipelines: %d (ingest, remap and write threads: %d), region threads: %d", chunkThreads, chunkThreads*NUM_STAGES, numThreads);
+		
+		threadManager = new ThreadManager(chunkThreads);
+		regionPool = new ForkJoinPool(numThreads);
+		stagePool = Executors.newFixedThreadPool(chunkThreads * NUM_STAGES);
+		if (isParallelKmers) {
+			kmerPool = Executors.newFixedThreadPool(numThreads);
+		}
+		if (assemblyCacheDir != null) {
+			assemblyCache = new AssemblyCache(assemblyCacheDir);
 		}
 		
-		Logger.info("Waiting for processing threads to complete");
-		threadManager.waitForAllThreadsToComplete();
+		try {
+			for (int i=0; i<this.chromosomeChunker.getChunks().size(); i++) {
+				spawnChromosomeThread(i);
+			}
+			
+			Logger.info("Waiting for processing threads to complete");
+			threadManager.waitForAllThreadsToComplete();
+		} finally {
+			// Stops any stages left running by a failed chunk
+			regionPool.shutdownNow();
+			stagePool.shutdownNow();
+			if (kmerPool != null) {
+				kmerPool.shutdownNow();
+			}
+		}
 		
 		if (contigWriter != null) {
 			contigWriter.close();
@@ -248,7 +335,7 @@ public class ReAligner {
 		Logger.info("Done.");
 	}
 	
-	void processChromosomeChunk(int chromosomeChunkIdx) throws Exception {
+	void processChromosomeChunk(final int chromosomeChunkIdx) throws Exception {
 		
 		Feature chromosomeChunk = chromosomeChunker.getChunks().get(chromosomeChunkIdx);
 		String chromosome = chromosomeChunk.getSeqname();
@@ -259,19 +346,108 @@ public class ReAligner {
 		
 		writer.initChromosomeChunk(chromosomeChunkIdx);
 		
-		MultiSamReader reader = new MultiSamReader(this.inputSams, this.minMappingQuality, this.isPairedEnd, chromosomeChunk);
+		final MultiSamReader reader = new MultiSamReader(this.inputSams, this.minMappingQuality, this.isPairedEnd, chromosomeChunk, isAsyncRead);
+		
+		// Read kmers shared by overlapping regions in the chunk.  Freed once the last region using it completes.
+		KmerCache kmerCache = new KmerCache();
+		
+		// Reads are decoded, remapped and written on separate stages connected by bounded queues.
+		// Region assembly runs on the shared region pool.
+		final StageQueue<List<SAMRecordWrapper>> ingestQueue = new StageQueue<List<SAMRecordWrapper>>("ingest", INGEST_QUEUE_SIZE);
+		final StageQueue<RemapBatch> remapQueue = new StageQueue<RemapBatch>("remap", MAX_PENDING_REMAP_BATCHES);
+		final StageQueue<WriteBatch> writeQueue = new StageQueue<WriteBatch>("write", WRITE_QUEUE_SIZE);
+		final StageQueue<?>[] queues = new StageQueue<?>[] { ingestQueue, remapQueue, writeQueue };
 		
-		List<List<SAMRecordWrapper>> currReads = new ArrayList<List<SAMRecordWrapper>>();
+		List<Future<?>> stages = new ArrayList<Future<?>>();
+		stages.add(stagePool.submit(new PipelineStage(queues) {
+			@Override
+			void process() throws Exception {
+				ingestReads(reader, ingestQueue);
+			}
+		}));
+		stages.add(stagePool.submit(new PipelineStage(queues) {
+			@Override
+			void process() throws Exception {
+				// Seeds for the contigs of regions in scope, updated as batches move through the chunk
+				ContigSeedIndex seedIndex = new ContigSeedIndex();
+				for (RemapBatch batch = remapQueue.take(); batch != null; batch = remapQueue.take()) {
+					remapReads(batch.getRegionContigs(), batch.reads, writeQueue, seedIndex);
+				}
+				writeQueue.close();
+			}
+		}));
+		stages.add(stagePool.submit(new PipelineStage(queues) {
+			@Override
+			void process() throws Exception {
+				for (WriteBatch batch = writeQueue.take(); batch != null; batch = writeQueue.take()) {
+					for (SAMRecordWrapper read : batch.reads) {
+						writer.addAlignment(batch.sampleIdx, read, chromosomeChunkIdx);
+					}
+				}
+			}
+		}));
+		
+		try {
+			processChunkReads(chromosomeChunk, chromosomeChunkIdx, reader, ingestQueue, remapQueue, kmerCache);
+			
+			for (Future<?> stage : stages) {
+				stage.get();
+			}
+		} catch (Exception e) {
+			abort(queues, e);
+			for (Future<?> stage : stages) {
+				stage.cancel(true);
+			}
+			
+			if (e instanceof ExecutionException && e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		} finally {
+			kmerCache.close();
+			// Also stops --async-read prefetch threads if the chunk failed
+			reader.close();
+		}
+		
+		writer.finishChromosomeChunk(chromosomeChunkIdx);
+		
+		// Release reference once all chunks for this chromosome are done
+		if (remainingChunks.get(chromosome).decrementAndGet() == 0) {
+			c2r.release(chromosome);
+		}
+		
+		Logger.info("PIPELINE_QUEUES:\t%s\t%s\t%s\t%s", chromosomeChunk, ingestQueue.getMetrics(), remapQueue.getMetrics(), writeQueue.getMetrics());
+		Logger.info("KMER_CACHE:\t%s\thits: %d\tmisses: %d", chromosomeChunk, kmerCache.getHits(), kmerCache.getMisses());
+		
+		clock.stopAndPrint();
+	}
+	
+	/**
+	 * Assigns reads to regions, submits regions for assembly and hands reads that have moved
+	 * out of scope to the remap stage.
+	 */
+	private void processChunkReads(Feature chromosomeChunk, int chromosomeChunkIdx, MultiSamReader reader,
+			StageQueue<List<SAMRecordWrapper>> ingestQueue, StageQueue<RemapBatch> remapQueue, KmerCache kmerCache) throws Exception {
+		
+		String chromosome = chromosomeChunk.getSeqname();
+		
+		// Per sample reads ordered by alignment start
+		List<ReadWindow> currReads = new ArrayList<ReadWindow>();
 		for (int i=0; i<this.inputSams.length; i++) {
-			currReads.add(new ArrayList<SAMRecordWrapper>());
+			currReads.add(new ReadWindow());
 		}
 		
+		long maxReadWindowBytes = 0;
+		
 		List<List<SAMRecordWrapper>> outOfRegionReads = new ArrayList<List<SAMRecordWrapper>>();
 		for (int i=0; i<this.inputSams.length; i++) {
 			outOfRegionReads.add(new ArrayList<SAMRecordWrapper>());
 		}
 		
-		Map<Feature, Map<SimpleMapper, ContigAlignerResult>> regionContigs = new HashMap<Feature, Map<SimpleMapper, ContigAlignerResult>>();
+		// Pending and completed region results keyed by region index (i.e. coordinate order)
+		Map<Integer, Future<Map<SimpleMapper, ContigAlignerResult>>> regionContigs = new TreeMap<Integer, Future<Map<SimpleMapper, ContigAlignerResult>>>();
+		// All regions submitted since the last remap batch was created
+		List<Future<Map<SimpleMapper, ContigAlignerResult>>> submittedRegions = new ArrayList<Future<Map<SimpleMapper, ContigAlignerResult>>>();
 		int readCount = 0;
 		
 		// Identify regions overlapping the current chromosome chunk
@@ -299,189 +475,148 @@ public class ReAligner {
 		
 		Set<Integer> regionsToProcess = new TreeSet<Integer>();
 	
-		int searchStartRegionIdx = 0;
+		RegionIndex regionIndex = new RegionIndex(chromosomeRegions);
 		
-		for (SAMRecordWrapper record : reader) {
+		for (List<SAMRecordWrapper> ingested = ingestQueue.take(); ingested != null; ingested = ingestQueue.take()) {
+			for (SAMRecordWrapper record : ingested) {
 			
-			// If this is an unmapped read anchored by its mate, check rc flag
-			SAMRecord read1 = record.getSamRecord();
-			if (read1.getReadUnmappedFlag() && !read1.getMateUnmappedFlag()) {
-				
-				if (!read1.getReadNegativeStrandFlag() && !read1.getMateNegativeStrandFlag()) {
-					// Both ends in forward orientation.  Reverse the unmapped read
-					read1.setReadString(rc.reverseComplement(read1.getReadString()));
-					read1.setBaseQualityString(rc.reverse(read1.getBaseQualityString()));
-					read1.setReadNegativeStrandFlag(true);
-					record.setUnalignedRc(true);
-				} else if (read1.getReadNegativeStrandFlag() && read1.getMateNegativeStrandFlag()) {
-					// Both ends in reverse orientation.  Reverse the unmapped read
-					read1.setReadString(rc.reverseComplement(read1.getReadString()));
-					read1.setBaseQualityString(rc.reverse(read1.getBaseQualityString()));
-					read1.setReadNegativeStrandFlag(false);
-					record.setUnalignedRc(true);
-				}
-			}
+				// Identify regions that are candidates for processing
+				// Note: Splicing can cause reads to go in and out of a region
+				regionIndex.findAllOverlappingRegions(record, regionsToProcess);
 			
-			List<Integer> overlappingRegions = new ArrayList<Integer>();
+				// Cache read for processing at end of region
+				currReads.get(record.getSampleIdx()).add(record);
 			
-			if (chromosomeRegions.size() > 0) {
-				// Advance currRegion to current locus @ record start - 1000000
-				// TODO: Use move dist instead of 1000000 ?
-				Feature searchStartRegion = chromosomeRegions.get(searchStartRegionIdx);
-				while (searchStartRegion != null && searchStartRegionIdx < chromosomeRegions.size()-1 && searchStartRegion.getEnd() < record.getAdjustedAlignmentStart() - 1000000) {
-					searchStartRegionIdx += 1;
-					searchStartRegion = chromosomeRegions.get(searchStartRegionIdx);
-				}
-				
-				overlappingRegions = Feature.findAllOverlappingRegions(reader.getSAMFileHeader(), record, chromosomeRegions, searchStartRegionIdx);
-			}
-			
-//			int regionIdx = Feature.findFirstOverlappingRegion(reader.getSAMFileHeader(), record, chromosomeRegions, currRegionIdx);
-						
-			// Identify next region that is a candidate for processing
-			// Note: Splicing can cause reads to go in and out of a region
-//			if (regionIdx >= 0) {
-			if (!overlappingRegions.isEmpty()) {
-				regionsToProcess.addAll(overlappingRegions);
-			}
-			
-			// Cache read for processing at end of region
-			currReads.get(record.getSampleIdx()).add(record);
-			
-			Iterator<Integer> regionIter = regionsToProcess.iterator();
-			while (regionIter.hasNext()) {
-				int regionToProcessIdx = regionIter.next();
-				// If start position for current read is beyond current region, trigger assembly
-				Feature currRegion = chromosomeRegions.get(regionToProcessIdx);
-				if (record.getAdjustedAlignmentStart() > currRegion.getEnd() + this.readLength*2) {
-					Logger.debug("Processing region: %s", currRegion);
-					Map<SimpleMapper, ContigAlignerResult> mappedContigs = processRegion(currRegion, currReads, regionJunctions.get(currRegion), regionVariants.get(currRegion));
-					Logger.debug("Region: %s assembled: %d contigs", currRegion, mappedContigs.keySet().size());
-					regionContigs.put(currRegion, mappedContigs);
-					// Remove curr region from list of regions to process
-					regionIter.remove();
+				Iterator<Integer> regionIter = regionsToProcess.iterator();
+				while (regionIter.hasNext()) {
+					int regionToProcessIdx = regionIter.next();
+					// If start position for current read is beyond current region, trigger assembly
+					Feature currRegion = chromosomeRegions.get(regionToProcessIdx);
+					if (record.getAdjustedAlignmentStart() > currRegion.getEnd() + this.readLength*2) {
+						Future<Map<SimpleMapper, ContigAlignerResult>> future = submitRegion(currRegion, currReads, regionJunctions.get(currRegion), regionVariants.get(currRegion), kmerCache);
+						regionContigs.put(regionToProcessIdx, future);
+						submittedRegions.add(future);
+						// Remove curr region from list of regions to process
+						regionIter.remove();
+					}
 				}
-			}
 			
-			/*
+				/*
 			
-			// TODO: Consider dropping this...  Reads are out of scope when we've moved beyond them via standard processing?
-			if (overlappingRegions.isEmpty()) {
+				// TODO: Consider dropping this...  Reads are out of scope when we've moved beyond them via standard processing?
+				if (overlappingRegions.isEmpty()) {
 				
-				// Process out of region read and output if ready.
-				List<SAMRecordWrapper> outOfRegionReadsForSample = outOfRegionReads.get(record.getSampleIdx());
-				outOfRegionReadsForSample.add(record);
+					// Process out of region read and output if ready.
+					List<SAMRecordWrapper> outOfRegionReadsForSample = outOfRegionReads.get(record.getSampleIdx());
+					outOfRegionReadsForSample.add(record);
 				
-				if (outOfRegionReads.get(record.getSampleIdx()).size() > 2500) {
+					if (outOfRegionReads.get(record.getSampleIdx()).size() > 2500) {
 
-					for (SAMRecordWrapper outOfRegionRead : outOfRegionReadsForSample) {
-						this.writer.addAlignment(record.getSampleIdx(), outOfRegionRead.getSamRecord());
-					}
+						for (SAMRecordWrapper outOfRegionRead : outOfRegionReadsForSample) {
+							this.writer.addAlignment(record.getSampleIdx(), outOfRegionRead.getSamRecord());
+						}
 					
-					outOfRegionReadsForSample.clear();
+						outOfRegionReadsForSample.clear();
+					}
 				}
-			}
-			*/
+				*/
 			
-			int MAX_READ_RANGE = 1000 + this.readLength;
+				int MAX_READ_RANGE = 1000 + this.readLength;
 			
-			// Check for out of scope reads every 2500 reads (TODO: is 2500 the best number?)
-			if (readCount % 2500 == 0) {
-				// Remap / output / clear out of scope reads
-				List<List<SAMRecordWrapper>> readsToRemap = new ArrayList<List<SAMRecordWrapper>>();
+				// Check for out of scope reads every 2500 reads (TODO: is 2500 the best number?)
+				if (readCount % 2500 == 0) {
+					// Remap / output / clear out of scope reads
+					List<List<SAMRecordWrapper>> readsToRemap = new ArrayList<List<SAMRecordWrapper>>();
 				
-				// Initialize per sample lists
-				for (List<SAMRecordWrapper> origSample : currReads) {
-					List<SAMRecordWrapper> sampleReadsToRemap = new ArrayList<SAMRecordWrapper>();
-					readsToRemap.add(sampleReadsToRemap);
+					// Initialize per sample lists
+					List<SAMRecordWrapper> evicted = new ArrayList<SAMRecordWrapper>();
+					for (ReadWindow origSample : currReads) {
+						List<SAMRecordWrapper> sampleReadsToRemap = new ArrayList<SAMRecordWrapper>();
+						readsToRemap.add(sampleReadsToRemap);
 					
-					Iterator<SAMRecordWrapper> iter = origSample.iterator();
-					while (iter.hasNext()) {
-						SAMRecordWrapper read = iter.next();
+						// record == most recent read.  Evict cached reads more than MAX_READ_RANGE behind it
+						evicted.clear();
+						origSample.evictBefore(record.getSamRecord().getAlignmentStart() - MAX_READ_RANGE, evicted);
 						
-						// record == most recent read.  read = cached read
-						if (record.getSamRecord().getAlignmentStart() - read.getSamRecord().getAlignmentStart() > MAX_READ_RANGE) {
-
+						for (SAMRecordWrapper read : evicted) {
 							// Only output reads with start pos within current chromosomeChunk
 							if (read.getSamRecord().getAlignmentStart() >= chromosomeChunk.getStart() &&
 								read.getSamRecord().getAlignmentStart() <= chromosomeChunk.getEnd()) {
-							
+						
 								sampleReadsToRemap.add(read);
 							}
-							
-							iter.remove();
 						}
-					}					
-				}
+					}
 
-				// Remap out of scope reads
-				long start = System.currentTimeMillis();
-				int totalReads = remapReads(regionContigs, readsToRemap, chromosomeChunkIdx);
-				long stop = System.currentTimeMillis();
-//				Logger.debug("REMAP_READS_MSECS:\t%d\t%d\t%s:%d", (stop-start), totalReads, record.getSamRecord().getReferenceName(), record.getSamRecord().getAlignmentStart());
+					// Remap out of scope reads once the regions currently in scope have been processed
+					remapQueue.put(new RemapBatch(readsToRemap, regionContigs, chromosomeRegions, submittedRegions));
+					submittedRegions.clear();
 				
-				// Remove out of scope region assemblies
-				List<Feature> regionsToRemove = new ArrayList<Feature>();
-				for (Feature region : regionContigs.keySet()) {
-					if (getFirstStartPos(currReads)-region.getStart() > MAX_READ_RANGE) {
-						regionsToRemove.add(region);
+					// Remove out of scope region assemblies
+					List<Integer> regionsToRemove = new ArrayList<Integer>();
+					for (int regionIdx : regionContigs.keySet()) {
+						if (getFirstStartPos(currReads)-chromosomeRegions.get(regionIdx).getStart() > MAX_READ_RANGE) {
+							regionsToRemove.add(regionIdx);
+						}
 					}
-				}
 				
-				for (Feature region : regionsToRemove) {
-					Logger.debug("Removing contigs for region: %s", region.toString());
-					regionContigs.remove(region);
-				}
+					for (int regionIdx : regionsToRemove) {
+						Logger.debug("Removing contigs for region: %s", chromosomeRegions.get(regionIdx).toString());
+						regionContigs.remove(regionIdx);
+					}
 
-				String logPrefix = record.getSamRecord().getReferenceName() + ":" + record.getSamRecord().getAlignmentStart() + " : ";
+					String logPrefix = record.getSamRecord().getReferenceName() + ":" + record.getSamRecord().getAlignmentStart() + " : ";
 				
-				if (regionContigs.size() > 10) {
-					Logger.debug("%s\tregionContigs size: %d", logPrefix, regionContigs.size());
-				}
+					if (regionContigs.size() > 10) {
+						Logger.debug("%s\tregionContigs size: %d", logPrefix, regionContigs.size());
+					}
 				
 				
-				//TODO: Revisit this.  Is it still necessary?
-				int currReadsCount = 0;
-				int idx = 0;
-				boolean shouldClear = false;
-				for (List<SAMRecordWrapper> reads : currReads) {
-					currReadsCount += reads.size();
+					//TODO: Revisit this.  Is it still necessary?
+					int currReadsCount = 0;
+					long currReadsBytes = 0;
+					int idx = 0;
+					boolean shouldClear = false;
+					for (ReadWindow reads : currReads) {
+						currReadsCount += reads.size();
+						currReadsBytes += reads.getMemoryUsage();
 					
-					if (reads.size() >= this.maxCachedReads) {
-						shouldClear = true;
-						Logger.warn(logPrefix + " Too many reads for sample: " + idx + " num_reads: " + reads.size() + ", clearing.");
-					}
+						if (reads.size() >= this.maxCachedReads) {
+							shouldClear = true;
+							Logger.warn(logPrefix + " Too many reads for sample: " + idx + " num_reads: " + reads.size() + ", clearing.");
+						}
 					
-					idx += 1;
-				}
+						idx += 1;
+					}
 				
-				if (shouldClear) {
-					for (int i=0; i<currReads.size(); i++) {
-						List<SAMRecordWrapper> reads = currReads.get(i);
-
-						for (SAMRecordWrapper read : reads) {
-							this.writer.addAlignment(i, read, chromosomeChunkIdx);
+					if (shouldClear) {
+						// Output without remapping.  Queued behind pending batches to preserve output order.
+						List<List<SAMRecordWrapper>> readsToOutput = new ArrayList<List<SAMRecordWrapper>>();
+						for (ReadWindow reads : currReads) {
+							readsToOutput.add(reads.clear());
 						}
-						
-						reads.clear();
+					
+						remapQueue.put(new RemapBatch(readsToOutput));
 					}
-				}
 
-				if (currReadsCount > 250000) {
-					Logger.info(logPrefix + "\tCurr reads size: " + currReadsCount);
-				}
+					maxReadWindowBytes = Math.max(maxReadWindowBytes, currReadsBytes);
+					
+					if (currReadsCount > 250000) {
+						Logger.info(logPrefix + "\tCurr reads size: " + currReadsCount + "\test_kb: " + currReadsBytes/1024);
+					}
 				
-				int outOfRegionCount = 0;
-				for (List<SAMRecordWrapper> reads : outOfRegionReads) {
-					outOfRegionCount += reads.size();
-				}
+					int outOfRegionCount = 0;
+					for (List<SAMRecordWrapper> reads : outOfRegionReads) {
+						outOfRegionCount += reads.size();
+					}
 
-				if (outOfRegionCount > 10000) {
-					Logger.info(logPrefix + "\tOut of region reads size: " + outOfRegionCount);
+					if (outOfRegionCount > 10000) {
+						Logger.info(logPrefix + "\tOut of region reads size: " + outOfRegionCount);
+					}
 				}
-			}
 			
-			readCount += 1;
+				readCount += 1;
+			}
 		}
 		
 		// Attempt to process last region if applicable
@@ -492,40 +627,222 @@ public class ReAligner {
 			// We've moved beyond the current region
 			// Assemble reads
 			Feature region = chromosomeRegions.get(regionToProcessIdx);
-			Logger.debug("Processing region: %s", region);
-			Map<SimpleMapper, ContigAlignerResult> mappedContigs = processRegion(region, currReads, regionJunctions.get(region), regionVariants.get(region));
-			Logger.debug("Region: %s assembled: %d contigs", region, mappedContigs.keySet().size());
-			regionContigs.put(region, mappedContigs);
+			Future<Map<SimpleMapper, ContigAlignerResult>> future = submitRegion(region, currReads, regionJunctions.get(region), regionVariants.get(region), kmerCache);
+			regionContigs.put(regionToProcessIdx, future);
+			submittedRegions.add(future);
 		}
 		
 		// Remap remaining reads
-		remapReads(regionContigs, currReads, chromosomeChunkIdx);
-		currReads.clear();
+		List<List<SAMRecordWrapper>> remainingReads = new ArrayList<List<SAMRecordWrapper>>();
+		for (ReadWindow reads : currReads) {
+			remainingReads.add(reads.clear());
+		}
+		remapQueue.put(new RemapBatch(remainingReads, regionContigs, chromosomeRegions, submittedRegions));
+		submittedRegions.clear();
 		regionContigs.clear();
 		
 		// Output remaining out of region reads
-		for (int i=0; i<outOfRegionReads.size(); i++) {
-			List<SAMRecordWrapper> outOfRegionReadsForSample = outOfRegionReads.get(i);
-			for (SAMRecordWrapper outOfRegionRead : outOfRegionReadsForSample) {
-				this.writer.addAlignment(i, outOfRegionRead, chromosomeChunkIdx);
+		remapQueue.put(new RemapBatch(outOfRegionReads));
+		remapQueue.close();
+		
+		Logger.info("READ_WINDOW_MAX_KB:\t%s\t%d", chromosomeChunk, maxReadWindowBytes/1024);
+	}
+	
+	/**
+	 * Decodes reads for the current chunk and hands them to the region stage in batches.
+	 */
+	private void ingestReads(MultiSamReader reader, StageQueue<List<SAMRecordWrapper>> ingestQueue) throws InterruptedException {
+		List<SAMRecordWrapper> batch = new ArrayList<SAMRecordWrapper>(INGEST_BATCH_SIZE);
+		
+		for (SAMRecordWrapper record : reader) {
+			
+			// If this is an unmapped read anchored by its mate, check rc flag
+			SAMRecord read1 = record.getSamRecord();
+			if (read1.getReadUnmappedFlag() && !read1.getMateUnmappedFlag()) {
+				
+				if (!read1.getReadNegativeStrandFlag() && !read1.getMateNegativeStrandFlag()) {
+					// Both ends in forward orientation.  Reverse the unmapped read
+					read1.setReadString(rc.reverseComplement(read1.getReadString()));
+					read1.setBaseQualityString(rc.reverse(read1.getBaseQualityString()));
+					read1.setReadNegativeStrandFlag(true);
+					record.setUnalignedRc(true);
+				} else if (read1.getReadNegativeStrandFlag() && read1.getMateNegativeStrandFlag()) {
+					// Both ends in reverse orientation.  Reverse the unmapped read
+					read1.setReadString(rc.reverseComplement(read1.getReadString()));
+					read1.setBaseQualityString(rc.reverse(read1.getBaseQualityString()));
+					read1.setReadNegativeStrandFlag(false);
+					record.setUnalignedRc(true);
+				}
 			}
 			
-			outOfRegionReadsForSample.clear();
+			batch.add(record);
+			
+			if (batch.size() == INGEST_BATCH_SIZE) {
+				ingestQueue.put(batch);
+				batch = new ArrayList<SAMRecordWrapper>(INGEST_BATCH_SIZE);
+			}
 		}
 		
-		reader.close();
+		if (!batch.isEmpty()) {
+			ingestQueue.put(batch);
+		}
 		
-		writer.finishChromosomeChunk(chromosomeChunkIdx);
+		ingestQueue.close();
+	}
+	
+	private static void abort(StageQueue<?>[] queues, Throwable t) {
+		for (StageQueue<?> queue : queues) {
+			queue.abort(t);
+		}
+	}
+	
+	/**
+	 * A single stage of the chromosome chunk pipeline.  Failures abort all queues so that
+	 * no other stage blocks indefinitely.
+	 */
+	abstract static class PipelineStage implements Callable<Void> {
+		private StageQueue<?>[] queues;
 		
-		clock.stopAndPrint();
+		PipelineStage(StageQueue<?>[] queues) {
+			this.queues = queues;
+		}
+		
+		@Override
+		public Void call() throws Exception {
+			try {
+				process();
+			} catch (Exception e) {
+				abort(queues, e);
+				throw e;
+			} catch (Error e) {
+				abort(queues, e);
+				throw e;
+			}
+			
+			return null;
+		}
+		
+		abstract void process() throws Exception;
 	}
 	
-	private int getFirstStartPos(List<List<SAMRecordWrapper>> readsList) {
-		int minPos = Integer.MAX_VALUE;
-		for (List<SAMRecordWrapper> reads : readsList) {
-			if (reads.size() > 0 && reads.get(0).getSamRecord().getAlignmentStart() < minPos) {
-				minPos = reads.get(0).getSamRecord().getAlignmentStart(); 
+	/**
+	 * Submits the region to the shared region pool.  Reads are subset on the calling thread
+	 * and copied so that the region sees a consistent view while subsequent regions are subset. 
+	 */
+	private Future<Map<SimpleMapper, ContigAlignerResult>> submitRegion(final Feature region, List<ReadWindow> reads,
+			final List<Feature> junctions, final List<Variant> knownVariants, final KmerCache kmerCache) {
+		
+		Logger.debug("Processing region: %s", region);
+		
+		// Locate candidate reads in each window via binary search
+		List<List<SAMRecordWrapper>> overlapping = new ArrayList<List<SAMRecordWrapper>>();
+		for (ReadWindow sampleReads : reads) {
+			overlapping.add(sampleReads.getOverlapping(region));
+		}
+		
+		final List<List<SAMRecordWrapper>> readsList = new ArrayList<List<SAMRecordWrapper>>();
+		for (List<SAMRecordWrapper> sampleReads : subsetReads(region, overlapping)) {
+			List<SAMRecordWrapper> sampleCopy = new ArrayList<SAMRecordWrapper>(sampleReads.size());
+			for (SAMRecordWrapper read : sampleReads) {
+				sampleCopy.add(read.copy());
+			}
+			readsList.add(sampleCopy);
+		}
+		
+		return regionPool.submit(new Callable<Map<SimpleMapper, ContigAlignerResult>>() {
+			@Override
+			public Map<SimpleMapper, ContigAlignerResult> call() throws Exception {
+				Map<SimpleMapper, ContigAlignerResult> mappedContigs = processRegionReads(region, readsList, junctions, knownVariants, kmerCache);
+				Logger.debug("Region: %s assembled: %d contigs", region, mappedContigs.keySet().size());
+				return mappedContigs;
+			}
+		});
+	}
+	
+	/**
+	 * Reads to be remapped along with the regions in scope at the time the reads were evicted.
+	 * Regions submitted since the prior batch are tracked as well, so that no region still
+	 * referencing these reads is running when they are remapped.
+	 */
+	static class RemapBatch {
+		List<List<SAMRecordWrapper>> reads;
+		Map<Feature, Future<Map<SimpleMapper, ContigAlignerResult>>> regions = new LinkedHashMap<Feature, Future<Map<SimpleMapper, ContigAlignerResult>>>();
+		List<Future<Map<SimpleMapper, ContigAlignerResult>>> submitted;
+		
+		// Reads to be output without remapping
+		RemapBatch(List<List<SAMRecordWrapper>> reads) {
+			this.reads = reads;
+			this.submitted = Collections.emptyList();
+		}
+		
+		RemapBatch(List<List<SAMRecordWrapper>> reads, Map<Integer, Future<Map<SimpleMapper, ContigAlignerResult>>> regionContigs,
+				List<Feature> chromosomeRegions, List<Future<Map<SimpleMapper, ContigAlignerResult>>> submitted) {
+			this.reads = reads;
+			for (int regionIdx : regionContigs.keySet()) {
+				regions.put(chromosomeRegions.get(regionIdx), regionContigs.get(regionIdx));
+			}
+			this.submitted = new ArrayList<Future<Map<SimpleMapper, ContigAlignerResult>>>(submitted);
+		}
+		
+		boolean isDone() {
+			for (Future<Map<SimpleMapper, ContigAlignerResult>> future : regions.values()) {
+				if (!future.isDone()) {
+					return false;
+				}
+			}
+			
+			for (Future<Map<SimpleMapper, ContigAlignerResult>> future : submitted) {
+				if (!future.isDone()) {
+					return false;
+				}
+			}
+			
+			return true;
+		}
+		
+		// Region results in coordinate order
+		Map<Feature, Map<SimpleMapper, ContigAlignerResult>> getRegionContigs() throws Exception {
+			for (Future<Map<SimpleMapper, ContigAlignerResult>> future : submitted) {
+				getResult(future);
+			}
+			
+			Map<Feature, Map<SimpleMapper, ContigAlignerResult>> regionContigs = new LinkedHashMap<Feature, Map<SimpleMapper, ContigAlignerResult>>();
+			for (Feature region : regions.keySet()) {
+				regionContigs.put(region, getResult(regions.get(region)));
 			}
+			
+			return regionContigs;
+		}
+		
+		private Map<SimpleMapper, ContigAlignerResult> getResult(Future<Map<SimpleMapper, ContigAlignerResult>> future) throws Exception {
+			try {
+				return future.get();
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof Exception) {
+					throw (Exception) e.getCause();
+				}
+				throw e;
+			}
+		}
+	}
+	
+	/**
+	 * Reads for a single sample awaiting output.
+	 */
+	static class WriteBatch {
+		int sampleIdx;
+		List<SAMRecordWrapper> reads;
+		
+		WriteBatch(int sampleIdx, List<SAMRecordWrapper> reads) {
+			this.sampleIdx = sampleIdx;
+			this.reads = reads;
+		}
+	}
+	
+	private int getFirstStartPos(List<ReadWindow> readsList) {
+		int minPos = Integer.MAX_VALUE;
+		for (ReadWindow reads : readsList) {
+			minPos = Math.min(minPos, reads.getFirstStart());
 		}
 		
 		return minPos;
@@ -725,17 +1042,19 @@ public class ReAligner {
 	}
 	
 	private int remapReads(Map<Feature, Map<SimpleMapper, ContigAlignerResult>> mappedContigs,
-			List<List<SAMRecordWrapper>> readsList, int chromosomeChunkIdx) throws Exception {
+			List<List<SAMRecordWrapper>> readsList, StageQueue<WriteBatch> writeQueue, ContigSeedIndex seedIndex) throws Exception {
 		
 		int totalReads = 0;
 		
 		// Skip remapping if no gap in the contigs
 		
-		ReadEvaluator readEvaluator = new ReadEvaluator(mappedContigs);
+		ReadEvaluator readEvaluator = new ReadEvaluator(mappedContigs, seedIndex);
 		
 		int sampleIdx = 0;
 		
-		boolean shouldRemap = !isGappedContigsOnly || containsIndelOrSplice(mappedContigs);
+		// Reads cannot be improved in the absence of contigs.  This also avoids touching
+		// the reference for chromosomes without regions.
+		boolean shouldRemap = !mappedContigs.isEmpty() && (!isGappedContigsOnly || containsIndelOrSplice(mappedContigs));
 		
 		// For each sample.
 		for (List<SAMRecordWrapper> reads : readsList) {
@@ -770,8 +1089,8 @@ public class ReAligner {
 			}
 
 			// Output all reads for this sample
-			for (SAMRecordWrapper read : reads) {
-				this.writer.addAlignment(sampleIdx, read, chromosomeChunkIdx);
+			if (!reads.isEmpty()) {
+				writeQueue.put(new WriteBatch(sampleIdx, reads));
 			}
 			
 			sampleIdx += 1;
@@ -971,163 +1290,199 @@ public class ReAligner {
 	}
 
 	
-	private ContigAlignerResult alignContig(Feature region, String contig, ContigAligner ssw, List<ContigAligner> sswJunctions, List<Feature> allJunctions,
+	/**
+	 * Aligns all contigs for the region, batching the native alignment calls per reference.
+	 * Contigs previously aligned for the region are taken from the cache.
+	 * Results are in input order and null where a contig could not be aligned.
+	 */
+	private List<ContigAlignerResult> alignContigs(Feature region, List<String> contigs, ContigAligner ssw, List<ContigAligner> sswJunctions, List<Feature> allJunctions,
+			int chromosomeLength, ContigAlignmentCache alignmentCache) {
+		
+		// Results by contig for contigs repeated in this call or found in the cache
+		Map<String, ContigAlignerResult> cached = new HashMap<String, ContigAlignerResult>();
+		Set<String> pending = new HashSet<String>();
+		List<String> alignable = new ArrayList<String>();
+		for (String contig : contigs) {
+			if (contig.length() > NativeSemiGlobalAligner.MAX_CONTIG_LEN) {
+				Logger.warn(String.format("In Region: %s, contig too long: [%s]", region, contig));
+			} else if (!cached.containsKey(contig) && !pending.contains(contig)) {
+				ContigAlignerResult result = alignmentCache.get(contig);
+				if (result != null) {
+					cached.put(contig, result == ContigAlignmentCache.NO_ALIGNMENT ? null : result);
+				} else {
+					alignable.add(contig);
+					pending.add(contig);
+				}
+			}
+		}
+		
+		List<ContigAligner> aligners = new ArrayList<ContigAligner>(sswJunctions);
+		aligners.add(ssw);
+		Iterator<ContigAlignerResult> alignedIter = ContigAligner.alignBest(alignable, aligners).iterator();
+		
+		List<ContigAlignerResult> results = new ArrayList<ContigAlignerResult>();
+		for (String contig : contigs) {
+			ContigAlignerResult result = null;
+			if (contig.length() > NativeSemiGlobalAligner.MAX_CONTIG_LEN) {
+				// Not aligned
+			} else if (cached.containsKey(contig)) {
+				// Repeated contigs each get their own result instance
+				result = cached.get(contig);
+				if (result != null) {
+					result = result.copy();
+				}
+			} else {
+				result = alignToExtraJunctions(region, contig, alignedIter.next(), allJunctions, chromosomeLength);
+				cached.put(contig, result);
+				alignmentCache.put(contig, result);
+			}
+			results.add(result);
+		}
+		
+		return results;
+	}
+	
+	// Checks for a better alignment of contig including junctions not in the original permutations
+	private ContigAlignerResult alignToExtraJunctions(Feature region, String contig, ContigAlignerResult bestResult, List<Feature> allJunctions,
 			int chromosomeLength) {
 		
-		ContigAlignerResult bestResult = null;
+		int bestScore = -1;
 		
-		if (contig.length() > NativeSemiGlobalAligner.MAX_CONTIG_LEN) {
-			Logger.warn(String.format("In Region: %s, contig too long: [%s]", region, contig));
-		} else {
+		ContigAlignerResult sswResult;
+		if (bestResult != null) {
+			bestScore = bestResult.getScore();
+		}
 
-			int bestScore = -1;
-			
-			ContigAlignerResult sswResult;
-			for (ContigAligner sswJunc : sswJunctions) {
-				sswResult = sswJunc.align(contig);
-				if (sswResult != null && sswResult.getScore() > bestScore) {
-					bestScore = sswResult.getScore();
-					bestResult = sswResult;
-				}
-			}
+		if (bestResult != null && bestResult != ContigAlignerResult.INDEL_NEAR_END) {
 			
-			sswResult = ssw.align(contig);
-			if (sswResult != null && sswResult.getScore() > bestScore) {
-				bestScore = sswResult.getScore();
-				bestResult = sswResult;
-			}
-	
-			if (bestResult != null && bestResult != ContigAlignerResult.INDEL_NEAR_END) {
-				
-				if (!allJunctions.isEmpty()) {
-					// Check for additional potential exon skipping junctions masked by a base or 2 interrupting the gap
-					// Using annotated exons here
-					List<Feature> extraJunctions = getExonSkippingJunctions(bestResult, allJunctions);
-					if (!extraJunctions.isEmpty()) {
-						
-						List<Feature> combinedJunctions = new ArrayList<Feature>(allJunctions);
-						combinedJunctions.addAll(extraJunctions);
-						
-						Collections.sort(combinedJunctions, new JunctionComparator());
-						
-						List<List<Feature>> junctionPermutations = new ArrayList<List<Feature>>();
-						try {
-							junctionPermutations = JunctionUtils.combineJunctions(region, combinedJunctions, new HashSet<Feature>(extraJunctions), MAX_REGION_LENGTH, this.readLength);
-						} catch (TooManyJunctionPermutationsException e) {
-							Logger.warn("TOO_MANY_POTENTIAL_JUNCTION_PERMUTATIONS: " + region.getDescriptor());
+			if (!allJunctions.isEmpty()) {
+				// Check for additional potential exon skipping junctions masked by a base or 2 interrupting the gap
+				// Using annotated exons here
+				List<Feature> extraJunctions = getExonSkippingJunctions(bestResult, allJunctions);
+				if (!extraJunctions.isEmpty()) {
+					
+					List<Feature> combinedJunctions = new ArrayList<Feature>(allJunctions);
+					combinedJunctions.addAll(extraJunctions);
+					
+					Collections.sort(combinedJunctions, new JunctionComparator());
+					
+					List<List<Feature>> junctionPermutations = new ArrayList<List<Feature>>();
+					try {
+						junctionPermutations = JunctionUtils.combineJunctions(region, combinedJunctions, new HashSet<Feature>(extraJunctions), MAX_REGION_LENGTH, this.readLength);
+					} catch (TooManyJunctionPermutationsException e) {
+						Logger.warn("TOO_MANY_POTENTIAL_JUNCTION_PERMUTATIONS: " + region.getDescriptor());
+					}
+					
+					for (List<Feature> permutation : junctionPermutations) {
+						boolean hasExtra = false;
+						for (Feature junc : permutation) {
+							if (extraJunctions.contains(junc)) {
+								hasExtra = true;
+								break;
+							}
 						}
 						
-						for (List<Feature> permutation : junctionPermutations) {
-							boolean hasExtra = false;
-							for (Feature junc : permutation) {
-								if (extraJunctions.contains(junc)) {
-									hasExtra = true;
-									break;
-								}
-							}
-							
-							if (hasExtra) {
-								ContigAligner aligner = getContigAlignerForJunctionPermutation(permutation, region, chromosomeLength);
-								if (aligner != null) {
-									sswResult = aligner.align(contig);
-									if (sswResult != null && sswResult.getScore() > bestScore) {
-										bestScore = sswResult.getScore();
-										bestResult = sswResult;
-									}
+						if (hasExtra) {
+							ContigAligner aligner = getContigAlignerForJunctionPermutation(permutation, region, chromosomeLength);
+							if (aligner != null) {
+								sswResult = aligner.align(contig);
+								if (sswResult != null && sswResult.getScore() > bestScore) {
+									bestScore = sswResult.getScore();
+									bestResult = sswResult;
 								}
 							}
 						}
 					}
+				}
+				
+				// Check for deletion adjacent to intron (i.e. skipped exon or unannotated splice)
+				// Not relying on annotated exons here.
+				extraJunctions = getExtraJunctions(bestResult, allJunctions, extraJunctions);
+				if (!extraJunctions.isEmpty()) {
 					
-					// Check for deletion adjacent to intron (i.e. skipped exon or unannotated splice)
-					// Not relying on annotated exons here.
-					extraJunctions = getExtraJunctions(bestResult, allJunctions, extraJunctions);
-					if (!extraJunctions.isEmpty()) {
-						
-						List<Feature> combinedJunctions = new ArrayList<Feature>(allJunctions);
-						combinedJunctions.addAll(extraJunctions);
-						
-						Collections.sort(combinedJunctions, new JunctionComparator());
-						
-						List<List<Feature>> junctionPermutations = new ArrayList<List<Feature>>();
-						try {
-							junctionPermutations = JunctionUtils.combineJunctions(region, combinedJunctions, new HashSet<Feature>(extraJunctions), MAX_REGION_LENGTH, this.readLength);
-						} catch (TooManyJunctionPermutationsException e) {
-							Logger.warn("TOO_MANY_POTENTIAL_JUNCTION_PERMUTATIONS: " + region.getDescriptor());
+					List<Feature> combinedJunctions = new ArrayList<Feature>(allJunctions);
+					combinedJunctions.addAll(extraJunctions);
+					
+					Collections.sort(combinedJunctions, new JunctionComparator());
+					
+					List<List<Feature>> junctionPermutations = new ArrayList<List<Feature>>();
+					try {
+						junctionPermutations = JunctionUtils.combineJunctions(region, combinedJunctions, new HashSet<Feature>(extraJunctions), MAX_REGION_LENGTH, this.readLength);
+					} catch (TooManyJunctionPermutationsException e) {
+						Logger.warn("TOO_MANY_POTENTIAL_JUNCTION_PERMUTATIONS: " + region.getDescriptor());
+					}
+					
+					for (List<Feature> permutation : junctionPermutations) {
+						boolean hasExtra = false;
+						for (Feature junc : permutation) {
+							if (extraJunctions.contains(junc)) {
+								hasExtra = true;
+								break;
+							}
 						}
 						
-						for (List<Feature> permutation : junctionPermutations) {
-							boolean hasExtra = false;
-							for (Feature junc : permutation) {
-								if (extraJunctions.contains(junc)) {
-									hasExtra = true;
-									break;
-								}
-							}
-							
-							if (hasExtra) {
-								ContigAligner aligner = getContigAlignerForJunctionPermutation(permutation, region, chromosomeLength);
-								if (aligner != null) {
-									sswResult = aligner.align(contig);
-									if (sswResult != null && sswResult.getScore() > bestScore) {
-										bestScore = sswResult.getScore();
-										bestResult = sswResult;
-									}
+						if (hasExtra) {
+							ContigAligner aligner = getContigAlignerForJunctionPermutation(permutation, region, chromosomeLength);
+							if (aligner != null) {
+								sswResult = aligner.align(contig);
+								if (sswResult != null && sswResult.getScore() > bestScore) {
+									bestScore = sswResult.getScore();
+									bestResult = sswResult;
 								}
 							}
 						}
 					}
 				}
-				
-				Logger.debug("BEST_SSW: %d : %s : %d: %d : %s",
-						bestResult.getGenomicPos(), bestResult.getCigar(), bestResult.getRefPos(), bestResult.getScore(), bestResult.getSequence());
-				
-			} else {
-				Logger.debug("NO_SSW: %s", contig);
 			}
 			
-			//TODO: Check for tie scores with different final alignment
+			Logger.debug("BEST_SSW: %d : %s : %d: %d : %s",
+					bestResult.getGenomicPos(), bestResult.getCigar(), bestResult.getRefPos(), bestResult.getScore(), bestResult.getSequence());
+			
+		} else {
+			Logger.debug("NO_SSW: %s", contig);
 		}
 		
+		//TODO: Check for tie scores with different final alignment
+		
 		return bestResult;
 	}
 	
-	private boolean assemble(List<ContigAlignerResult> results, Feature region, 
+	private boolean assemble(NativeAssembler assem, List<ContigAlignerResult> results, Feature region, 
 			String refSeq, List<String> bams, List<List<SAMRecordWrapper>> readsList, ContigAligner contigAligner,
 			List<ContigAligner> junctionAligners, int mnf, int mbq, double mer, List<Feature> junctions,
-			int chromosomeLength, int maxNumContigs) throws IOException {
+			int chromosomeLength, int maxNumContigs, ContigAlignmentCache alignmentCache) throws IOException {
 		
 		boolean shouldRetry = false;
 		
-		NativeAssembler assem = (NativeAssembler) newAssembler(region);
 		List<Feature> regions = new ArrayList<Feature>();
 		regions.add(region); 
-		StringBuffer readBuffer = new StringBuffer();
-		String contigs = assem.assembleContigs(bams, regions, region.getDescriptor(), true, this, c2r, readsList, mnf, mbq, mer, readBuffer);
+		AssemblyResult contigs = assem.assembleContigs(bams, regions, region.getDescriptor(), true, this, c2r, readsList, mnf, mbq, mer);
 		
-		if (!contigs.equals("<ERROR>") && !contigs.equals("<REPEAT>") && !contigs.isEmpty()) {
+		if (contigs.isOk() && !contigs.getContigs().isEmpty()) {
+			
+			if (contigWriter != null) {
+				appendContigs(contigs.toFasta(region.getDescriptor()));
+			}
 			
 			List<ScoredContig> scoredContigs;
 			
-			scoredContigs = ScoredContig.convertAndFilter(contigs, maxNumContigs, readBuffer);
+			scoredContigs = ScoredContig.filter(contigs.getContigs(), maxNumContigs);
 			
-			if (contigWriter != null) {
-				appendContigs(contigs);
+			// Filter contigs that match the reference
+			List<String> unmatched = new ArrayList<String>();
+			for (ScoredContig contig : scoredContigs) {
+				if (!refSeq.contains(contig.getContig())) {
+					unmatched.add(contig.getContig());
+				}
 			}
 			
 			// Map contigs to reference
-			for (ScoredContig contig : scoredContigs) {
-				// Filter contigs that match the reference
-				if (!refSeq.contains(contig.getContig())) {
-					
-					ContigAlignerResult sswResult = alignContig(region, contig.getContig(), contigAligner, junctionAligners, junctions, chromosomeLength);
-					
-					if (sswResult == ContigAlignerResult.INDEL_NEAR_END) {
-						shouldRetry = true;
-					} else if (sswResult != null) {
-						// TODO: In multi-region processing, check to ensure identical contigs have identical mappings
-						results.add(sswResult);
-					}
+			for (ContigAlignerResult sswResult : alignContigs(region, unmatched, contigAligner, junctionAligners, junctions, chromosomeLength, alignmentCache)) {
+				if (sswResult == ContigAlignerResult.INDEL_NEAR_END) {
+					shouldRetry = true;
+				} else if (sswResult != null) {
+					// TODO: In multi-region processing, check to ensure identical contigs have identical mappings
+					results.add(sswResult);
 				}
 			}
 		} 
@@ -1153,6 +1508,12 @@ public class ReAligner {
 	}
 	
 	public Map<SimpleMapper, ContigAlignerResult> processRegion(Feature region, List<List<SAMRecordWrapper>> reads, List<Feature> junctions, List<Variant> knownVariants) throws Exception {
+		return processRegionReads(region, subsetReads(region, reads), junctions, knownVariants, null);
+	}
+	
+	// Input reads are assumed to already be subset to the region.  kmerCache may be null.
+	private Map<SimpleMapper, ContigAlignerResult> processRegionReads(Feature region, List<List<SAMRecordWrapper>> readsList, List<Feature> junctions, List<Variant> knownVariants,
+			KmerCache kmerCache) throws Exception {
 		
 		long start = System.currentTimeMillis();
 		if (isDebug) {
@@ -1165,8 +1526,6 @@ public class ReAligner {
 		
 		Map<SimpleMapper, ContigAlignerResult> mappedContigs = new HashMap<SimpleMapper, ContigAlignerResult>();
 		
-		List<List<SAMRecordWrapper>> readsList = subsetReads(region, reads);
-		
 		boolean isRegionOk = true;
 		for (List<SAMRecordWrapper> sampleReads : readsList) {
 			
@@ -1182,6 +1541,9 @@ public class ReAligner {
 		int nonAssembledContigCount = 0;
 		int juncPermCount = 0;
 		
+		// Contig alignments shared by the region's assembled, alternate and retried contigs
+		ContigAlignmentCache alignmentCache = new ContigAlignmentCache();
+		
 		if (isRegionOk) {
 			List<String> bams = new ArrayList<String>(Arrays.asList(this.inputSams));
 			
@@ -1247,18 +1609,29 @@ public class ReAligner {
 					}
 					
 					List<ContigAlignerResult> results = new ArrayList<ContigAlignerResult>();
-					boolean shouldRetry = assemble(results, region, refSeq, bams, readsList, ssw, junctionAligners,
-							assemblerSettings.getMinNodeFrequncy(), assemblerSettings.getMinBaseQuality(),
-							assemblerSettings.getMinEdgeRatio(), junctions, chromosomeLength, maxNumContigs);
 					
-					if (shouldRetry) {
-						Logger.debug("RETRY_ASSEMBLY: %s", region);
-						// Indel near edge of contig indicates that we may have a low coverage indel encountered.
-						// Try to reassemble using less stringent pruning to see if we can get greater coverage.
-						results.clear();
-						assemble(results, region, refSeq, bams, readsList, ssw, junctionAligners,
-								assemblerSettings.getMinNodeFrequncy()/2, assemblerSettings.getMinBaseQuality()/2,
-								assemblerSettings.getMinEdgeRatio()/2.0, junctions, chromosomeLength, maxNumContigs);
+					// If a retry is possible, graphs are retained so that the retry only needs to re-prune
+					NativeAssembler assem = newAssembler(region);
+					assem.setRetainGraphs(ContigAligner.IS_INDEL_NEAR_END_RETRY_ENABLED);
+					assem.setKmerCache(kmerCache);
+					
+					try {
+						boolean shouldRetry = assemble(assem, results, region, refSeq, bams, readsList, ssw, junctionAligners,
+								assemblerSettings.getMinNodeFrequncy(), assemblerSettings.getMinBaseQuality(),
+								assemblerSettings.getMinEdgeRatio(), junctions, chromosomeLength, maxNumContigs, alignmentCache);
+						
+						if (shouldRetry) {
+							Logger.debug("RETRY_ASSEMBLY: %s", region);
+							// Indel near edge of contig indicates that we may have a low coverage indel encountered.
+							// Try to reassemble using less stringent pruning to see if we can get greater coverage.
+							results.clear();
+							assem.setRetainGraphs(false);
+							assemble(assem, results, region, refSeq, bams, readsList, ssw, junctionAligners,
+									assemblerSettings.getMinNodeFrequncy()/2, assemblerSettings.getMinBaseQuality()/2,
+									assemblerSettings.getMinEdgeRatio()/2.0, junctions, chromosomeLength, maxNumContigs, alignmentCache);
+						}
+					} finally {
+						assem.releaseGraphs();
 					}
 					
 					for (ContigAlignerResult sswResult : results) {
@@ -1277,10 +1650,9 @@ public class ReAligner {
 					
 					nonAssembledContigCount = altContigs.size();
 					
-					for (String contig : altContigs) {
-						// TODO: Check to see if this contig is already in the map before aligning
-						
-						ContigAlignerResult sswResult = alignContig(region, contig, ssw, junctionAligners, junctions, chromosomeLength);
+					List<ContigAlignerResult> altResults = alignContigs(region, new ArrayList<String>(altContigs), ssw, junctionAligners, junctions, chromosomeLength,
+							alignmentCache);
+					for (ContigAlignerResult sswResult : altResults) {
 						if (sswResult != null && sswResult != ContigAlignerResult.INDEL_NEAR_END) {
 							// Set as secondary for remap prioritization
 							sswResult.setSecondary(true);
@@ -1295,8 +1667,9 @@ public class ReAligner {
 		long stop = System.currentTimeMillis();
 		
 		synchronized(this.getClass()) {
-			Logger.info("PROCESS_REGION_MSECS:\t%s\t%d\t%d\t%d\t%d", region.getDescriptor(), (stop-start), 
-					assembledContigCount, nonAssembledContigCount, juncPermCount);
+			Logger.info("PROCESS_REGION_MSECS:\t%s\t%d\t%d\t%d\t%d\t%d\t%d", region.getDescriptor(), (stop-start), 
+					assembledContigCount, nonAssembledContigCount, juncPermCount,
+					alignmentCache.getHits(), alignmentCache.getMisses());
 		}
 		
 		return mappedContigs;
@@ -1590,6 +1963,8 @@ public class ReAligner {
 		assem.setMinReadCandidateFraction(assemblerSettings.getMinReadCandidateFraction());
 		assem.setMaxAverageDepth(assemblerSettings.getMaxAverageDepth());
 		assem.setSkipUnmappedTrigger(this.isSkipUnmappedTrigger);
+		assem.setKmerPool(kmerPool);
+		assem.setAssemblyCache(assemblyCache);
 
 		return assem;
 	}
@@ -1797,6 +2172,11 @@ public class ReAligner {
 			realigner.isGappedContigsOnly = options.isGappedContigsOnly();
 			realigner.shouldUseJunctionsAsContigs = options.shouldUseJunctionsAsContigs();
 			realigner.disallowComplexIndelsAtReadEdge = options.disallowComplexIndelsAtReadEdge();
+			realigner.isLazyReference = options.isLazyReference();
+			realigner.isAsyncRead = options.isAsyncRead();
+			realigner.isParallelKmers = options.isParallelKmers();
+			realigner.assemblyCacheDir = options.getAssemblyCache();
+			realigner.stageThreads = options.getStageThreads();
 			
 			MAX_REGION_LENGTH = options.getWindowSize();
 			MIN_REGION_REMAINDER = options.getWindowOverlap();
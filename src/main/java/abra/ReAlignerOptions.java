@@ -60,6 +60,11 @@ public class ReAlignerOptions extends Options {
 	private static final String GAPPED_CONTIGS_ONLY = "gc";
 	private static final String USE_JUNCTIONS_AS_CONTIGS = "ujac";
 	private static final String NO_COMPLEX_INDELS_AT_READ_EDGE = "no-edge-ci";
+	private static final String LAZY_REFERENCE = "lazy-ref";
+	private static final String ASYNC_READ = "async-read";
+	private static final String PARALLEL_KMERS = "parallel-kmers";
+	private static final String ASSEMBLY_CACHE = "assembly-cache";
+	private static final String STAGE_THREADS = "stage-threads";
 	
 	private OptionParser parser;
 	private boolean isValid;
@@ -118,6 +123,11 @@ public class ReAlignerOptions extends Options {
             parser.accepts(GAPPED_CONTIGS_ONLY, "If specified, only reprocess regions that contain at least one contig containing an indel or splice (experimental)");
             parser.accepts(USE_JUNCTIONS_AS_CONTIGS, "If specified, use junction permuations as contigs (Experimental - may use excessive memory and compute times)");
             parser.accepts(NO_COMPLEX_INDELS_AT_READ_EDGE, "If specified, do not update alignments for reads that have a complex indel at the read edge.  i.e. Do not allow alignments like: 90M10D10I");
+            parser.accepts(LAZY_REFERENCE, "If specified, load reference chromosomes on demand using the fasta index (.fai) and release them once processed.  Reduces memory for targeted runs");
+            parser.accepts(ASYNC_READ, "If specified, inflate and decode each input BAM on a background thread per sample.  Uses additional threads and memory");
+            parser.accepts(PARALLEL_KMERS, "If specified, assemble larger kmer sizes speculatively in parallel when a region may stop on a repeat.  Uses additional threads");
+            parser.accepts(ASSEMBLY_CACHE, "Optional directory in which assembly results are cached across runs.  Clear when upgrading ABRA2").withRequiredArg().ofType(String.class);
+            parser.accepts(STAGE_THREADS, "Number of chromosome chunks processed concurrently.  Each uses one ingest, remap and write thread.  Defaults to --threads").withRequiredArg().ofType(Integer.class);
     	}
     	
     	return parser;
@@ -156,6 +166,11 @@ public class ReAlignerOptions extends Options {
 			System.err.println("Num threads must be greater than zero.");
 		}
 		
+		if ((getOptions().hasArgument(STAGE_THREADS) && (Integer) getOptions().valueOf(STAGE_THREADS) < 1)) {
+			isValid = false;
+			System.err.println("Stage threads must be greater than zero.");
+		}
+		
         if (!isValid) {
             printHelp();
         }
@@ -292,6 +307,27 @@ public class ReAlignerOptions extends Options {
 		return getOptions().has(GAPPED_CONTIGS_ONLY);
 	}
 	
+	public boolean isLazyReference() {
+		return getOptions().has(LAZY_REFERENCE);
+	}
+	
+	public boolean isAsyncRead() {
+		return getOptions().has(ASYNC_READ);
+	}
+	
+	public boolean isParallelKmers() {
+		return getOptions().has(PARALLEL_KMERS);
+	}
+	
+	// Returns 0 if not specified, in which case stage threads are derived from num threads
+	public int getStageThreads() {
+		return getOptions().hasArgument(STAGE_THREADS) ? (Integer) getOptions().valueOf(STAGE_THREADS) : 0;
+	}
+	
+	public String getAssemblyCache() {
+		return (String) getOptions().valueOf(ASSEMBLY_CACHE);
+	}
+	
 	public String getTmpDir() {
 		return getOptions().has(TMP_DIR) ? (String) getOptions().valueOf(TMP_DIR) : null;
 	}
@@ -17,8 +17,20 @@ public class ReadEvaluator {
 	// key = SimpleMapper with cached contig, value = contig SW alignment result
 	private Map<Feature, Map<SimpleMapper, ContigAlignerResult>> mappedContigs;
 	
+	private ContigSeedIndex seedIndex;
+	
 	public ReadEvaluator(Map<Feature, Map<SimpleMapper, ContigAlignerResult>> mappedContigs) {
+		this(mappedContigs, new ContigSeedIndex());
+	}
+	
+	/**
+	 * seedIndex is updated to cover mappedContigs, allowing a single index to be maintained
+	 * across successive evaluators as the set of regions changes.
+	 */
+	public ReadEvaluator(Map<Feature, Map<SimpleMapper, ContigAlignerResult>> mappedContigs, ContigSeedIndex seedIndex) {
 		this.mappedContigs = mappedContigs;
+		this.seedIndex = seedIndex;
+		seedIndex.update(mappedContigs);
 	}
 	
 	
@@ -62,19 +74,24 @@ public class ReadEvaluator {
 		
 		int bestMismatches = read.length()+1;
 		
-		// Map read to all contigs, caching the hits with the smallest number of mismatches
+		// Map read to all contigs at once
+		seedIndex.map(read);
+		
+		// Cache the hits with the smallest number of mismatches
 		for (Feature region : mappedContigs.keySet()) {
-			Map<SimpleMapper, ContigAlignerResult> regionContigs = mappedContigs.get(region);
+			ContigSeedIndex.RegionSlots regionSlots = seedIndex.getRegionSlots(region);
 			
-			for (SimpleMapper mapper : regionContigs.keySet()) {
-				SimpleMapperResult mapResult = mapper.map(read);
+			for (int i=0; i<regionSlots.slots.length; i++) {
+				int slot = regionSlots.slots[i];
+				int mismatches = seedIndex.getMismatches(slot);
 				
-				if (mapResult.getMismatches() < bestMismatches) {
-					bestMismatches = mapResult.getMismatches();
-					alignmentHits.clear();
-					alignmentHits.add(new AlignmentHit(mapResult, mapper, region));
-				} else if (mapResult.getMismatches() == bestMismatches) {
-					alignmentHits.add(new AlignmentHit(mapResult, mapper, region));
+				if (mismatches <= bestMismatches) {
+					SimpleMapperResult mapResult = new SimpleMapperResult(seedIndex.getPos(slot), mismatches, seedIndex.getOrientation(slot));
+					if (mismatches < bestMismatches) {
+						bestMismatches = mismatches;
+						alignmentHits.clear();
+					}
+					alignmentHits.add(new AlignmentHit(mapResult, regionSlots.mappers[i], region));
 				}
 			}
 		}
@@ -0,0 +1,269 @@
+package abra;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Window of cached reads for a single sample, ordered by alignment start.
+ * Backed by a ring buffer, so that evicting reads from the head is O(1) per read and
+ * reads overlapping a region are located via binary search.
+ *
+ * Not thread safe.
+ */
+public class ReadWindow {
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	// Rough per read memory estimate in bytes.  SAMRecord, wrapper and tag overhead plus bases and quals per base.
+	private static final int READ_OVERHEAD_BYTES = 400;
+	private static final int BYTES_PER_BASE = 2;
+
+	private SAMRecordWrapper[] reads;
+	private int[] starts;
+	// Distance from alignment start to end per read
+	private int[] spans;
+	private int head = 0;
+	private int size = 0;
+
+	// Max span of cached reads and the number of cached reads with that span.  Recomputed
+	// once the last read with the max span is evicted.
+	private int maxSpan = 0;
+	private int maxSpanCount = 0;
+
+	private long readBytes = 0;
+
+	public ReadWindow() {
+		this(INITIAL_CAPACITY);
+	}
+
+	public ReadWindow(int capacity) {
+		reads = new SAMRecordWrapper[Math.max(capacity, 1)];
+		starts = new int[reads.length];
+		spans = new int[reads.length];
+	}
+
+	/**
+	 * Adds the read.  Reads are expected to arrive in alignment start order.  Out of order reads
+	 * are inserted after all cached reads with the same or lesser start position.
+	 */
+	public void add(SAMRecordWrapper read) {
+		if (size == reads.length) {
+			grow();
+		}
+
+		int start = read.getSamRecord().getAlignmentStart();
+		int span = getEnd(read) - start;
+
+		int idx = size;
+		if (size > 0 && start < starts[physical(size-1)]) {
+			idx = upperBound(start);
+			for (int i=size; i>idx; i--) {
+				reads[physical(i)] = reads[physical(i-1)];
+				starts[physical(i)] = starts[physical(i-1)];
+				spans[physical(i)] = spans[physical(i-1)];
+			}
+		}
+
+		reads[physical(idx)] = read;
+		starts[physical(idx)] = start;
+		spans[physical(idx)] = span;
+		size += 1;
+
+		if (span > maxSpan) {
+			maxSpan = span;
+			maxSpanCount = 1;
+		} else if (span == maxSpan) {
+			maxSpanCount += 1;
+		}
+		readBytes += estimateBytes(read);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public SAMRecordWrapper get(int idx) {
+		if (idx < 0 || idx >= size) {
+			throw new IndexOutOfBoundsException("Index: " + idx + ", size: " + size);
+		}
+
+		return reads[physical(idx)];
+	}
+
+	/**
+	 * Alignment start of the first cached read or Integer.MAX_VALUE if empty.
+	 */
+	public int getFirstStart() {
+		return size > 0 ? starts[head] : Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Removes all reads with an alignment start less than pos and appends them to evicted in order.
+	 */
+	public void evictBefore(int pos, List<SAMRecordWrapper> evicted) {
+		boolean isMaxSpanEvicted = false;
+		
+		while (size > 0 && starts[head] < pos) {
+			SAMRecordWrapper read = reads[head];
+			evicted.add(read);
+			readBytes -= estimateBytes(read);
+			if (spans[head] == maxSpan) {
+				maxSpanCount -= 1;
+				isMaxSpanEvicted = maxSpanCount == 0;
+			}
+			reads[head] = null;
+			head = (head + 1) % reads.length;
+			size -= 1;
+		}
+
+		if (size == 0) {
+			reset();
+		} else if (isMaxSpanEvicted) {
+			updateMaxSpan();
+		}
+	}
+	
+	/**
+	 * Max distance from alignment start to end of the cached reads.
+	 */
+	int getMaxSpan() {
+		return maxSpan;
+	}
+	
+	private void updateMaxSpan() {
+		maxSpan = 0;
+		maxSpanCount = 0;
+		for (int i=0; i<size; i++) {
+			int span = spans[physical(i)];
+			if (span > maxSpan) {
+				maxSpan = span;
+				maxSpanCount = 1;
+			} else if (span == maxSpan) {
+				maxSpanCount += 1;
+			}
+		}
+	}
+
+	/**
+	 * Removes and returns all cached reads in order.
+	 */
+	public List<SAMRecordWrapper> clear() {
+		List<SAMRecordWrapper> all = new ArrayList<SAMRecordWrapper>(size);
+		evictBefore(Integer.MAX_VALUE, all);
+
+		// Reads starting at Integer.MAX_VALUE are not expected, but do not drop them
+		while (size > 0) {
+			all.add(reads[head]);
+			reads[head] = null;
+			head = (head + 1) % reads.length;
+			size -= 1;
+		}
+		reset();
+
+		return all;
+	}
+
+	/**
+	 * Returns cached reads overlapping the region in window order.
+	 */
+	public List<SAMRecordWrapper> getOverlapping(Feature region) {
+		List<SAMRecordWrapper> overlapping = new ArrayList<SAMRecordWrapper>();
+
+		// Reads starting before this position cannot reach the region
+		long minStart = region.getStart() - maxSpan;
+
+		int from = lowerBound(minStart < Integer.MIN_VALUE ? Integer.MIN_VALUE : (int) minStart);
+		int to = upperBound(region.getEnd() > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) region.getEnd());
+
+		for (int i=from; i<to; i++) {
+			SAMRecordWrapper read = reads[physical(i)];
+			if (region.overlapsRead(read.getSamRecord())) {
+				overlapping.add(read);
+			}
+		}
+
+		return overlapping;
+	}
+
+	/**
+	 * Estimated bytes used by the cached reads and the window's buffers.
+	 */
+	public long getMemoryUsage() {
+		// 8 byte references assumed
+		return readBytes + (long) reads.length * (8 + 4 + 4);
+	}
+
+	private void reset() {
+		head = 0;
+		maxSpan = 0;
+		maxSpanCount = 0;
+		readBytes = 0;
+	}
+
+	private int getEnd(SAMRecordWrapper read) {
+		// Consistent with Feature.overlapsRead
+		return Math.max(read.getSamRecord().getAlignmentEnd(), read.getSamRecord().getAlignmentStart() + read.getSamRecord().getReadLength());
+	}
+
+	private long estimateBytes(SAMRecordWrapper read) {
+		return READ_OVERHEAD_BYTES + (long) read.getSamRecord().getReadLength() * BYTES_PER_BASE;
+	}
+
+	private int physical(int idx) {
+		int pos = head + idx;
+		return pos < reads.length ? pos : pos - reads.length;
+	}
+
+	// Logical index of first read with start >= pos
+	private int lowerBound(int pos) {
+		int lo = 0;
+		int hi = size;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (starts[physical(mid)] < pos) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+
+		return lo;
+	}
+
+	// Logical index of first read with start > pos
+	private int upperBound(int pos) {
+		int lo = 0;
+		int hi = size;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (starts[physical(mid)] <= pos) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+
+		return lo;
+	}
+
+	private void grow() {
+		SAMRecordWrapper[] newReads = new SAMRecordWrapper[reads.length * 2];
+		int[] newStarts = new int[newReads.length];
+		int[] newSpans = new int[newReads.length];
+
+		for (int i=0; i<size; i++) {
+			newReads[i] = reads[physical(i)];
+			newStarts[i] = starts[physical(i)];
+			newSpans[i] = spans[physical(i)];
+		}
+
+		reads = newReads;
+		starts = newStarts;
+		spans = newSpans;
+		head = 0;
+	}
+}
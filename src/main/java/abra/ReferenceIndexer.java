@@ -0,0 +1,32 @@
+/* Copyright 2013 University of North Carolina at Chapel Hill.  All rights reserved. */
+package abra;
+
+/**
+ * Writes a 2 bit packed reference index that is memory mapped by CompareToReference2
+ * in subsequent runs.  Index is written to reference + CompareToReference2.INDEX_SUFFIX
+ * unless an output file is specified.
+ */
+public class ReferenceIndexer {
+
+	public static void main(String[] args) throws Exception {
+		
+		if (args.length < 1 || args.length > 2) {
+			System.err.println("Usage: java -jar abra2.jar index <reference.fa> [output_index]");
+			System.exit(-1);
+		}
+		
+		String reference = args[0];
+		String index = args.length > 1 ? args[1] : reference + CompareToReference2.INDEX_SUFFIX;
+		
+		long s = System.currentTimeMillis();
+		
+		CompareToReference2 c2r = new CompareToReference2();
+		c2r.initFasta(reference);
+		
+		Logger.info("Writing reference index: " + index);
+		c2r.writeIndex(index);
+		
+		long e = System.currentTimeMillis();
+		Logger.info("Done writing reference index.  Elapsed secs: " + (e-s)/1000);
+	}
+}
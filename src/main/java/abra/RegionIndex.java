@@ -0,0 +1,116 @@
+package abra;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Interval index over the sorted target regions of a single chromosome.
+ * Region coordinates are held in primitive arrays and queried via binary search.
+ * 
+ * Not thread safe.  Intended for use by a single chromosome chunk.
+ */
+public class RegionIndex {
+	
+	private String chromosome;
+	private int[] starts;
+	private int[] ends;
+	
+	// Max region end at or before each index.  Allows binary search when region ends are not sorted.
+	private int[] maxEnds;
+	
+	// Reusable span coordinates for the current read
+	private int[] spans = new int[16];
+
+	/**
+	 * Regions must share a single chromosome and be sorted by start position.
+	 */
+	public RegionIndex(List<Feature> regions) {
+		starts = new int[regions.size()];
+		ends = new int[regions.size()];
+		maxEnds = new int[regions.size()];
+		
+		int maxEnd = Integer.MIN_VALUE;
+		for (int i=0; i<regions.size(); i++) {
+			Feature region = regions.get(i);
+			
+			if (chromosome == null) {
+				chromosome = region.getSeqname();
+			} else if (!chromosome.equals(region.getSeqname())) {
+				throw new IllegalArgumentException("Indexed regions must be on a single chromosome: " + chromosome + ", " + region);
+			}
+			
+			starts[i] = (int) region.getStart();
+			ends[i] = (int) region.getEnd();
+			
+			if (i > 0 && starts[i] < starts[i-1]) {
+				throw new IllegalArgumentException("Indexed regions must be sorted by start position: " + region);
+			}
+			
+			maxEnd = Math.max(maxEnd, ends[i]);
+			maxEnds[i] = maxEnd;
+		}
+	}
+	
+	public int size() {
+		return starts.length;
+	}
+	
+	/**
+	 * Returns the index of the first region containing pos, or -1 if pos falls before the next region start.
+	 * A region is not reported if it starts after pos, even if a later region contains pos.
+	 */
+	int findFirstOverlappingRegion(int pos) {
+		
+		// First region with end >= pos
+		int lo = 0;
+		int hi = maxEnds.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (maxEnds[mid] < pos) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		
+		if (lo < starts.length && starts[lo] <= pos) {
+			return lo;
+		}
+		
+		return -1;
+	}
+	
+	/**
+	 * Adds indices of regions overlapping the read's spanning regions to regionIdxs.
+	 * Matches the region selection of Feature.findAllOverlappingRegions.
+	 */
+	public void findAllOverlappingRegions(SAMRecordWrapper read, Collection<Integer> regionIdxs) {
+		
+		if (starts.length == 0 || !chromosome.equals(read.getSamRecord().getReferenceName())) {
+			return;
+		}
+		
+		int numSpans = read.getSpanningRegions(spans);
+		if (numSpans * 2 > spans.length) {
+			spans = new int[numSpans * 2];
+			read.getSpanningRegions(spans);
+		}
+		
+		for (int i=0; i<numSpans; i++) {
+			int spanStart = spans[i*2];
+			int spanEnd = spans[i*2+1];
+			
+			int idx = findFirstOverlappingRegion(spanStart);
+			if (idx > -1) {
+				regionIdxs.add(idx);
+				idx += 1;
+				
+				// Subsequent regions overlapping the span
+				while (idx < starts.length && starts[idx] <= spanEnd && ends[idx] >= spanStart) {
+					regionIdxs.add(idx);
+					idx += 1;
+				}
+			}
+		}
+	}
+}
@@ -28,6 +28,21 @@ public class SAMRecordWrapper {
 		this.sampleIdx = sampleIdx;
 	}
 
+	/**
+	 * Returns a copy sharing the underlying SAMRecord.
+	 */
+	SAMRecordWrapper copy() {
+		SAMRecordWrapper copy = new SAMRecordWrapper(samRecord, shouldFilter, shouldAssemble, sampleIdx);
+		copy.shouldFilter = shouldFilter;
+		copy.isUnalignedRc = isUnalignedRc;
+		copy.mergedSeq = mergedSeq;
+		copy.mergedQual = mergedQual;
+		copy.adjustedAlignmentStart = adjustedAlignmentStart;
+		copy.adjustedAlignmentEnd = adjustedAlignmentEnd;
+		copy.bqSum = bqSum;
+		return copy;
+	}
+
 	public SAMRecord getSamRecord() {
 		return samRecord;
 	}
@@ -174,15 +189,39 @@ public class SAMRecordWrapper {
 	
 	public List<Span> getSpanningRegions() {
 		
-		List<Span> spans = new ArrayList<Span>();
+		int[] coords = new int[8];
+		int numSpans = getSpanningRegions(coords);
+		
+		if (numSpans * 2 > coords.length) {
+			coords = new int[numSpans * 2];
+			getSpanningRegions(coords);
+		}
+		
+		List<Span> spans = new ArrayList<Span>(numSpans);
+		for (int i=0; i<numSpans; i++) {
+			spans.add(new Span(coords[i*2], coords[i*2+1]));
+		}
+		
+		return spans;
+	}
+	
+	/**
+	 * Writes start / end pairs for each spanning region into coords and returns the number of spans.
+	 * If coords is too small, only the spans that fit are written.  The full span count is still returned.
+	 */
+	int getSpanningRegions(int[] coords) {
+		
+		int numSpans = 0;
 		
 		int start = getAdjustedAlignmentStart();
 		
 		if (samRecord.getReadUnmappedFlag()) {
-			spans.add(new Span(start, getAdjustedAlignmentEnd()));
+			numSpans = addSpan(coords, numSpans, start, getAdjustedAlignmentEnd());
 		} else {
 			int end = start;
-			for (CigarElement elem : samRecord.getCigar().getCigarElements()) {
+			List<CigarElement> elems = samRecord.getCigar().getCigarElements();
+			for (int i=0; i<elems.size(); i++) {
+				CigarElement elem = elems.get(i);
 				switch (elem.getOperator()) {
 				case M:
 				case S:
@@ -194,7 +233,7 @@ public class SAMRecordWrapper {
 				case H:
 					break;
 				case N:
-					spans.add(new Span(start, end));
+					numSpans = addSpan(coords, numSpans, start, end);
 					start = end + elem.getLength();
 					end = start;
 					break;
@@ -204,10 +243,19 @@ public class SAMRecordWrapper {
 				}
 			}
 			
-			spans.add(new Span(start, end));
+			numSpans = addSpan(coords, numSpans, start, end);
 		}
 		
-		return spans;
+		return numSpans;
+	}
+	
+	private int addSpan(int[] coords, int numSpans, int start, int end) {
+		if (numSpans * 2 + 1 < coords.length) {
+			coords[numSpans * 2] = start;
+			coords[numSpans * 2 + 1] = end;
+		}
+		
+		return numSpans + 1;
 	}
 	
 	static class Span {
@@ -9,10 +9,20 @@ public class ScoredContig implements Comparable<ScoredContig> {
 	private double score;
 	private String contig;
 	
+	// Assembly graph path statistics, -1 if unknown
+	private int numNodes = -1;
+	private int minKmerFrequency = -1;
+	
 	public ScoredContig(double score, String contig) {
 		this.score = score;
 		this.contig = contig;
 	}
+	
+	public ScoredContig(double score, String contig, int numNodes, int minKmerFrequency) {
+		this(score, contig);
+		this.numNodes = numNodes;
+		this.minKmerFrequency = minKmerFrequency;
+	}
 
 	public double getScore() {
 		return score;
@@ -22,6 +32,20 @@ public class ScoredContig implements Comparable<ScoredContig> {
 		return contig;
 	}
 	
+	/**
+	 * Number of graph nodes (kmers) traversed to build the contig.
+	 */
+	public int getNumNodes() {
+		return numNodes;
+	}
+	
+	/**
+	 * Minimum kmer frequency along the contig path.  Proxy for the number of supporting reads.
+	 */
+	public int getMinKmerFrequency() {
+		return minKmerFrequency;
+	}
+	
 	public String toString() {
 		return String.valueOf(score);
 	}
@@ -41,7 +65,7 @@ public class ScoredContig implements Comparable<ScoredContig> {
 //		return convertAndFilter(contigStrings, MAX_CONTIGS);
 //	}
 	
-	public static List<ScoredContig> convertAndFilter(String contigStrings, int maxContigs, StringBuffer readBuffer) {
+	public static List<ScoredContig> convertAndFilter(String contigStrings, int maxContigs) {
 		List<ScoredContig> contigs = new ArrayList<ScoredContig>();
 		
 		double score = Double.NEGATIVE_INFINITY;
@@ -53,7 +77,6 @@ public class ScoredContig implements Comparable<ScoredContig> {
 					score = Double.parseDouble(fields[4]);
 				} catch (ArrayIndexOutOfBoundsException e) {
 					Logger.error("Error parsing assembled contigs.  Line: [" + str + "]\n\nContigs: [\n" + contigStrings + "\n]");
-					Logger.error("Read buffer: [\n" + readBuffer.toString() + "\n]");
 					throw e;
 				}
 			} else {
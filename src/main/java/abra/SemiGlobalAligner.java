@@ -1,6 +1,7 @@
 package abra;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -24,11 +25,13 @@ public class SemiGlobalAligner {
 	private static final int M = 1;
 	private static final int D = 2;
 	
-	private static final int MAX_REF_LEN = 5000;
-	private static final int MAX_CONTIG_LEN = 2000;
-
-	private int[][][] matrix = new int[MAX_CONTIG_LEN][MAX_REF_LEN][3];
-	private byte[][][] bt = new byte[MAX_CONTIG_LEN][MAX_REF_LEN][3];
+	// Per thread DP buffers, grown as needed and reused across alignments
+	private static final ThreadLocal<Buffers> BUFFERS = new ThreadLocal<Buffers>() {
+		@Override
+		protected Buffers initialValue() {
+			return new Buffers();
+		}
+	};
 	
 	public SemiGlobalAligner() {
 
@@ -42,115 +45,115 @@ public class SemiGlobalAligner {
 	}
 
 	public Result align(String seq1, String seq2) {
-//		int[][][] matrix = new int[seq1.length()+1][seq2.length()+1][3];
-//		byte[][][] bt = new byte[seq1.length()+1][seq2.length()+1][3];
+		Buffers buffers = BUFFERS.get();
+		buffers.ensureCapacity(seq1.length(), seq2.length(), true);
 		
-		populate(matrix, bt, seq1, seq2);
-		return backtrack(matrix, bt, seq1, seq2);
+		populate(buffers, seq1, seq2, true);
+		return backtrack(buffers, seq1, seq2);
 	}
 	
-	private void populate(int[][][] matrix, byte[][][] bt, String seq1, String seq2) {
-		for (int r=1; r<=seq1.length(); r++) {
-			matrix[r][0][I] = gapOpen + (r*gapExtend);
-			matrix[r][0][M] = gapOpen + (r*gapExtend);
-			matrix[r][0][D] = gapOpen + (r*gapExtend);
-		}
+	/**
+	 * Computes score, second best score and end position in linear memory without backtracking.
+	 * Position is -1 and cigar is null.
+	 */
+	public Result score(String seq1, String seq2) {
+		Buffers buffers = BUFFERS.get();
+		buffers.ensureCapacity(seq1.length(), seq2.length(), false);
+		
+		populate(buffers, seq1, seq2, false);
+		return bestInLastRow(buffers, seq2, -1, null);
+	}
+	
+	// Scores are kept for the current and previous rows only.  bt is a flat (seq1.length()+1) x (seq2.length()+1) x 3 matrix.
+	private void populate(Buffers buffers, String seq1, String seq2, boolean isTraceback) {
+		int cols = seq2.length() + 1;
+		int[] prevI = buffers.prevI;
+		int[] prevM = buffers.prevM;
+		int[] currI = buffers.currI;
+		int[] currM = buffers.currM;
+		byte[] bt = buffers.bt;
 		
-		for (int c=0; c<=seq2.length(); c++) {
-			matrix[0][c][I] = gapOpen + (c*gapExtend);
-			matrix[0][c][M] = 0;
-			matrix[0][c][D] = gapOpen + (c*gapExtend);
+		for (int c=0; c<cols; c++) {
+			prevI[c] = gapOpen + (c*gapExtend);
+			prevM[c] = 0;
 		}
 		
-		for (int r=2; r<=seq1.length(); r++) {
-			bt[r][0][I] = DIR_UP;
-			bt[r][0][D] = DIR_UP;
-			bt[r][0][M] = DIR_UP;
+		if (isTraceback) {
+			// First row and first cell of second row terminate the backtrack
+			Arrays.fill(bt, 0, (cols+1)*3, (byte) 0);
 		}
 		
 		for (int r=1; r<=seq1.length(); r++) {
-			for (int c=1; c<=seq2.length(); c++) {
+			int edge = gapOpen + (r*gapExtend);
+			currI[0] = edge;
+			currM[0] = edge;
+			int currD = edge;
+			
+			int rowIdx = r*cols*3;
+			if (isTraceback && r >= 2) {
+				bt[rowIdx+I] = DIR_UP;
+				bt[rowIdx+M] = DIR_UP;
+				bt[rowIdx+D] = DIR_UP;
+			}
+			
+			char base = seq1.charAt(r-1);
+			
+			for (int c=1; c<cols; c++) {
+				int idx = rowIdx + c*3;
 				
 				//
 				// Insertion (lower) matrix
-				int insertExt = matrix[r-1][c][I] + gapExtend;
-				int insertOpen = matrix[r-1][c][M] + gapOpen;
+				int insertExt = prevI[c] + gapExtend;
+				int insertOpen = prevM[c] + gapOpen;
+				int insert;
 				
 				if (insertExt >= insertOpen) {
-					matrix[r][c][I] = insertExt;
-					bt[r][c][I] = DIR_UP;
+					insert = insertExt;
+					if (isTraceback) bt[idx+I] = DIR_UP;
 				} else {
-					matrix[r][c][I] = insertOpen;
-					bt[r][c][I] = DIR_DIAG;
+					insert = insertOpen;
+					if (isTraceback) bt[idx+I] = DIR_DIAG;
 				}
+				currI[c] = insert;
 				
 				// Deletion (upper) matrix
-				int deleteExt = matrix[r][c-1][D] + gapExtend;
-				int deleteOpen = matrix[r][c-1][M] + gapOpen;
+				int deleteExt = currD + gapExtend;
+				int deleteOpen = currM[c-1] + gapOpen;
 
 				if (deleteExt >= deleteOpen) {
-					matrix[r][c][D] = deleteExt;
-					bt[r][c][D] = DIR_LEFT;
+					currD = deleteExt;
+					if (isTraceback) bt[idx+D] = DIR_LEFT;
 				} else {
-					matrix[r][c][D] = deleteOpen;
-					bt[r][c][D] = DIR_DIAG;
+					currD = deleteOpen;
+					if (isTraceback) bt[idx+D] = DIR_DIAG;
 				}
 				
 				//
 				// Match/mismatch (middle) matrix
-				int insertClose = matrix[r][c][I]; 
-				int baseMatch = seq1.charAt(r-1) == seq2.charAt(c-1) ? matrix[r-1][c-1][M] + match : matrix[r-1][c-1][M] + mismatch;
-				int deleteClose = matrix[r][c][D];
+				int baseMatch = base == seq2.charAt(c-1) ? prevM[c-1] + match : prevM[c-1] + mismatch;
 				
-				if (baseMatch >=insertClose && baseMatch >= deleteClose) {
-					matrix[r][c][M] = baseMatch;
-					bt[r][c][M] = DIR_DIAG;
-				} else if (insertClose >= deleteClose) {
-					matrix[r][c][M] = insertClose;
-					bt[r][c][M] = DIR_UP;					
+				if (baseMatch >= insert && baseMatch >= currD) {
+					currM[c] = baseMatch;
+					if (isTraceback) bt[idx+M] = DIR_DIAG;
+				} else if (insert >= currD) {
+					currM[c] = insert;
+					if (isTraceback) bt[idx+M] = DIR_UP;
 				} else {
-					matrix[r][c][M] = deleteClose;
-					bt[r][c][M] = DIR_LEFT;										
+					currM[c] = currD;
+					if (isTraceback) bt[idx+M] = DIR_LEFT;
 				}
 			}
+			
+			int[] temp = prevI;
+			prevI = currI;
+			currI = temp;
+			temp = prevM;
+			prevM = currM;
+			currM = temp;
 		}
 		
-//		dumpMatrix(seq1, seq2, matrix, bt);
-	}
-	
-	String intString(int[] i) {
-		return String.format("%d,%d,%d", i[0],i[1],i[2]);
-	}
-	
-	String byteString(byte[] i) {
-		return String.format("%d,%d,%d", i[0],i[1],i[2]);
-	}
-	
-	private void dumpMatrix(String seq1, String seq2, int matrix[][][], byte bt[][][]) {
-		
-		StringBuffer line = new StringBuffer();
-		line.append("\t\t");
-		for (int i=0; i<seq2.length(); i++) {
-			line.append(seq2.charAt(i));
-			line.append('\t');
-		}
-		System.out.println(line);
-		
-		for(int r=0; r<matrix.length; r++) {
-			line = new StringBuffer();
-			if (r > 0) {
-				line.append(seq1.charAt(r-1));
-			}
-			line.append('\t');
-			for (int c=0; c<matrix[0].length; c++) {
-				line.append(intString(matrix[r][c]));
-				line.append(':');
-				line.append(byteString(bt[r][c]));
-				
-				line.append('\t');
-			}
-			System.out.println(line);
-		}
+		// Last row
+		buffers.lastM = prevM;
 	}
 	
 	private Element updateCurrElem(char op, Element currElem, List<Element> elems) {
@@ -164,26 +167,32 @@ public class SemiGlobalAligner {
 		return currElem;
 	}
 	
-	private Result backtrack(int matrix[][][], byte[][][] bt, String seq1, String seq2) {
-//		dumpMatrix(matrix);
-		// Find best score in last row (end of seq1)
+	// Find best score in last row (end of seq1)
+	private Result bestInLastRow(Buffers buffers, String seq2, int refIdx, String cigar) {
+		int[] lastRow = buffers.lastM;
 		int bestIdx = -1;
 		int bestScore = -300000000;
 		int secondBestScore = -300000000;
-		int row = seq1.length();
 		
 		for (int c=1; c<=seq2.length(); c++) {
-			if (matrix[row][c][M] > bestScore) {
+			if (lastRow[c] > bestScore) {
 				bestIdx = c;
-				bestScore = matrix[row][c][M];
-			} else if (matrix[row][c][M] > secondBestScore) {
-				secondBestScore = matrix[row][c][M]; 
+				bestScore = lastRow[c];
+			} else if (lastRow[c] > secondBestScore) {
+				secondBestScore = lastRow[c]; 
 			}
 		}
 		
+		return new Result(bestScore, secondBestScore, refIdx, bestIdx, cigar);
+	}
+	
+	private Result backtrack(Buffers buffers, String seq1, String seq2) {
+		Result best = bestInLastRow(buffers, seq2, -1, null);
+		byte[] bt = buffers.bt;
+		int cols = seq2.length() + 1;
+		
 		int r = seq1.length();
-		int c = bestIdx;
-		int refEndIdx = c;
+		int c = best.endPosition;
 		
 		List<Element> elems = new ArrayList<Element>();
 		Element currElem = new Element('0', 0);
@@ -192,9 +201,7 @@ public class SemiGlobalAligner {
 		
 //		while (r > 0 && c > 0) {
 		while (r > 0) {
-			byte currBt = bt[r][c][level];
-			
-//			System.out.println(String.format("bt -- r:%d c:%d bt: %d level: %d, score: %d", r,c,currBt,level,matrix[r][c][level]));
+			byte currBt = bt[(r*cols + c)*3 + level];
 
 			if (currBt == DIR_DIAG) {
 				if (level == M) {
@@ -247,13 +254,44 @@ public class SemiGlobalAligner {
 			cigar.append(elem.operator);
 		}
 		
-		return new Result(bestScore, secondBestScore, refIdx, refEndIdx, cigar.toString());
+		best.position = refIdx;
+		best.cigar = cigar.toString();
+		return best;
 	}
 	
 	int max(int s1, int s2, int s3) {
 		return Math.max(Math.max(s1, s2), s3);
 	}
 	
+	static class Buffers {
+		int[] prevI = new int[0];
+		int[] prevM = new int[0];
+		int[] currI = new int[0];
+		int[] currM = new int[0];
+		byte[] bt = new byte[0];
+		int[] lastM;
+		
+		void ensureCapacity(int seq1Len, int seq2Len, boolean isTraceback) {
+			int cols = seq2Len + 1;
+			if (prevI.length < cols) {
+				prevI = new int[cols];
+				prevM = new int[cols];
+				currI = new int[cols];
+				currM = new int[cols];
+			}
+			
+			if (isTraceback) {
+				long size = ((long) seq1Len + 1) * cols * 3;
+				if (size > Integer.MAX_VALUE) {
+					throw new IllegalArgumentException("Sequences too long to align: " + seq1Len + ", " + seq2Len);
+				}
+				if (bt.length < size) {
+					bt = new byte[(int) size];
+				}
+			}
+		}
+	}
+	
 	static class Result {
 		Result(int score, int secondBest, int position, int endPosition, String cigar) {
 			this.score = score;
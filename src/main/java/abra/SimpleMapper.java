@@ -1,8 +1,8 @@
 package abra;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -14,7 +14,7 @@ public class SimpleMapper {
 	
 	//TODO: May need to change for short reads or decreased maxMismatchRate
 	//      Increasing when appropriate will speed things up.
-	private static final int KMER_SIZE = 10;
+	static final int KMER_SIZE = 10;
 	
 	static final int UNMAPPED = -1;
 	static final int HOMOLOGOUS_MAPPING = -2;
@@ -26,13 +26,53 @@ public class SimpleMapper {
 		UNSET, FORWARD, REVERSE;
 	}
 	
+	static final long EMPTY = -1;
+	
+	private static final int BASES_PER_WORD = 32;
+	private static final long LOW_BITS = 0x5555555555555555L;
+	private static final long KMER_MASK = (1L << (KMER_SIZE*2)) - 1;
+	
+	// Seed pairs are packed as key << OFFSET_BITS | kmer offset in read
+	static final int OFFSET_BITS = 20;
+	static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+	
+	// 2 bit base codes.  -1 for bases that cannot be packed
+	private static final byte[] BASE_CODES = new byte[256];
+	
+	static {
+		Arrays.fill(BASE_CODES, (byte) -1);
+		BASE_CODES['A'] = 0;
+		BASE_CODES['C'] = 1;
+		BASE_CODES['G'] = 2;
+		BASE_CODES['T'] = 3;
+	}
+	
+	// Per thread scratch space for map()
+	private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+	
 	// Represents a single contig
 	private String ref;
-	private ReverseComplementor rc = new ReverseComplementor();
 	private double maxMismatchRate;
 	
-	// kmer -> list of positions
-	private Map<String, List<Integer>> kmerPositions = new HashMap<String, List<Integer>>();
+	// Open addressing table of packed kmer -> range of kmerPositions
+	private long[] tableKmers;
+	private int[] tableStarts;
+	private int tableMask;
+	private int tableShift;
+	
+	// Kmer positions grouped by kmer in ascending order
+	private int[] kmerPositions;
+	
+	// kmer -> list of positions for kmers containing bases other than ACGT.  null if none.
+	private Map<String, List<Integer>> unpackedKmerPositions = null;
+	
+	// Contig bases for mismatch counting
+	private PackedBases packedRef = new PackedBases();
 	
 	public SimpleMapper(String ref) {
 		this(ref, .05);
@@ -41,146 +81,274 @@ public class SimpleMapper {
 	public SimpleMapper(String ref, double maxMismatchRate) {
 		this.ref = ref;
 		this.maxMismatchRate = maxMismatchRate;
+		packedRef.pack(ref, false);
+		
+		int numKmers = Math.max(ref.length()-KMER_SIZE, 0);
+		long[] kmers = new long[numKmers];
 		
-		for (int i=0; i<ref.length()-KMER_SIZE; i++) {
-			String kmer = ref.substring(i, i+KMER_SIZE);
-			if (!kmerPositions.containsKey(kmer)) {
-				kmerPositions.put(kmer, new ArrayList<Integer>());
+		int capacity = 2;
+		while (capacity < numKmers * 2) {
+			capacity *= 2;
+		}
+		tableKmers = new long[capacity];
+		Arrays.fill(tableKmers, EMPTY);
+		tableStarts = new int[capacity+1];
+		tableMask = capacity-1;
+		tableShift = 64 - Integer.numberOfTrailingZeros(capacity);
+		
+		// Count positions per kmer
+		int numPacked = 0;
+		for (int i=0; i<numKmers; i++) {
+			kmers[i] = getKmer(packedRef, i);
+			if (kmers[i] != EMPTY) {
+				tableStarts[insert(kmers[i])+1] += 1;
+				numPacked += 1;
+			} else {
+				if (unpackedKmerPositions == null) {
+					unpackedKmerPositions = new HashMap<String, List<Integer>>();
+				}
+				String kmer = ref.substring(i, i+KMER_SIZE);
+				if (!unpackedKmerPositions.containsKey(kmer)) {
+					unpackedKmerPositions.put(kmer, new ArrayList<Integer>());
+				}
+				unpackedKmerPositions.get(kmer).add(i);
+			}
+		}
+		
+		for (int slot=0; slot<capacity; slot++) {
+			tableStarts[slot+1] += tableStarts[slot];
+		}
+		
+		// Fill positions in ascending order
+		kmerPositions = new int[numPacked];
+		int[] filled = new int[capacity];
+		for (int i=0; i<numKmers; i++) {
+			if (kmers[i] != EMPTY) {
+				int slot = find(kmers[i]);
+				kmerPositions[tableStarts[slot] + filled[slot]++] = i;
 			}
-			kmerPositions.get(kmer).add(i);
 		}
 	}
 	
-	private Map<Integer, Integer> getPositionMismatches_old(String bases) {
-		// ref position -> # mismatches
-		Map<Integer, Integer> posMismatches = new HashMap<Integer, Integer>();
-		
-		// Evaluate all reference positions where read and ref share a kmer
-		for (int i=0; i<bases.length()-KMER_SIZE; i++) {
-			String kmer = bases.substring(i, i+KMER_SIZE);
-			
-			if (kmerPositions.containsKey(kmer)) {
-				for (int pos : kmerPositions.get(kmer)) {
-					int refStartPos = pos - i;
-					
-					// Compare strings only if this position has not already been evaluated
-					if (refStartPos >= 0 && !posMismatches.containsKey(refStartPos) && refStartPos <= ref.length() - bases.length()) {
-						int mismatches = countMismatches(refStartPos, bases);
-						posMismatches.put(refStartPos, mismatches);
-					}
-				}
+	private int hash(long kmer) {
+		return (int) ((kmer * 0x9E3779B97F4A7C15L) >>> tableShift);
+	}
+	
+	private int insert(long kmer) {
+		int slot = hash(kmer);
+		while (tableKmers[slot] != EMPTY && tableKmers[slot] != kmer) {
+			slot = (slot + 1) & tableMask;
+		}
+		tableKmers[slot] = kmer;
+		return slot;
+	}
+	
+	// Returns the table slot for kmer or -1 if not present
+	private int find(long kmer) {
+		int slot = hash(kmer);
+		while (tableKmers[slot] != EMPTY) {
+			if (tableKmers[slot] == kmer) {
+				return slot;
 			}
+			slot = (slot + 1) & tableMask;
 		}
-
-		return posMismatches;
+		return -1;
 	}
 	
-	private Map<Integer, Integer> getPositionMismatches(String bases) {
-		// ref position -> # mismatches
-		Map<Integer, Integer> posMismatches = new HashMap<Integer, Integer>();
-		
-		// pos in ref -> kmer idx
-		// i.e. For pos 100, kmers 0,2,3 (0,50,75 if KMER_SIZE=25) match
+	private static char complement(char base) {
+		switch (base) {
+			case 'A': return 'T';
+			case 'T': return 'A';
+			case 'C': return 'G';
+			case 'G': return 'C';
+			// Non-DNA bases are left as is
+			default: return base;
+		}
+	}
+	
+	// Returns the base at idx of bases or, if isReverse, of its reverse complement
+	static char baseAt(String bases, int idx, boolean isReverse) {
+		return isReverse ? complement(bases.charAt(bases.length()-1-idx)) : bases.charAt(idx);
+	}
+	
+	// Returns the 2 bit packed kmer at idx or EMPTY if it contains bases other than ACGT
+	static long getKmer(PackedBases packedBases, int idx) {
+		if (packedBases.hasExceptions && (packedBases.getWord(packedBases.exceptions, idx) & KMER_MASK) != 0) {
+			return EMPTY;
+		}
+		return packedBases.getWord(packedBases.codes, idx) & KMER_MASK;
+	}
+	
+	static String unpacked(String bases, int idx, boolean isReverse) {
+		char[] kmer = new char[KMER_SIZE];
+		for (int i=0; i<KMER_SIZE; i++) {
+			kmer[i] = baseAt(bases, idx+i, isReverse);
+		}
+		return new String(kmer);
+	}
+	
+	/**
+	 *  Populates scratch.positions and scratch.mismatches with the mismatch count at each reference
+	 *  position seeded by a matching kmer.  Returns the number of positions.
+	 */
+	private int getPositionMismatches(String bases, boolean isReverse, PackedBases packedBases, Scratch scratch) {
+		int length = bases.length();
 		
-		Map<Integer, List<Integer>> refPosKmers = new HashMap<Integer, List<Integer>>();
+		// Pairs of ref start position and kmer offset in read, packed as refStartPos << OFFSET_BITS | offset
+		int numPairs = 0;
 		
 		// Identify kmers in read that match reference
 		int i=0;
-		while (i<=bases.length()-KMER_SIZE) {		
-			String kmer = bases.substring(i, i+KMER_SIZE);
+		while (i<=length-KMER_SIZE) {
+			long kmer = getKmer(packedBases, i);
 			
-			if (kmerPositions.containsKey(kmer)) {
-				for (int pos : kmerPositions.get(kmer)) {
-					int refStartPos = pos - i;
-					if (refStartPos > 0 && refStartPos <= ref.length() - bases.length()) {
-						if (!refPosKmers.containsKey(refStartPos)) {
-							refPosKmers.put(refStartPos, new ArrayList<Integer>());
-						}
-						refPosKmers.get(refStartPos).add(i);
+			if (kmer != EMPTY) {
+				int slot = find(kmer);
+				if (slot >= 0) {
+					for (int p=tableStarts[slot]; p<tableStarts[slot+1]; p++) {
+						numPairs = addPair(scratch, numPairs, kmerPositions[p] - i, i, length);
+					}
+				}
+			} else if (unpackedKmerPositions != null) {
+				List<Integer> positions = unpackedKmerPositions.get(unpacked(bases, i, isReverse));
+				if (positions != null) {
+					for (int pos : positions) {
+						numPairs = addPair(scratch, numPairs, pos - i, i, length);
 					}
 				}
 			}
 			
 			// Skip to next kmer
-			if (i+KMER_SIZE <= bases.length()-KMER_SIZE) {
+			if (i+KMER_SIZE <= length-KMER_SIZE) {
 				i += KMER_SIZE;
-			} else if (i < bases.length()-KMER_SIZE){
+			} else if (i < length-KMER_SIZE){
 				// Last kmer may overlap previous kmer
-				i = bases.length()-KMER_SIZE;
+				i = length-KMER_SIZE;
 			} else {
 				// Done.
-				i = bases.length();
+				i = length;
 			}
 		}
 		
-		// Count mismatches in read.  Skip over matching kmers for speed.
-		for (int refStartPos : refPosKmers.keySet()) {
-			int mismatches = 0;
-			List<Integer> matchingKmers = refPosKmers.get(refStartPos);
-			Iterator<Integer> kmerIter = matchingKmers.iterator();
-			int currKmer = -1;
-			if (kmerIter.hasNext()) {
-				currKmer = kmerIter.next();
+		// Group matching kmers by ref start position, each in ascending order
+		Arrays.sort(scratch.pairs, 0, numPairs);
+		scratch.ensurePositions(numPairs);
+		
+		int numPositions = 0;
+		int start = 0;
+		while (start < numPairs) {
+			long key = scratch.pairs[start] >>> OFFSET_BITS;
+			int end = start + 1;
+			while (end < numPairs && (scratch.pairs[end] >>> OFFSET_BITS) == key) {
+				end += 1;
 			}
 			
-			i=0;
-			while (i<bases.length()) {
-				
-				if (i >= currKmer && i < currKmer+KMER_SIZE) {
-					if (kmerIter.hasNext()) {
-						currKmer = kmerIter.next();
-					}
-					
-					// Skip over the matching kmer
-					i += KMER_SIZE;
-				} else {
-					if (bases.charAt(i) != ref.charAt(refStartPos+i)) {
+			scratch.positions[numPositions] = (int) key;
+			scratch.mismatches[numPositions] = countMismatches(packedBases, bases, isReverse, (int) key);
+			numPositions += 1;
+			
+			start = end;
+		}
+		
+		return numPositions;
+	}
+	
+	/**
+	 *  Counts mismatches of bases against the contig at refStartPos, 32 bases at a time.  packedBases
+	 *  must hold bases in the given orientation.  Stops counting once the max mismatch rate is exceeded,
+	 *  returning the first count above the limit.
+	 */
+	int countMismatches(PackedBases packedBases, String bases, boolean isReverse, int refStartPos) {
+		int length = packedBases.length;
+		int limit = (int) Math.floor(length * maxMismatchRate) + 1;
+		boolean hasExceptions = packedBases.hasExceptions || packedRef.hasExceptions;
+		
+		int mismatches = 0;
+		int numWords = (length + BASES_PER_WORD - 1) / BASES_PER_WORD;
+		for (int word=0; word<numWords; word++) {
+			int pos = refStartPos + word*BASES_PER_WORD;
+			
+			// One bit per differing base
+			long diff = packedBases.codes[word] ^ packedRef.getWord(packedRef.codes, pos);
+			diff = (diff | (diff >>> 1)) & LOW_BITS;
+			
+			int remaining = length - word*BASES_PER_WORD;
+			long tailMask = remaining < BASES_PER_WORD ? (1L << (remaining*2)) - 1 : -1L;
+			diff &= tailMask;
+			
+			if (hasExceptions) {
+				// Bases other than ACGT are compared as is
+				long exceptions = (packedBases.exceptions[word] | packedRef.getWord(packedRef.exceptions, pos)) & tailMask;
+				diff &= ~exceptions;
+				while (exceptions != 0) {
+					int i = word*BASES_PER_WORD + Long.numberOfTrailingZeros(exceptions) / 2;
+					if (baseAt(bases, i, isReverse) != ref.charAt(refStartPos+i)) {
 						mismatches += 1;
-						if (mismatches > bases.length() * maxMismatchRate) {
-							break;
-						}
 					}
-					
-					i += 1;
+					exceptions &= exceptions - 1;
 				}
 			}
-
-			posMismatches.put(refStartPos, mismatches);
+			
+			mismatches += Long.bitCount(diff);
+			if (mismatches >= limit) {
+				return limit;
+			}
 		}
-
-		return posMismatches;
+		
+		return mismatches;
+	}
+	
+	private int addPair(Scratch scratch, int numPairs, int refStartPos, int offset, int length) {
+		if (refStartPos > 0 && refStartPos <= ref.length() - length) {
+			scratch.ensurePairs(numPairs+1);
+			scratch.pairs[numPairs++] = ((long) refStartPos << OFFSET_BITS) | offset;
+		}
+		return numPairs;
+	}
+	
+	// Returns true if the contig has kmers containing bases other than ACGT
+	boolean hasUnpackedKmers() {
+		return unpackedKmerPositions != null;
+	}
+	
+	// Returns positions of a kmer containing bases other than ACGT or null
+	List<Integer> getUnpackedKmerPositions(String kmer) {
+		return unpackedKmerPositions != null ? unpackedKmerPositions.get(kmer) : null;
+	}
+	
+	double getMaxMismatchRate() {
+		return maxMismatchRate;
+	}
+	
+	PackedBases getPackedRef() {
+		return packedRef;
 	}
-
 	
 	public SimpleMapperResult map(String read) {
 		
-		Map<Integer, Integer> forwardMismatches = getPositionMismatches(read);
-		Map<Integer, Integer> reverseMismatches = getPositionMismatches(rc.reverseComplement(read));
+		Scratch scratch = SCRATCH.get();
+		scratch.forward.pack(read, false);
+		scratch.reverse.pack(read, true);
 		
 		// Find position with fewest mismatches
 		int bestMismatches = read.length() + 1;
 		int bestPos = UNMAPPED;
 		Orientation bestOrientation = Orientation.UNSET;
 		
-		// Search for matches to contig in forward orientation
-		for (int pos : forwardMismatches.keySet()) {
-			if (forwardMismatches.get(pos) < bestMismatches) {
-				bestMismatches = forwardMismatches.get(pos);
-				bestPos = pos;
-				bestOrientation = Orientation.FORWARD;;
-			} else if (forwardMismatches.get(pos) == bestMismatches) {
-				bestPos = HOMOLOGOUS_MAPPING;
-			}
-		}
-		
-		// Search for matches to contig in reverse complement
-		for (int pos : reverseMismatches.keySet()) {
-			if (reverseMismatches.get(pos) < bestMismatches) {
-				bestMismatches = reverseMismatches.get(pos);
-				bestPos = pos;
-				bestOrientation = Orientation.REVERSE;
-			} else if (reverseMismatches.get(pos) == bestMismatches) {
-				bestPos = HOMOLOGOUS_MAPPING;
+		// Search for matches to contig in forward orientation, then in reverse complement
+		for (int o=0; o<2; o++) {
+			boolean isReverse = o == 1;
+			int numPositions = getPositionMismatches(read, isReverse, isReverse ? scratch.reverse : scratch.forward, scratch);
+			
+			for (int p=0; p<numPositions; p++) {
+				int mismatches = scratch.mismatches[p];
+				if (mismatches < bestMismatches) {
+					bestMismatches = mismatches;
+					bestPos = scratch.positions[p];
+					bestOrientation = isReverse ? Orientation.REVERSE : Orientation.FORWARD;
+				} else if (mismatches == bestMismatches) {
+					bestPos = HOMOLOGOUS_MAPPING;
+				}
 			}
 		}
 		
@@ -195,18 +363,81 @@ public class SimpleMapper {
 		return this.ref;
 	}
 	
-	private int countMismatches(int refPosition, String read) {
-		int mismatches = 0;
-		for (int i=0; i<read.length(); i++) {
-			if (read.charAt(i) != ref.charAt(refPosition+i)) {
-				mismatches += 1;
-				if (mismatches > read.length() * maxMismatchRate) {
-					break;
+	/**
+	 *  Bases packed 2 bits per base, 32 bases per word, with the first base in the low bits.
+	 *  Bases other than ACGT are packed as 0 and flagged as 01 in the same position of exceptions.
+	 */
+	static class PackedBases {
+		long[] codes = new long[0];
+		long[] exceptions = new long[0];
+		int length;
+		boolean hasExceptions;
+		
+		void pack(String bases, boolean isReverse) {
+			length = bases.length();
+			// Pad by a word so that getWord may read past the last base
+			int numWords = (length + BASES_PER_WORD - 1) / BASES_PER_WORD + 1;
+			if (codes.length < numWords) {
+				codes = new long[numWords];
+				exceptions = new long[numWords];
+			}
+			// Padding word
+			codes[numWords-1] = 0;
+			exceptions[numWords-1] = 0;
+			hasExceptions = false;
+			
+			for (int word=0; word*BASES_PER_WORD<length; word++) {
+				long wordCodes = 0;
+				long wordExceptions = 0;
+				int start = word*BASES_PER_WORD;
+				int end = Math.min(start+BASES_PER_WORD, length);
+				for (int i=start; i<end; i++) {
+					char base = bases.charAt(isReverse ? length-1-i : i);
+					int code = base < 256 ? BASE_CODES[base] : -1;
+					int shift = (i-start) * 2;
+					if (code >= 0) {
+						// Complement of the 2 bit code is 3 - code
+						wordCodes |= (long) (isReverse ? 3-code : code) << shift;
+					} else {
+						wordExceptions |= 1L << shift;
+					}
 				}
+				codes[word] = wordCodes;
+				exceptions[word] = wordExceptions;
+				hasExceptions |= wordExceptions != 0;
 			}
 		}
 		
-		return mismatches;
+		// Returns the 32 bases starting at pos from words
+		long getWord(long[] words, int pos) {
+			int word = pos / BASES_PER_WORD;
+			int shift = (pos % BASES_PER_WORD) * 2;
+			if (shift == 0) {
+				return words[word];
+			}
+			return (words[word] >>> shift) | (words[word+1] << (64 - shift));
+		}
+	}
+	
+	static class Scratch {
+		PackedBases forward = new PackedBases();
+		PackedBases reverse = new PackedBases();
+		long[] pairs = new long[64];
+		int[] positions = new int[64];
+		int[] mismatches = new int[64];
+		
+		void ensurePairs(int size) {
+			if (pairs.length < size) {
+				pairs = Arrays.copyOf(pairs, Math.max(size, pairs.length*2));
+			}
+		}
+		
+		void ensurePositions(int size) {
+			if (positions.length < size) {
+				positions = new int[Math.max(size, positions.length*2)];
+				mismatches = new int[positions.length];
+			}
+		}
 	}
 	
 	static class SimpleMapperResult {
@@ -0,0 +1,121 @@
+package abra;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded queue connecting two stages of a processing pipeline.  Producers block while the queue is full
+ * and consumers block while it is empty.  If any stage fails, the queue is aborted so that no stage
+ * waits indefinitely on the other side.
+ *
+ * Queue depth and time spent blocked are tracked.  A queue that is mostly full with producers waiting
+ * indicates that the consuming stage is the bottleneck.  A queue that is mostly empty with consumers
+ * waiting indicates that the producing stage is the bottleneck.
+ */
+public class StageQueue<T> {
+
+	private static final long POLL_MSECS = 100;
+
+	// End of stream marker
+	private static final Object END = new Object();
+
+	private String name;
+	private int capacity;
+	private BlockingQueue<Object> queue;
+	private volatile Throwable failure;
+
+	// Producer side metrics
+	private long puts;
+	private long depthSum;
+	private int maxDepth;
+	private long putWaitNanos;
+
+	// Consumer side metrics
+	private long takeWaitNanos;
+
+	public StageQueue(String name, int capacity) {
+		this.name = name;
+		this.capacity = capacity;
+		this.queue = new ArrayBlockingQueue<Object>(capacity);
+	}
+
+	public void put(T item) throws InterruptedException {
+		putObject(item);
+	}
+
+	/**
+	 * Signals that no more items will be added.
+	 */
+	public void close() throws InterruptedException {
+		putObject(END);
+	}
+
+	/**
+	 * Returns the next item, or null if the queue has been closed and drained.
+	 */
+	@SuppressWarnings("unchecked")
+	public T take() throws InterruptedException {
+		Object item = queue.poll();
+
+		if (item == null) {
+			long start = System.nanoTime();
+			while (item == null) {
+				checkFailure();
+				item = queue.poll(POLL_MSECS, TimeUnit.MILLISECONDS);
+			}
+			takeWaitNanos += System.nanoTime() - start;
+		}
+
+		if (item == END) {
+			// Leave the marker in place for any subsequent take
+			queue.offer(END);
+			return null;
+		}
+
+		return (T) item;
+	}
+
+	/**
+	 * Fails all stages currently blocked on this queue.
+	 */
+	public void abort(Throwable t) {
+		if (failure == null) {
+			failure = t;
+		}
+	}
+
+	private void putObject(Object item) throws InterruptedException {
+		int depth = queue.size();
+		puts += 1;
+		depthSum += depth;
+		if (depth > maxDepth) {
+			maxDepth = depth;
+		}
+
+		if (!queue.offer(item)) {
+			long start = System.nanoTime();
+			checkFailure();
+			while (!queue.offer(item, POLL_MSECS, TimeUnit.MILLISECONDS)) {
+				checkFailure();
+			}
+			putWaitNanos += System.nanoTime() - start;
+		}
+	}
+
+	private void checkFailure() {
+		if (failure != null) {
+			throw new RuntimeException("Pipeline stage failure.  Aborting queue: " + name, failure);
+		}
+	}
+
+	/**
+	 * Returns name, average depth, max depth, capacity, msecs producers spent blocked on a full queue
+	 * and msecs consumers spent blocked on an empty queue.
+	 */
+	public String getMetrics() {
+		double avgDepth = puts > 0 ? (double) depthSum / (double) puts : 0;
+		return String.format("%s:%.1f/%d/%d:%d:%d", name, avgDepth, maxDepth, capacity,
+				putWaitNanos / 1000000, takeWaitNanos / 1000000);
+	}
+}
@@ -1,67 +1,177 @@
 package abra;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Manages threading
- * 
+ *
+ * Submission blocks while MAX_PENDING tasks are queued or running.  The first task
+ * failure cancels all outstanding tasks and is rethrown from waitForAllThreadsToComplete.
+ *
  * @author Lisle E. Mose (lmose at unc dot edu)
  */
 public class ThreadManager {
-	
+
 	private static final int MAX_PENDING = 100;
-	
+
+	// Interval between status messages while waiting for completion
+	private static final long STATUS_MSECS = 300000;
+
+	// Interval for blocked submitters to check for failures
+	private static final long SUBMIT_POLL_MSECS = 1000;
+
 	private int numThreads;
-	private List<AbraRunnable> threads = new ArrayList<AbraRunnable>();
 	private ExecutorService executor;
+	private Semaphore pendingPermits = new Semaphore(MAX_PENDING);
+
+	// Guards pending count and failure for waiting threads
+	private final Object lock = new Object();
+	private int pending = 0;
+	private volatile Throwable failure;
+
+	private AtomicInteger active = new AtomicInteger();
+	private AtomicLong completed = new AtomicLong();
 
 	public ThreadManager(int numThreads) {
 		this.numThreads = numThreads;
 		executor = Executors.newFixedThreadPool(numThreads);
 	}
-	
-	public void spawnThread(AbraRunnable runnable) {
-		
+
+	/**
+	 * Submits the runnable for execution, blocking if too many tasks are pending.
+	 * The returned future completes when the task does.
+	 */
+	public Future<Void> spawnThread(final AbraRunnable runnable) {
+
 		try {
-			waitForAvailableThread();
-		} catch (InterruptedException e) {}
-		
-		addThread(runnable);
-		
-		executor.submit(runnable);
-	}
-	
-	private synchronized void addThread(AbraRunnable thread) {
-		threads.add(thread);
+			while (!pendingPermits.tryAcquire(SUBMIT_POLL_MSECS, TimeUnit.MILLISECONDS)) {
+				checkFailure();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting to submit task", e);
+		}
+
+		checkFailure();
+
+		synchronized (lock) {
+			pending += 1;
+		}
+
+		try {
+			return executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					active.incrementAndGet();
+					try {
+						runnable.go();
+					} catch (Exception e) {
+						fail(e);
+						throw e;
+					} catch (Error e) {
+						fail(e);
+						throw e;
+					} finally {
+						active.decrementAndGet();
+						completed.incrementAndGet();
+						taskDone();
+					}
+
+					return null;
+				}
+			});
+		} catch (RuntimeException e) {
+			// Executor rejected the task, most likely due to a prior failure
+			taskDone();
+			checkFailure();
+			throw e;
+		}
 	}
-	
-	public synchronized void removeThread(AbraRunnable thread) {
-		threads.remove(thread);
+
+	private void taskDone() {
+		pendingPermits.release();
+		synchronized (lock) {
+			pending -= 1;
+			lock.notifyAll();
+		}
 	}
-	
-	private synchronized int activeThreads() {
-		return threads.size();
+
+	private void fail(Throwable t) {
+		synchronized (lock) {
+			if (failure == null) {
+				failure = t;
+				Logger.error("Thread failure: " + t);
+				t.printStackTrace();
+
+				// Cancel queued tasks and interrupt running tasks
+				List<Runnable> cancelled = executor.shutdownNow();
+				for (Runnable task : cancelled) {
+					((Future<?>) task).cancel(false);
+				}
+				pending -= cancelled.size();
+				pendingPermits.release(cancelled.size());
+			}
+			lock.notifyAll();
+		}
 	}
-	
-	private void waitForAvailableThread() throws InterruptedException {
-		while (activeThreads() >= MAX_PENDING) {
-			Thread.sleep(50);
+
+	private void checkFailure() {
+		if (failure != null) {
+			throw new RuntimeException("Aborting due to thread failure", failure);
 		}
 	}
-	
+
+	/**
+	 * Waits for all submitted tasks to complete.  Returns early and rethrows the first task failure if any.
+	 */
 	public void waitForAllThreadsToComplete() throws InterruptedException, IOException {
 		executor.shutdown();
-		while (!executor.awaitTermination(300, TimeUnit.SECONDS)) {
-			Runtime runtime = Runtime.getRuntime(); 
-			
-			Logger.info("Waiting on %d queued threads.\tmax_mem\t%d\ttotal_mem\t%d\tfree_mem\t%d", threads.size(),
-					runtime.maxMemory()/1024, runtime.totalMemory()/1024, runtime.freeMemory()/1024);
+
+		synchronized (lock) {
+			long lastStatus = System.currentTimeMillis();
+			while (pending > 0 && failure == null) {
+				lock.wait(STATUS_MSECS);
+
+				if (System.currentTimeMillis() - lastStatus >= STATUS_MSECS && pending > 0 && failure == null) {
+					Runtime runtime = Runtime.getRuntime();
+
+					Logger.info("Waiting on %d queued threads.\tactive\t%d\tcompleted\t%d\tmax_mem\t%d\ttotal_mem\t%d\tfree_mem\t%d",
+							getQueueLength(), getActiveCount(), getCompletedCount(),
+							runtime.maxMemory()/1024, runtime.totalMemory()/1024, runtime.freeMemory()/1024);
+					lastStatus = System.currentTimeMillis();
+				}
+			}
 		}
+
+		checkFailure();
+
+		executor.awaitTermination(STATUS_MSECS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Number of submitted tasks that have not yet started.
+	 */
+	public int getQueueLength() {
+		synchronized (lock) {
+			return Math.max(pending - active.get(), 0);
+		}
+	}
+
+	public int getActiveCount() {
+		return active.get();
+	}
+
+	public long getCompletedCount() {
+		return completed.get();
 	}
 
 	public int getNumThreads() {
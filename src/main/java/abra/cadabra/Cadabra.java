@@ -26,7 +26,11 @@ public class Cadabra {
 	
 	public void call(CadabraOptions options) throws IOException, InterruptedException {
 		c2r = new CompareToReference2();
-		c2r.init(options.getReference());
+		if (options.isLazyReference()) {
+			c2r.initLazy(options.getReference());
+		} else {
+			c2r.init(options.getReference());
+		}
 		
 		outputHeader(options);
 		
@@ -24,6 +24,7 @@ public class CadabraOptions extends Options {
 	private static final String MIN_VAF = "mf";
 	private static final String PCR_PENALTY = "pen";
 	private static final String ODDS_RATIO = "oddsr";
+	private static final String LAZY_REFERENCE = "lazy-ref";
 
 
 	private OptionParser parser;
@@ -44,6 +45,7 @@ public class CadabraOptions extends Options {
 	private float minMapq;
 	private float minVaf;
 	private float oddsr;
+	private boolean isLazyReference;
 	
 	@Override
 	protected OptionParser getOptionParser() {
@@ -65,6 +67,7 @@ public class CadabraOptions extends Options {
             parser.accepts(MIN_MAPQ, "Reads with mapping quality below specified value are excluded from processing (except unmapped reads)").withRequiredArg().ofType(Integer.class).defaultsTo(20);
             parser.accepts(MIN_VAF, "Do not output variants with frequency below specified value").withRequiredArg().ofType(Float.class).defaultsTo(0.0f);
 			parser.accepts(ODDS_RATIO, "Filter variants with odds ratio below specified value").withRequiredArg().ofType(Float.class).defaultsTo(5.0f);
+            parser.accepts(LAZY_REFERENCE, "Load reference chromosomes on demand using the fasta index (.fai) and release them once processed");
     	}
     	
     	return parser;
@@ -89,6 +92,7 @@ public class CadabraOptions extends Options {
 		this.minVaf = (Float) getOptions().valueOf(MIN_VAF);
 		this.pcrPenalty = (Integer) getOptions().valueOf(PCR_PENALTY);
 		this.oddsr = (Float) getOptions().valueOf(ODDS_RATIO);
+		this.isLazyReference = getOptions().has(LAZY_REFERENCE);
 	}
 
 	@Override
@@ -168,4 +172,8 @@ public class CadabraOptions extends Options {
 	}
 
 	public float getOddsRatio() { return oddsr; }
+	
+	public boolean isLazyReference() {
+		return isLazyReference;
+	}
 }
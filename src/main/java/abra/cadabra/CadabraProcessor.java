@@ -55,6 +55,9 @@ public class CadabraProcessor {
 		}
 		
 		tumor.close();
+		
+		// Chromosome is processed in its entirety by a single thread
+		c2r.release(region.getSeqname());
 	}
 		
 	private void processSimple() {
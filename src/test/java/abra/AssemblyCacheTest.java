@@ -0,0 +1,65 @@
+package abra;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class AssemblyCacheTest {
+
+	private ByteBuffer reads(String str) {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(64);
+		buffer.put(str.getBytes());
+		return buffer;
+	}
+
+	@Test (groups = "unit")
+	public void testKey() {
+		byte[] digest1 = AssemblyCache.digest(reads("\u00010ACGT!!!!"), 10);
+		byte[] digest2 = AssemblyCache.digest(reads("\u00010ACGA!!!!"), 10);
+
+		Assert.assertEquals(AssemblyCache.key(digest1, "chr1:100-200", 31, 2), AssemblyCache.key(digest1, "chr1:100-200", 31, 2));
+		Assert.assertNotEquals(AssemblyCache.key(digest1, "chr1:100-200", 31, 2), AssemblyCache.key(digest2, "chr1:100-200", 31, 2));
+		Assert.assertNotEquals(AssemblyCache.key(digest1, "chr1:100-200", 31, 2), AssemblyCache.key(digest1, "chr1:100-200", 31, 1));
+		Assert.assertNotEquals(AssemblyCache.key(digest1, "chr1:100-200", 31, 2), AssemblyCache.key(digest1, "chr1:100-201", 31, 2));
+	}
+
+	@Test (groups = "unit")
+	public void testDigestIgnoresBytesBeyondLength() {
+		ByteBuffer buffer = reads("\u00010ACGT!!!!");
+		byte[] digest = AssemblyCache.digest(buffer, 10);
+		buffer.put((byte) 'X');
+
+		Assert.assertEquals(AssemblyCache.digest(buffer, 10), digest);
+		Assert.assertEquals(buffer.position(), 11);
+	}
+
+	@Test (groups = "unit")
+	public void testPutAndGet() throws IOException {
+		File dir = Files.createTempDirectory("abra_assembly_cache").toFile();
+		try {
+			AssemblyCache cache = new AssemblyCache(dir.getPath());
+			String key = AssemblyCache.key(new byte[] { 1, 2, 3 }, "chr1:100-200");
+
+			Assert.assertNull(cache.get(key));
+
+			byte[] value = new byte[] { 0, 0, 0, 0, 0, 0, 0, 0 };
+			cache.put(key, value);
+			Assert.assertEquals(cache.get(key), value);
+
+			// Reopened cache sees prior entries
+			Assert.assertEquals(new AssemblyCache(dir.getPath()).get(key), value);
+		} finally {
+			for (File sub : dir.listFiles()) {
+				for (File file : sub.listFiles()) {
+					file.delete();
+				}
+				sub.delete();
+			}
+			dir.delete();
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package abra;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class AssemblyResultTest {
+
+	private void putContig(ByteBuffer buf, double score, int numNodes, int minFreq, String seq) {
+		buf.putDouble(score);
+		buf.putInt(numNodes);
+		buf.putInt(minFreq);
+		buf.putInt(seq.length());
+		buf.put(seq.getBytes());
+	}
+
+	@Test (groups = "unit")
+	public void testDecode() {
+		ByteBuffer buf = ByteBuffer.allocate(1024).order(ByteOrder.nativeOrder());
+		buf.putInt(AssemblyResult.OK);
+		buf.putInt(2);
+		putContig(buf, -0.5, 12, 3, "ACGTACGT");
+		putContig(buf, -1.25, 40, 7, "TTTTGGGGCCCC");
+
+		byte[] bytes = new byte[buf.position()];
+		buf.flip();
+		buf.get(bytes);
+
+		AssemblyResult result = AssemblyResult.decode(bytes);
+		Assert.assertTrue(result.isOk());
+		Assert.assertFalse(result.isRepeat());
+		Assert.assertEquals(result.getContigs().size(), 2);
+
+		ScoredContig contig = result.getContigs().get(1);
+		Assert.assertEquals(contig.getScore(), -1.25);
+		Assert.assertEquals(contig.getContig(), "TTTTGGGGCCCC");
+		Assert.assertEquals(contig.getNumNodes(), 40);
+		Assert.assertEquals(contig.getMinKmerFrequency(), 7);
+
+		Assert.assertEquals(result.toFasta("chr1_100_500"),
+				">chr1_100_500_0_-0.500000\nACGTACGT\n>chr1_100_500_1_-1.250000\nTTTTGGGGCCCC\n");
+	}
+
+	@Test (groups = "unit")
+	public void testDecodeRepeat() {
+		ByteBuffer buf = ByteBuffer.allocate(8).order(ByteOrder.nativeOrder());
+		buf.putInt(AssemblyResult.STOPPED_ON_REPEAT);
+		buf.putInt(0);
+
+		AssemblyResult result = AssemblyResult.decode(buf.array());
+		Assert.assertTrue(result.isRepeat());
+		Assert.assertFalse(result.isOk());
+		Assert.assertTrue(result.getContigs().isEmpty());
+	}
+}
@@ -0,0 +1,99 @@
+package abra;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class ChromosomeChunkerTest {
+	
+	private CompareToReference2 getReference(String seq) throws Exception {
+		return getReference(seq, false);
+	}
+	
+	private CompareToReference2 getReference(String seq, boolean isLazy) throws Exception {
+		File fasta = File.createTempFile("chunker_test", ".fa");
+		fasta.deleteOnExit();
+		
+		FileWriter writer = new FileWriter(fasta);
+		writer.write(">chr1\n");
+		writer.write(seq + "\n");
+		writer.close();
+		
+		CompareToReference2 c2r = new CompareToReference2();
+		if (isLazy) {
+			File fai = new File(fasta.getPath() + ".fai");
+			fai.deleteOnExit();
+			writer = new FileWriter(fai);
+			writer.write("chr1\t" + seq.length() + "\t6\t" + seq.length() + "\t" + (seq.length()+1) + "\n");
+			writer.close();
+			
+			c2r.initLazy(fasta.getPath());
+		} else {
+			c2r.initFasta(fasta.getPath());
+		}
+		
+		return c2r;
+	}
+	
+	private String repeat(char ch, int count) {
+		StringBuffer buf = new StringBuffer();
+		for (int i=0; i<count; i++) {
+			buf.append(ch);
+		}
+		return buf.toString();
+	}
+
+	@Test (groups = "unit")
+	public void testSplitAtGap() throws Exception {
+		CompareToReference2 c2r = getReference(repeat('A', 34) + repeat('N', 20) + repeat('C', 46));
+		
+		ChromosomeChunker chunker = new ChromosomeChunker(c2r, 40, 10, 10);
+		chunker.init();
+		
+		List<Feature> chunks = chunker.getChunks();
+		Assert.assertEquals(chunks.size(), 3);
+		Assert.assertEquals(chunks.get(0), new Feature("chr1", 1, 44));
+		Assert.assertEquals(chunks.get(1), new Feature("chr1", 45, 90));
+		Assert.assertEquals(chunks.get(2), new Feature("chr1", 91, 100));
+		Assert.assertEquals(chunker.getChunkGroups().get("chr1").size(), 3);
+	}
+	
+	@Test (groups = "unit")
+	public void testSplitAtGapLazy() throws Exception {
+		// Gaps are found without loading the chromosome
+		CompareToReference2 c2r = getReference(repeat('A', 34) + repeat('N', 20) + repeat('C', 46), true);
+		
+		ChromosomeChunker chunker = new ChromosomeChunker(c2r, 40, 10, 10);
+		chunker.init();
+		
+		List<Feature> chunks = chunker.getChunks();
+		Assert.assertEquals(chunks.size(), 3);
+		Assert.assertEquals(chunks.get(0), new Feature("chr1", 1, 44));
+		Assert.assertEquals(chunks.get(1), new Feature("chr1", 45, 90));
+		Assert.assertEquals(chunks.get(2), new Feature("chr1", 91, 100));
+	}
+	
+	@Test (groups = "unit")
+	public void testTargetDensity() throws Exception {
+		CompareToReference2 c2r = getReference(repeat('A', 100));
+		
+		ChromosomeChunker chunker = new ChromosomeChunker(c2r, 50, 10, 10);
+		chunker.init();
+		Assert.assertEquals(chunker.getChunks().size(), 2);
+		Assert.assertEquals(chunker.getChunks().get(0), new Feature("chr1", 1, 50));
+		
+		// All targets within the first 20 bases
+		List<Feature> regions = new ArrayList<Feature>();
+		regions.add(new Feature("chr1", 1, 10));
+		regions.add(new Feature("chr1", 11, 20));
+		
+		chunker.init(regions, null);
+		Assert.assertEquals(chunker.getChunks().size(), 2);
+		Assert.assertEquals(chunker.getChunks().get(0), new Feature("chr1", 1, 20));
+		Assert.assertEquals(chunker.getChunks().get(1), new Feature("chr1", 21, 100));
+	}
+}
@@ -0,0 +1,248 @@
+package abra;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.TextCigarCodec;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class CompareToReference2Test {
+	
+	private File writeFasta() throws IOException {
+		File fasta = File.createTempFile("c2r_test", ".fa");
+		fasta.deleteOnExit();
+		
+		FileWriter writer = new FileWriter(fasta);
+		writer.write(">chr1 test\n");
+		writer.write("NNNNACGTACGTTTGCA\n");
+		writer.write("ccgtaNNNNNNNATCGA\n");
+		writer.write(">chr2\n");
+		writer.write("GATTACAGATTACAN\n");
+		writer.close();
+		
+		return fasta;
+	}
+
+	@Test (groups = "unit")
+	public void testUndefinedRegions() throws Exception {
+		File fasta = writeFasta();
+		
+		CompareToReference2 c2r = new CompareToReference2();
+		c2r.initFasta(fasta.getPath());
+		
+		List<Feature> chr1 = c2r.getUndefinedRegions().get("chr1");
+		Assert.assertEquals(chr1.size(), 2);
+		Assert.assertEquals(chr1.get(0).getStart(), 1);
+		Assert.assertEquals(chr1.get(0).getEnd(), 4);
+		Assert.assertEquals(chr1.get(1).getStart(), 23);
+		Assert.assertEquals(chr1.get(1).getEnd(), 29);
+		
+		List<Feature> chr2 = c2r.getUndefinedRegions().get("chr2");
+		Assert.assertEquals(chr2.size(), 1);
+		Assert.assertEquals(chr2.get(0).getStart(), 15);
+		Assert.assertEquals(chr2.get(0).getEnd(), 15);
+	}
+	
+	@Test (groups = "unit")
+	public void testMappedIndex() throws Exception {
+		File fasta = writeFasta();
+		File index = new File(fasta.getPath() + CompareToReference2.INDEX_SUFFIX);
+		index.deleteOnExit();
+		
+		CompareToReference2 fromFasta = new CompareToReference2();
+		fromFasta.initFasta(fasta.getPath());
+		fromFasta.writeIndex(index.getPath());
+		
+		CompareToReference2 fromIndex = new CompareToReference2();
+		fromIndex.init(fasta.getPath());
+		
+		Assert.assertEquals(fromIndex.getChromosomes(), fromFasta.getChromosomes());
+		
+		for (String chromosome : fromFasta.getChromosomes()) {
+			int length = fromFasta.getChromosomeLength(chromosome);
+			Assert.assertEquals(fromIndex.getChromosomeLength(chromosome), length);
+			Assert.assertEquals(fromIndex.getReferenceLength(chromosome), fromFasta.getReferenceLength(chromosome));
+			Assert.assertEquals(fromIndex.getSequence(chromosome, 1, length), fromFasta.getSequence(chromosome, 1, length));
+			Assert.assertEquals(fromIndex.getUndefinedRegions().get(chromosome).size(), fromFasta.getUndefinedRegions().get(chromosome).size());
+		}
+		
+		Assert.assertEquals(fromIndex.getSequence("chr1", 5, 13), "ACGTACGTTTGCA");
+		Assert.assertEquals(fromIndex.getSequence("chr2", 3, 5), "TTACA");
+	}
+	
+	@Test (groups = "unit")
+	public void testLazyLoad() throws Exception {
+		File fasta = writeFasta();
+		File fai = new File(fasta.getPath() + ".fai");
+		fai.deleteOnExit();
+		
+		FileWriter writer = new FileWriter(fai);
+		writer.write("chr1\t34\t11\t17\t18\n");
+		writer.write("chr2\t15\t53\t15\t16\n");
+		writer.close();
+		
+		CompareToReference2 c2r = new CompareToReference2();
+		c2r.initLazy(fasta.getPath());
+		
+		Assert.assertEquals(c2r.getChromosomes().size(), 2);
+		Assert.assertEquals(c2r.getChromosomeLength("chr1"), 34);
+		Assert.assertTrue(c2r.containsChromosome("chr2"));
+		Assert.assertNull(c2r.getUndefinedRegions().get("chr1"));
+		
+		// Scanned without loading
+		Assert.assertEquals(c2r.getUndefinedRegions("chr2").size(), 1);
+		Assert.assertEquals(c2r.getUndefinedRegions("chr1").size(), 2);
+		
+		Assert.assertEquals(c2r.getSequence("chr1", 5, 18), "ACGTACGTTTGCACCGTA");
+		Assert.assertEquals(c2r.getSequence("chr1", 30, 5), "ATCGA");
+		Assert.assertEquals(c2r.getSequence("chr2", 1, 14), "GATTACAGATTACA");
+		
+		List<Feature> chr1 = c2r.getUndefinedRegions().get("chr1");
+		Assert.assertEquals(chr1.size(), 2);
+		Assert.assertEquals(chr1.get(1).getStart(), 23);
+		Assert.assertEquals(chr1.get(1).getEnd(), 29);
+		
+		String seq = c2r.getSequence("chr1", 1, 34);
+		c2r.release("chr1");
+		Assert.assertEquals(c2r.getSequence("chr1", 1, 34), seq);
+	}
+	
+	@Test (groups = "unit")
+	public void testLoadModesStoreSameBases() throws Exception {
+		File fasta = writeFasta();
+		File fai = new File(fasta.getPath() + ".fai");
+		fai.deleteOnExit();
+		File index = new File(fasta.getPath() + CompareToReference2.INDEX_SUFFIX);
+		index.deleteOnExit();
+		
+		FileWriter writer = new FileWriter(fai);
+		writer.write("chr1\t34\t11\t17\t18\n");
+		writer.write("chr2\t15\t53\t15\t16\n");
+		writer.close();
+		
+		CompareToReference2 fromFasta = new CompareToReference2();
+		fromFasta.initFasta(fasta.getPath());
+		fromFasta.writeIndex(index.getPath());
+		
+		CompareToReference2 fromIndex = new CompareToReference2();
+		fromIndex.init(fasta.getPath());
+		
+		// Load chr2 first, so that N's must not depend upon load order
+		index.delete();
+		CompareToReference2 lazy = new CompareToReference2();
+		lazy.initLazy(fasta.getPath());
+		String chr2 = lazy.getSequence("chr2", 1, 15);
+		String chr1 = lazy.getSequence("chr1", 1, 34);
+		
+		Assert.assertEquals(chr1, fromFasta.getSequence("chr1", 1, 34));
+		Assert.assertEquals(chr2, fromFasta.getSequence("chr2", 1, 15));
+		Assert.assertEquals(fromIndex.getSequence("chr2", 1, 15), chr2);
+		
+		// N's are drawn from a single stream across the fasta.  chr1 contains 11 N's.
+		Random random = new Random(1);
+		for (int i=0; i<11; i++) {
+			random.nextDouble();
+		}
+		double rand = random.nextDouble();
+		char base = rand < .25 ? 'A' : (rand < .5 ? 'T' : (rand < .75 ? 'C' : 'G'));
+		Assert.assertEquals(chr2.charAt(14), base);
+	}
+	
+	@Test (groups = "unit")
+	public void testSkipRandom() {
+		Random random = new Random(1);
+		for (int i=0; i<1000; i++) {
+			random.nextDouble();
+		}
+		
+		Random skipped = CompareToReference2.skipRandom(1, 2000);
+		for (int i=0; i<10; i++) {
+			Assert.assertEquals(skipped.nextDouble(), random.nextDouble());
+		}
+		
+		Assert.assertEquals(CompareToReference2.skipRandom(1, 0).nextInt(), new Random(1).nextInt());
+	}
+	
+	private SAMRecord getRead(String chromosome, int pos, String cigar, String bases, byte[] quals) {
+		SAMRecord read = new SAMRecord(null);
+		read.setReadName("TEST1");
+		read.setReferenceName(chromosome);
+		read.setAlignmentStart(pos);
+		read.setCigarString(cigar);
+		read.setReadString(bases);
+		read.setBaseQualities(quals);
+		return read;
+	}
+	
+	@Test (groups = "unit")
+	public void testNumMismatches() throws Exception {
+		Random random = new Random(1);
+		String bases = "ATCG";
+		
+		StringBuffer refBuf = new StringBuffer();
+		for (int i=0; i<301; i++) {
+			refBuf.append(bases.charAt(random.nextInt(4)));
+		}
+		String ref = refBuf.toString();
+		
+		CompareToReference2 c2r = new CompareToReference2();
+		c2r.initLocal("chr1", ref);
+		
+		for (int pos=1; pos<=ref.length()-100; pos+=7) {
+			for (int readLen : new int[] { 1, 31, 32, 33, 64, 100 }) {
+				char[] read = ref.substring(pos-1, pos-1+readLen).toCharArray();
+				byte[] quals = new byte[readLen];
+				int expected = 0;
+				int expectedHq = 0;
+				for (int i=0; i<readLen; i++) {
+					quals[i] = (byte) random.nextInt(40);
+					if (random.nextInt(5) == 0) {
+						read[i] = random.nextInt(4) == 0 ? 'N' : bases.charAt(random.nextInt(4));
+						if (read[i] != ref.charAt(pos-1+i)) {
+							expected++;
+							if (quals[i] >= 20) {
+								expectedHq++;
+							}
+						}
+					}
+				}
+				
+				SAMRecord samRecord = getRead("chr1", pos, readLen + "M", new String(read), quals);
+				Assert.assertEquals(c2r.numMismatches(samRecord), expected);
+				Assert.assertEquals(c2r.numHighQualityMismatches(samRecord, 20, true), expectedHq);
+			}
+		}
+	}
+	
+	@Test (groups = "unit")
+	public void testNumMismatchesWithIndelsAndSoftClips() throws Exception {
+		CompareToReference2 c2r = new CompareToReference2();
+		c2r.initLocal("chr1", "TCGAATCGATATATTTCCGGAACAGACTCAG");
+		
+		// Leading soft clip matches the reference, second clipped base does not
+		SAMRecord read = getRead("chr1", 7, "2S6M2D8M", "AGCGATATTTCCGGAA", new byte[16]);
+		Assert.assertEquals(c2r.numMismatches(read, true), 1);
+		Assert.assertEquals(c2r.numMismatches(read, false), 0);
+		
+		read = getRead("chr1", 7, "6M2I8M", "CGATATGGATTTCCGG", new byte[16]);
+		Assert.assertEquals(c2r.numMismatches(read), 0);
+	}
+	
+	@Test (groups = "unit")
+	public void testGetAlternateReference() throws Exception {
+		CompareToReference2 c2r = new CompareToReference2();
+		c2r.initLocal("chr1", "TCGAATCGATATATTTCCGGAACAGACTCAGTCGAATCGATATATTTCCGGAACAGACTCAG");
+		
+		// Reference bases are used for M and read bases for I
+		String alt = c2r.getAlternateReference(7, 55, "chr1", "CGATATTTAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAACC", TextCigarCodec.decode("6M2I38M2D2M"));
+		Assert.assertEquals(alt, "CGATATTTATTTCCGGAACAGACTCAGTCGAATCGATATATTTCCGAC");
+		
+		Assert.assertNull(c2r.getAlternateReference(7, 100, "chr1", "CGATAT", TextCigarCodec.decode("6M")));
+	}
+}
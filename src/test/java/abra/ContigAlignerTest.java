@@ -0,0 +1,118 @@
+package abra;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import abra.ContigAligner.ContigAlignerResult;
+
+public class ContigAlignerTest {
+
+	// Scores without native code.  Alignment is rejected if accepted is false.
+	static class FakeAligner extends ContigAligner {
+		private int score;
+		private int secondBest;
+		private boolean accepted;
+		int alignCount = 0;
+		int batchCount = 0;
+
+		FakeAligner(int score, int secondBest, boolean accepted) {
+			super("ACGT", "chr1", 1, 0, 0, 0);
+			this.score = score;
+			this.secondBest = secondBest;
+			this.accepted = accepted;
+		}
+
+		@Override
+		SemiGlobalAligner.Result[] score(List<String> seqs) {
+			SemiGlobalAligner.Result[] results = new SemiGlobalAligner.Result[seqs.size()];
+			for (int i=0; i<results.length; i++) {
+				results[i] = new SemiGlobalAligner.Result(score, secondBest, -1, 10, null);
+			}
+			return results;
+		}
+
+		@Override
+		public List<ContigAlignerResult> align(List<String> seqs) {
+			batchCount += 1;
+			List<ContigAlignerResult> results = new ArrayList<ContigAlignerResult>();
+			for (String seq : seqs) {
+				alignCount += 1;
+				results.add(accepted ? new ContigAlignerResult(0, "4M", "chr1", 1, seq, score) : null);
+			}
+			return results;
+		}
+	}
+
+	private List<ContigAligner> aligners(FakeAligner... fakes) {
+		List<ContigAligner> aligners = new ArrayList<ContigAligner>();
+		for (FakeAligner fake : fakes) {
+			aligners.add(fake);
+		}
+		return aligners;
+	}
+
+	@Test (groups = "unit")
+	public void testAlignBestBacktracksOnlyWinner() {
+		FakeAligner low = new FakeAligner(50, 10, true);
+		FakeAligner high = new FakeAligner(90, 10, true);
+		FakeAligner ambiguous = new FakeAligner(95, 95, true);
+
+		ContigAlignerResult result = ContigAligner.alignBest("ACGT", aligners(low, high, ambiguous));
+
+		Assert.assertEquals(result.getScore(), 90);
+		Assert.assertEquals(low.alignCount, 0);
+		Assert.assertEquals(high.alignCount, 1);
+		Assert.assertEquals(ambiguous.alignCount, 0);
+	}
+
+	@Test (groups = "unit")
+	public void testAlignBestPrefersFirstOnTie() {
+		FakeAligner first = new FakeAligner(80, 10, true);
+		FakeAligner second = new FakeAligner(80, 10, true);
+
+		ContigAlignerResult result = ContigAligner.alignBest("ACGT", aligners(first, second));
+
+		Assert.assertEquals(result.getScore(), 80);
+		Assert.assertEquals(first.alignCount, 1);
+		Assert.assertEquals(second.alignCount, 0);
+	}
+
+	@Test (groups = "unit")
+	public void testAlignBestFallsBackWhenRejected() {
+		FakeAligner rejected = new FakeAligner(90, 10, false);
+		FakeAligner accepted = new FakeAligner(70, 10, true);
+		FakeAligner unscored = new FakeAligner(1, 0, true);
+
+		ContigAlignerResult result = ContigAligner.alignBest("ACGT", aligners(rejected, accepted, unscored));
+
+		Assert.assertEquals(result.getScore(), 70);
+		Assert.assertEquals(rejected.alignCount, 1);
+		Assert.assertEquals(unscored.alignCount, 0);
+
+		Assert.assertNull(ContigAligner.alignBest("ACGT", aligners(rejected, unscored)));
+	}
+
+	@Test (groups = "unit")
+	public void testAlignBestBatchesPerAligner() {
+		FakeAligner rejected = new FakeAligner(90, 10, false);
+		FakeAligner accepted = new FakeAligner(70, 10, true);
+
+		List<String> seqs = new ArrayList<String>();
+		seqs.add("ACGT");
+		seqs.add("ACGTACGT");
+		seqs.add("AC");
+
+		List<ContigAlignerResult> results = ContigAligner.alignBest(seqs, aligners(rejected, accepted));
+
+		Assert.assertEquals(results.size(), 3);
+		Assert.assertEquals(results.get(0).getSequence(), "ACGT");
+		Assert.assertEquals(results.get(1).getSequence(), "ACGTACGT");
+		Assert.assertEquals(results.get(2).getScore(), 70);
+		Assert.assertEquals(rejected.batchCount, 1);
+		Assert.assertEquals(accepted.batchCount, 1);
+		Assert.assertEquals(accepted.alignCount, 3);
+	}
+}
@@ -0,0 +1,33 @@
+package abra;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import abra.ContigAligner.ContigAlignerResult;
+
+public class ContigAlignmentCacheTest {
+
+	@Test (groups = "unit")
+	public void testGetAndPut() {
+		ContigAlignmentCache cache = new ContigAlignmentCache();
+
+		Assert.assertNull(cache.get("ACGT"));
+
+		ContigAlignerResult result = new ContigAlignerResult(10, "4M", "chr1", 100, "ACGT", 32);
+		cache.put("ACGT", result);
+		result.setSecondary(true);
+
+		ContigAlignerResult cached = cache.get("ACGT");
+		Assert.assertNotSame(cached, result);
+		Assert.assertEquals(cached.getCigar(), "4M");
+		Assert.assertEquals(cached.getGenomicPos(), 110);
+		Assert.assertFalse(cached.isSecondary());
+
+		cache.put("AAAA", null);
+		Assert.assertSame(cache.get("AAAA"), ContigAlignmentCache.NO_ALIGNMENT);
+
+		Assert.assertEquals(cache.getHits(), 2);
+		Assert.assertEquals(cache.getMisses(), 1);
+		Assert.assertEquals(cache.size(), 2);
+	}
+}
@@ -0,0 +1,91 @@
+package abra;
+
+import static org.testng.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+import abra.ContigAligner.ContigAlignerResult;
+import abra.SimpleMapper.SimpleMapperResult;
+
+public class ContigSeedIndexTest {
+
+	private Random random = new Random(1);
+
+	private String randomSeq(int length, String bases) {
+		StringBuilder seq = new StringBuilder();
+		for (int i=0; i<length; i++) {
+			seq.append(bases.charAt(random.nextInt(bases.length())));
+		}
+		return seq.toString();
+	}
+
+	private String randomRead(String contig) {
+		int length = 20 + random.nextInt(80);
+		if (length >= contig.length() || random.nextInt(4) == 0) {
+			return randomSeq(length, "ACGTN");
+		}
+
+		int start = random.nextInt(contig.length() - length + 1);
+		char[] read = contig.substring(start, start+length).toCharArray();
+		for (int i=0; i<random.nextInt(6); i++) {
+			read[random.nextInt(length)] = "ACGTN".charAt(random.nextInt(5));
+		}
+
+		String str = new String(read);
+		return random.nextBoolean() ? ReverseComplementor.reverseComplement(str) : str;
+	}
+
+	private Map<SimpleMapper, ContigAlignerResult> regionContigs(String... contigs) {
+		Map<SimpleMapper, ContigAlignerResult> regionContigs = new HashMap<SimpleMapper, ContigAlignerResult>();
+		for (String contig : contigs) {
+			regionContigs.put(new SimpleMapper(contig, .05), null);
+		}
+		return regionContigs;
+	}
+
+	private void assertMatchesMapper(ContigSeedIndex index, Map<Feature, Map<SimpleMapper, ContigAlignerResult>> mappedContigs, String read) {
+		index.map(read);
+		for (Feature region : mappedContigs.keySet()) {
+			ContigSeedIndex.RegionSlots regionSlots = index.getRegionSlots(region);
+			for (int i=0; i<regionSlots.slots.length; i++) {
+				SimpleMapperResult expected = regionSlots.mappers[i].map(read);
+				int slot = regionSlots.slots[i];
+				assertEquals(index.getPos(slot), expected.getPos(), read);
+				assertEquals(index.getMismatches(slot), expected.getMismatches(), read);
+				assertEquals(index.getOrientation(slot), expected.getOrientation(), read);
+			}
+		}
+	}
+
+	@Test (groups = "unit")
+	public void testMatchesSimpleMapperAcrossUpdates() {
+		String repeat = randomSeq(300, "ACGT");
+		String shared = randomSeq(250, "ACGT");
+		Map<Feature, Map<SimpleMapper, ContigAlignerResult>> mappedContigs = new LinkedHashMap<Feature, Map<SimpleMapper, ContigAlignerResult>>();
+		ContigSeedIndex index = new ContigSeedIndex();
+
+		// Slide a window of regions, evicting the oldest as new regions are added
+		for (int r=0; r<30; r++) {
+			Feature region = new Feature("chr1", r*100, r*100+400);
+			String withN = randomSeq(100, "ACGT") + "NNNNNNNNNNNN" + randomSeq(100, "ACGT");
+			mappedContigs.put(region, regionContigs(randomSeq(300, "ACGT"), repeat + repeat.substring(0, 50), shared, withN));
+			if (mappedContigs.size() > 4) {
+				mappedContigs.remove(mappedContigs.keySet().iterator().next());
+			}
+
+			index.update(mappedContigs);
+			assertEquals(index.getNumSlots(), mappedContigs.size()*2 + 2);
+
+			for (Map<SimpleMapper, ContigAlignerResult> contigs : mappedContigs.values()) {
+				for (SimpleMapper mapper : contigs.keySet()) {
+					assertMatchesMapper(index, mappedContigs, randomRead(mapper.getSeq()));
+				}
+			}
+		}
+	}
+}
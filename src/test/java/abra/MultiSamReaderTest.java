@@ -4,26 +4,42 @@ import static org.testng.Assert.assertEquals;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.PriorityQueue;
 
 import org.testng.annotations.Test;
 
+import abra.MultiSamReader.MergeEntry;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+
 // TODO: Test more thoroughly including multiple samples
 public class MultiSamReaderTest {
 
 	@Test (groups = "unit")
-	public void testReadTwoBams() {
+	public void testReadTwoBams() throws Exception {
+		verifyTwoBams(false);
+	}
+	
+	@Test (groups = "unit")
+	public void testReadTwoBamsAsync() throws Exception {
+		verifyTwoBams(true);
+	}
+	
+	private void verifyTwoBams(boolean isAsync) throws Exception {
 		String[] bams = new String[] { "test-data/sample1.bam", "test-data/sample2.bam" };
 		int minMapq = 20;
 		boolean isPairedEnd = false;
 		String chromosome = "10";
 		Feature chromosomeChunk = new Feature(chromosome, 3000000, 4000000);
 		
-		MultiSamReader rdr = new MultiSamReader(bams, minMapq, isPairedEnd, chromosomeChunk);
+		MultiSamReader rdr = new MultiSamReader(bams, minMapq, isPairedEnd, chromosomeChunk, isAsync);
 		
 		List<SAMRecordWrapper> reads = new ArrayList<SAMRecordWrapper>();
 		for (SAMRecordWrapper read : rdr) {
 			reads.add(read);
 		}
+		rdr.close();
 		
 		assertEquals(reads.size(), 9);
 		assertEquals(reads.get(0).getSamRecord().getReadName(), "ERR194161.458962555");
@@ -51,4 +67,31 @@ public class MultiSamReaderTest {
 		assertEquals(reads.get(7).getSamRecord().getReadName(), "ERR194161.458962591");
 		assertEquals(reads.get(8).getSamRecord().getReadName(), "ERR194161.458962591");
 	}
+	
+	private SAMRecordWrapper getRecord(SAMFileHeader header, String chromosome, int pos, int sampleIdx) {
+		SAMRecord read = new SAMRecord(header);
+		read.setReadName(chromosome + "_" + pos + "_" + sampleIdx);
+		read.setReferenceName(chromosome);
+		read.setAlignmentStart(pos);
+		return new SAMRecordWrapper(read, false, true, sampleIdx);
+	}
+	
+	@Test (groups = "unit")
+	public void testMergeOrder() {
+		SAMFileHeader header = new SAMFileHeader();
+		header.addSequence(new SAMSequenceRecord("chr1", 1000));
+		header.addSequence(new SAMSequenceRecord("chr2", 1000));
+		
+		PriorityQueue<MergeEntry> queue = new PriorityQueue<MergeEntry>();
+		queue.add(new MergeEntry(getRecord(header, "chr2", 5, 0)));
+		queue.add(new MergeEntry(getRecord(header, "chr1", 100, 3)));
+		queue.add(new MergeEntry(getRecord(header, "chr1", 100, 1)));
+		queue.add(new MergeEntry(getRecord(header, "chr1", 50, 2)));
+		queue.add(new MergeEntry(getRecord(header, "chr1", 100, 0)));
+		
+		String[] expected = new String[] { "chr1_50_2", "chr1_100_0", "chr1_100_1", "chr1_100_3", "chr2_5_0" };
+		for (String name : expected) {
+			assertEquals(queue.poll().record.getSamRecord().getReadName(), name);
+		}
+	}
 }
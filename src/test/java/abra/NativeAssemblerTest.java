@@ -0,0 +1,80 @@
+package abra;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class NativeAssemblerTest {
+
+	// Stops on repeat for kmers below minKmer.  Result contig is the kmer used.
+	static class FakeAssembler extends NativeAssembler {
+		private int minKmer;
+		AtomicInteger active = new AtomicInteger();
+
+		FakeAssembler(int minKmer) {
+			this.minKmer = minKmer;
+		}
+
+		@Override
+		AssemblyResult assembleKmer(ByteBuffer readBuffer, int numReads, String prefix, int kmer, int mnf, int mbq, double mer) {
+			active.incrementAndGet();
+			try {
+				// Larger kmers finish first to exercise ordering
+				Thread.sleep(100 - kmer);
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			} finally {
+				active.decrementAndGet();
+			}
+
+			if (kmer < minKmer) {
+				return new AssemblyResult(AssemblyResult.STOPPED_ON_REPEAT, Collections.<ScoredContig>emptyList());
+			}
+
+			List<ScoredContig> contigs = new ArrayList<ScoredContig>();
+			contigs.add(new ScoredContig(0, String.valueOf(kmer)));
+			return new AssemblyResult(AssemblyResult.OK, contigs);
+		}
+	}
+
+	private AssemblyResult assemble(int minKmer, ExecutorService pool, boolean expectCycle) throws Exception {
+		FakeAssembler assembler = new FakeAssembler(minKmer);
+		assembler.setReadLength(60);
+		assembler.setKmer(new int[] { 21, 31, 41, 51, 61 });
+		assembler.setKmerPool(pool);
+
+		AssemblyResult result = assembler.assembleKmers(null, 0, "test", 2, 20, .01);
+
+		Assert.assertEquals(assembler.active.get(), 0);
+		Assert.assertEquals(assembler.isCycleExceedingThresholdDetected(), expectCycle);
+		return result;
+	}
+
+	@Test (groups = "unit")
+	public void testSpeculativeMatchesSerial() throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(3);
+
+		try {
+			for (ExecutorService kmerPool : new ExecutorService[] { null, pool }) {
+				AssemblyResult result = assemble(41, kmerPool, true);
+				Assert.assertTrue(result.isOk());
+				Assert.assertEquals(result.getContigs().get(0).getContig(), "41");
+
+				result = assemble(21, kmerPool, false);
+				Assert.assertEquals(result.getContigs().get(0).getContig(), "21");
+
+				result = assemble(100, kmerPool, true);
+				Assert.assertTrue(result.isRepeat());
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package abra;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+
+public class ReadWindowTest {
+
+	private SAMFileHeader header;
+
+	private SAMRecordWrapper getRead(int pos, String cigar) {
+		if (header == null) {
+			header = new SAMFileHeader();
+			header.addSequence(new SAMSequenceRecord("chr1", 1000000));
+		}
+
+		SAMRecord read = new SAMRecord(header);
+		read.setReadName("read_" + pos);
+		read.setReferenceName("chr1");
+		read.setAlignmentStart(pos);
+		read.setCigarString(cigar);
+		read.setReadString(SAMRecord.NULL_SEQUENCE_STRING);
+		return new SAMRecordWrapper(read, false, true, 0);
+	}
+
+	@Test (groups = "unit")
+	public void testEvictAndOverlap() {
+		// Small capacity to exercise growth and wrap around
+		ReadWindow window = new ReadWindow(4);
+		List<SAMRecordWrapper> all = new ArrayList<SAMRecordWrapper>();
+		Random random = new Random(1);
+
+		int pos = 1;
+		List<SAMRecordWrapper> evicted = new ArrayList<SAMRecordWrapper>();
+		for (int i=0; i<2000; i++) {
+			pos += random.nextInt(5);
+			SAMRecordWrapper read = getRead(pos, random.nextInt(10) == 0 ? "20M300N30M" : "50M");
+			window.add(read);
+			all.add(read);
+
+			if (i % 100 == 0) {
+				int evictPos = pos - 150;
+				evicted.clear();
+				window.evictBefore(evictPos, evicted);
+
+				List<SAMRecordWrapper> expectedEvicted = new ArrayList<SAMRecordWrapper>();
+				for (SAMRecordWrapper cached : new ArrayList<SAMRecordWrapper>(all)) {
+					if (cached.getSamRecord().getAlignmentStart() < evictPos) {
+						expectedEvicted.add(cached);
+						all.remove(cached);
+					}
+				}
+				Assert.assertEquals(evicted, expectedEvicted);
+				Assert.assertEquals(window.size(), all.size());
+			}
+
+			if (i % 37 == 0) {
+				Feature region = new Feature("chr1", pos - 200, pos - 120);
+				List<SAMRecordWrapper> expected = new ArrayList<SAMRecordWrapper>();
+				for (SAMRecordWrapper cached : all) {
+					if (region.overlapsRead(cached.getSamRecord())) {
+						expected.add(cached);
+					}
+				}
+				Assert.assertEquals(window.getOverlapping(region), expected);
+			}
+		}
+
+		Assert.assertEquals(window.getFirstStart(), all.get(0).getSamRecord().getAlignmentStart());
+		Assert.assertTrue(window.getMemoryUsage() > 0);
+		Assert.assertEquals(window.clear(), all);
+		Assert.assertTrue(window.isEmpty());
+		Assert.assertEquals(window.getFirstStart(), Integer.MAX_VALUE);
+	}
+
+	@Test (groups = "unit")
+	public void testOutOfOrderAdd() {
+		ReadWindow window = new ReadWindow(2);
+		SAMRecordWrapper read1 = getRead(100, "50M");
+		SAMRecordWrapper read2 = getRead(300, "50M");
+		SAMRecordWrapper read3 = getRead(100, "50M");
+		SAMRecordWrapper read4 = getRead(50, "50M");
+
+		window.add(read1);
+		window.add(read2);
+		window.add(read3);
+		window.add(read4);
+
+		Assert.assertEquals(window.get(0), read4);
+		Assert.assertEquals(window.get(1), read1);
+		Assert.assertEquals(window.get(2), read3);
+		Assert.assertEquals(window.get(3), read2);
+	}
+
+	@Test (groups = "unit")
+	public void testMaxSpanDecaysOnEviction() {
+		ReadWindow window = new ReadWindow(2);
+		window.add(getRead(100, "50M"));
+		window.add(getRead(110, "20M300N30M"));
+		window.add(getRead(120, "50M"));
+		window.add(getRead(130, "20M300N30M"));
+		Assert.assertEquals(window.getMaxSpan(), 349);
+
+		List<SAMRecordWrapper> evicted = new ArrayList<SAMRecordWrapper>();
+
+		// One spliced read remains
+		window.evictBefore(115, evicted);
+		Assert.assertEquals(window.getMaxSpan(), 349);
+
+		window.evictBefore(125, evicted);
+		Assert.assertEquals(window.getMaxSpan(), 349);
+
+		window.evictBefore(130, evicted);
+		Assert.assertEquals(window.getMaxSpan(), 349);
+
+		window.add(getRead(140, "50M"));
+		window.evictBefore(135, evicted);
+		Assert.assertEquals(window.getMaxSpan(), 49);
+		Assert.assertEquals(window.getOverlapping(new Feature("chr1", 150, 160)).size(), 1);
+	}
+}
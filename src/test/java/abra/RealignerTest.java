@@ -115,6 +115,15 @@ public class RealignerTest {
 	}
 	*/
 	
+	@Test (groups = "unit")
+	public void testStageThreads() {
+		// One chunk per thread by default
+		assertEquals(ReAligner.getStageThreads(1, 0), 1);
+		assertEquals(ReAligner.getStageThreads(8, 0), 8);
+		
+		assertEquals(ReAligner.getStageThreads(8, 2), 2);
+	}
+	
 	private void validateFeature(Feature feature, int expectedStart, int expectedEnd) {
 		assertEquals(feature.getStart(), expectedStart);
 		assertEquals(feature.getEnd(), expectedEnd);
@@ -0,0 +1,100 @@
+package abra;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+
+public class RegionIndexTest {
+
+	private SAMFileHeader getHeader() {
+		SAMFileHeader header = new SAMFileHeader();
+		header.addSequence(new SAMSequenceRecord("chr1", 100000));
+		header.addSequence(new SAMSequenceRecord("chr2", 100000));
+		return header;
+	}
+
+	private SAMRecordWrapper getRead(SAMFileHeader header, String chromosome, int pos, String cigar) {
+		SAMRecord read = new SAMRecord(header);
+		read.setReadName("read");
+		read.setReferenceName(chromosome);
+		read.setAlignmentStart(pos);
+		read.setCigarString(cigar);
+		return new SAMRecordWrapper(read, false, true, 0);
+	}
+
+	@Test (groups = "unit")
+	public void testFindAllOverlappingRegions() {
+		SAMFileHeader header = getHeader();
+
+		List<Feature> regions = new ArrayList<Feature>();
+		regions.add(new Feature("chr1", 100, 500));
+		regions.add(new Feature("chr1", 300, 700));
+		regions.add(new Feature("chr1", 1000, 1400));
+		regions.add(new Feature("chr1", 5000, 5400));
+
+		RegionIndex index = new RegionIndex(regions);
+
+		TreeSet<Integer> overlaps = new TreeSet<Integer>();
+		index.findAllOverlappingRegions(getRead(header, "chr1", 350, "100M"), overlaps);
+		Assert.assertEquals(new ArrayList<Integer>(overlaps), Arrays.asList(0, 1));
+
+		// Spliced read spanning 2 regions
+		overlaps.clear();
+		index.findAllOverlappingRegions(getRead(header, "chr1", 650, "50M4350N50M"), overlaps);
+		Assert.assertEquals(new ArrayList<Integer>(overlaps), Arrays.asList(1, 3));
+
+		// In between regions
+		overlaps.clear();
+		index.findAllOverlappingRegions(getRead(header, "chr1", 800, "100M"), overlaps);
+		Assert.assertTrue(overlaps.isEmpty());
+
+		// Other chromosome
+		index.findAllOverlappingRegions(getRead(header, "chr2", 350, "100M"), overlaps);
+		Assert.assertTrue(overlaps.isEmpty());
+	}
+
+	@Test (groups = "unit")
+	public void testMatchesLinearSearch() {
+		SAMFileHeader header = getHeader();
+		Random random = new Random(1);
+
+		// Sorted by start with variable lengths, so region ends are not sorted
+		List<Feature> regions = new ArrayList<Feature>();
+		int start = 1;
+		for (int i=0; i<500; i++) {
+			start += random.nextInt(150);
+			regions.add(new Feature("chr1", start, start + 50 + random.nextInt(400)));
+		}
+
+		RegionIndex index = new RegionIndex(regions);
+
+		for (int i=0; i<5000; i++) {
+			int pos = 1 + random.nextInt(start);
+			String cigar = random.nextBoolean() ? "10S90M" : "40M" + random.nextInt(2000) + "N20M5I35M";
+			SAMRecordWrapper read = getRead(header, "chr1", pos, cigar);
+
+			TreeSet<Integer> expected = new TreeSet<Integer>(Feature.findAllOverlappingRegions(header, read, regions, 0));
+			TreeSet<Integer> actual = new TreeSet<Integer>();
+			index.findAllOverlappingRegions(read, actual);
+
+			Assert.assertEquals(actual, expected, read.getSamRecord().getAlignmentStart() + " " + cigar);
+		}
+	}
+
+	@Test (groups = "unit", expectedExceptions = IllegalArgumentException.class)
+	public void testUnsortedRegions() {
+		List<Feature> regions = new ArrayList<Feature>();
+		regions.add(new Feature("chr1", 300, 700));
+		regions.add(new Feature("chr1", 100, 500));
+		new RegionIndex(regions);
+	}
+}
@@ -120,4 +120,31 @@ public class SemiGlobalAlignerTest {
 		assertEquals(res.cigar, "16M7I");
 		assertEquals(res.position, 0);
 	}
+	
+	@Test (groups = "unit")
+	public void testBufferReuse() {
+		// Larger alignment followed by a smaller one on the same thread
+		String seq = "GGGCTGCCGTTTTTCCATTACGGCTTTCGTAATGTGACCACGTGCTTTTGA";
+		String ref = "GGGCTGCCGTTTTTCCATTACGGCTTTCCTTTGAAGTATATTTTAGGACATGACAGTCTTGTACCTGAAGTAATGTGACCACGTGCTTTTGA";
+		assertEquals(sg.align(seq, ref).cigar, "28M41D23M");
+		
+		SemiGlobalAligner.Result res = sg.align("AATTCTA", "ATCGAATTCCGGGCTA");
+		assertEquals(res.position, 4);
+		assertEquals(res.cigar, "4M5D3M");
+		assertEquals(res.score, 4);
+	}
+	
+	@Test (groups = "unit")
+	public void testScore() {
+		String ref = "ATCGAATTCCGGGCTA";
+		String seq = "GAACCCCTTCCG";
+		
+		SemiGlobalAligner.Result aligned = sg.align(seq, ref);
+		SemiGlobalAligner.Result scored = sg.score(seq, ref);
+		assertEquals(scored.score, aligned.score);
+		assertEquals(scored.secondBest, aligned.secondBest);
+		assertEquals(scored.endPosition, aligned.endPosition);
+		assertEquals(scored.position, -1);
+		assertEquals(scored.cigar, null);
+	}
 }
@@ -129,4 +129,32 @@ public class SimpleMapperTest {
 		assertEquals(24, smr.getPos());
 		assertEquals(Orientation.REVERSE, smr.getOrientation());
 	}
+	
+	@Test (groups = "unit" )
+	public void testMapNonAcgtSeed() {
+		// Only seeds covering the Ns in both contig and read can anchor the read
+		String contig = "GATTACACCGNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNNTTGCAAGTCC";
+		SimpleMapper sm = new SimpleMapper(contig, DEFAULT_MISMATCH_RATE);
+		String read = contig.substring(5, 65);
+		SimpleMapperResult smr = sm.map(read);
+		assertEquals(0, smr.getMismatches());
+		assertEquals(5, smr.getPos());
+		assertEquals(Orientation.FORWARD, smr.getOrientation());
+	}
+	
+	@Test (groups = "unit" )
+	public void testMapNonAcgtMismatch() {
+		SimpleMapper sm = new SimpleMapper(contig1, DEFAULT_MISMATCH_RATE);
+		// Ns in place of G in the first and last 32 base words
+		String read = "TACTGTCCATGGGAGTGNTACGGAACTGCACGCTAGGGAAGAGAGAGGAATGGCACGCTAGGGAAGGCGAATGACCAGAACGCAAAAGGTTCAGCTTANTG";
+		SimpleMapperResult smr = sm.map(read);
+		assertEquals(2, smr.getMismatches());
+		assertEquals(257, smr.getPos());
+		assertEquals(Orientation.FORWARD, smr.getOrientation());
+		
+		smr = sm.map(ReverseComplementor.reverseComplement(read));
+		assertEquals(2, smr.getMismatches());
+		assertEquals(257, smr.getPos());
+		assertEquals(Orientation.REVERSE, smr.getOrientation());
+	}
 }
@@ -0,0 +1,75 @@
+package abra;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class StageQueueTest {
+
+	@Test (groups = "unit")
+	public void testOrderAndClose() throws Exception {
+		final StageQueue<Integer> queue = new StageQueue<Integer>("test", 2);
+
+		Thread producer = new Thread() {
+			public void run() {
+				try {
+					for (int i=0; i<100; i++) {
+						queue.put(i);
+					}
+					queue.close();
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		producer.start();
+
+		List<Integer> items = new ArrayList<Integer>();
+		for (Integer item = queue.take(); item != null; item = queue.take()) {
+			items.add(item);
+		}
+		producer.join();
+
+		Assert.assertEquals(items.size(), 100);
+		for (int i=0; i<100; i++) {
+			Assert.assertEquals((int) items.get(i), i);
+		}
+
+		// Closed queue remains closed
+		Assert.assertNull(queue.take());
+		Assert.assertTrue(queue.getMetrics().startsWith("test:"));
+	}
+
+	@Test (groups = "unit")
+	public void testAbortUnblocksProducer() throws Exception {
+		StageQueue<Integer> queue = new StageQueue<Integer>("test", 1);
+		queue.put(1);
+
+		IllegalStateException failure = new IllegalStateException("consumer failed");
+		queue.abort(failure);
+
+		try {
+			queue.put(2);
+			Assert.fail("Expected aborted queue");
+		} catch (RuntimeException e) {
+			Assert.assertSame(e.getCause(), failure);
+		}
+	}
+
+	@Test (groups = "unit")
+	public void testAbortUnblocksConsumer() throws Exception {
+		StageQueue<Integer> queue = new StageQueue<Integer>("test", 1);
+
+		IllegalStateException failure = new IllegalStateException("producer failed");
+		queue.abort(failure);
+
+		try {
+			queue.take();
+			Assert.fail("Expected aborted queue");
+		} catch (RuntimeException e) {
+			Assert.assertSame(e.getCause(), failure);
+		}
+	}
+}
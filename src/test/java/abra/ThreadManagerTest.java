@@ -0,0 +1,84 @@
+package abra;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class ThreadManagerTest {
+
+	@Test (groups = "unit")
+	public void testAllTasksComplete() throws Exception {
+		ThreadManager threadManager = new ThreadManager(3);
+		final AtomicInteger count = new AtomicInteger();
+
+		for (int i=0; i<250; i++) {
+			threadManager.spawnThread(new AbraRunnable(threadManager) {
+				@Override
+				public void go() throws Exception {
+					count.incrementAndGet();
+				}
+			});
+		}
+
+		threadManager.waitForAllThreadsToComplete();
+
+		Assert.assertEquals(count.get(), 250);
+		Assert.assertEquals(threadManager.getCompletedCount(), 250);
+		Assert.assertEquals(threadManager.getActiveCount(), 0);
+		Assert.assertEquals(threadManager.getQueueLength(), 0);
+	}
+
+	@Test (groups = "unit", timeOut = 10000)
+	public void testFailureAbortsPromptly() throws Exception {
+		ThreadManager threadManager = new ThreadManager(2);
+		final CountDownLatch blocked = new CountDownLatch(1);
+
+		// Long running task which is interrupted once another task fails
+		Future<Void> longRunning = threadManager.spawnThread(new AbraRunnable(threadManager) {
+			@Override
+			public void go() throws Exception {
+				blocked.countDown();
+				Thread.sleep(600000);
+			}
+		});
+
+		blocked.await();
+
+		final IllegalStateException failure = new IllegalStateException("chunk failed");
+		threadManager.spawnThread(new AbraRunnable(threadManager) {
+			@Override
+			public void go() throws Exception {
+				throw failure;
+			}
+		});
+
+		try {
+			threadManager.waitForAllThreadsToComplete();
+			Assert.fail("Expected failure");
+		} catch (RuntimeException e) {
+			Assert.assertSame(e.getCause(), failure);
+		}
+
+		// Subsequent submissions are rejected
+		try {
+			threadManager.spawnThread(new AbraRunnable(threadManager) {
+				@Override
+				public void go() throws Exception {
+				}
+			});
+			Assert.fail("Expected failure");
+		} catch (RuntimeException e) {
+			Assert.assertSame(e.getCause(), failure);
+		}
+
+		try {
+			longRunning.get();
+			Assert.fail("Expected interrupted task");
+		} catch (Exception e) {
+			// Expected
+		}
+	}
+}